@@ -33,7 +33,7 @@ CREATE TABLE IF NOT EXISTS `user` (
 CREATE TABLE IF NOT EXISTS `mail_account` (
     `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT '账户ID',
     `user_id` BIGINT NOT NULL COMMENT '用户ID',
-    `email_address` VARCHAR(100) NOT NULL COMMENT '邮箱地址',
+    `email_address` VARCHAR(100) NOT NULL COMMENT '邮箱地址(小写)',
     `display_name` VARCHAR(50) DEFAULT NULL COMMENT '显示名称',
     `smtp_host` VARCHAR(100) DEFAULT NULL COMMENT 'SMTP服务器',
     `smtp_port` INT DEFAULT 25 COMMENT 'SMTP端口',
@@ -41,6 +41,7 @@ CREATE TABLE IF NOT EXISTS `mail_account` (
     `created_at` DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
     PRIMARY KEY (`id`),
     KEY `idx_user_id` (`user_id`),
+    KEY `idx_email_address` (`email_address`),
     CONSTRAINT `fk_mail_account_user` FOREIGN KEY (`user_id`) REFERENCES `user` (`id`) ON DELETE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='邮件账户表';
 
@@ -66,9 +67,11 @@ CREATE TABLE IF NOT EXISTS `mail` (
     `priority` TINYINT DEFAULT 3 COMMENT '优先级: 1-高, 3-普通, 5-低',
     `send_time` DATETIME DEFAULT NULL COMMENT '发送时间',
     `receive_time` DATETIME DEFAULT NULL COMMENT '接收时间',
+    `message_key` CHAR(64) DEFAULT NULL COMMENT 'SMTP入站去重键(Message-ID或内容的SHA-256)',
     `created_at` DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
     `updated_at` DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
     PRIMARY KEY (`id`),
+    UNIQUE KEY `uk_account_message_key` (`account_id`, `message_key`),
     KEY `idx_user_id` (`user_id`),
     KEY `idx_folder` (`folder`),
     KEY `idx_from_address` (`from_address`),
@@ -94,6 +97,46 @@ CREATE TABLE IF NOT EXISTS `attachment` (
     CONSTRAINT `fk_attachment_mail` FOREIGN KEY (`mail_id`) REFERENCES `mail` (`id`) ON DELETE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='附件表';
 
+-- =============================================
+-- 外发邮件发件箱表（与邮件在同一事务中写入，由外发线程投递）
+-- =============================================
+CREATE TABLE IF NOT EXISTS `mail_outbox` (
+    `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT '任务ID',
+    `mail_id` BIGINT NOT NULL COMMENT '邮件ID',
+    `status` VARCHAR(20) NOT NULL DEFAULT 'PENDING' COMMENT '状态: PENDING/SENDING/RETRYING/SENT/FAILED',
+    `attempts` INT NOT NULL DEFAULT 0 COMMENT '已尝试次数',
+    `next_attempt_at` DATETIME NOT NULL COMMENT '下次尝试时间',
+    `locked_until` DATETIME DEFAULT NULL COMMENT '投递中的租约到期时间，到期未完成视为中断，重新投递',
+    `last_error` VARCHAR(500) DEFAULT NULL COMMENT '最近一次失败原因',
+    `created_at` DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `updated_at` DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    KEY `idx_status_next_attempt` (`status`, `next_attempt_at`),
+    KEY `idx_mail_id` (`mail_id`),
+    CONSTRAINT `fk_mail_outbox_mail` FOREIGN KEY (`mail_id`) REFERENCES `mail` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='外发邮件发件箱表';
+
+-- =============================================
+-- 外发收件人投递状态表
+-- =============================================
+CREATE TABLE IF NOT EXISTS `mail_delivery` (
+    `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT '投递ID',
+    `outbox_id` BIGINT NOT NULL COMMENT '发件箱任务ID',
+    `mail_id` BIGINT NOT NULL COMMENT '邮件ID',
+    `recipient` VARCHAR(255) NOT NULL COMMENT '收件人地址',
+    `recipient_type` VARCHAR(10) NOT NULL COMMENT '收件人类型: TO/CC/BCC',
+    `status` VARCHAR(20) NOT NULL DEFAULT 'PENDING' COMMENT '状态: PENDING/RETRYING/SENT/FAILED',
+    `attempts` INT NOT NULL DEFAULT 0 COMMENT '已尝试次数',
+    `next_attempt_at` DATETIME DEFAULT NULL COMMENT '下次尝试时间',
+    `last_error` VARCHAR(500) DEFAULT NULL COMMENT '最近一次失败原因',
+    `delivered_at` DATETIME DEFAULT NULL COMMENT '投递成功时间',
+    `updated_at` DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    KEY `idx_outbox_id` (`outbox_id`),
+    KEY `idx_mail_id` (`mail_id`),
+    CONSTRAINT `fk_mail_delivery_outbox` FOREIGN KEY (`outbox_id`) REFERENCES `mail_outbox` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='外发收件人投递状态表';
+
 -- =============================================
 -- 联系人表
 -- =============================================
@@ -144,6 +187,18 @@ INSERT INTO `mail` (`user_id`, `account_id`, `folder`, `from_address`, `to_addre
 (3, 3, 'inbox', 'admin@campus.mail', 'lisi@campus.mail', '系统通知', '<p>系统将于今晚维护。</p>', '系统将于今晚维护。', 1, NOW(), NOW()),
 (1, 1, 'sent', 'admin@campus.mail', 'zhangsan@campus.mail,lisi@campus.mail', '欢迎使用校园邮件系统', '<h1>欢迎！</h1><p>这是您收到的第一封邮件。</p>', '欢迎！这是您收到的第一封邮件。', 1, NOW(), NULL);
 
+-- =============================================
+-- 已有数据库升级
+-- =============================================
+-- SMTP入站去重键（重发的同一封邮件不再重复入库）
+-- ALTER TABLE `mail`
+--     ADD COLUMN `message_key` CHAR(64) DEFAULT NULL COMMENT 'SMTP入站去重键(Message-ID或内容的SHA-256)' AFTER `receive_time`,
+--     ADD UNIQUE KEY `uk_account_message_key` (`account_id`, `message_key`);
+
+-- 邮箱地址统一存为小写，按地址查询账户走索引
+-- UPDATE `mail_account` SET `email_address` = LOWER(TRIM(`email_address`));
+-- ALTER TABLE `mail_account` ADD KEY `idx_email_address` (`email_address`);
+
 -- =============================================
 -- 完成
 -- =============================================
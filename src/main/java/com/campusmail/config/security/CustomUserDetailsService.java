@@ -2,18 +2,24 @@ package com.campusmail.config.security;
 
 import com.campusmail.entity.User;
 import com.campusmail.mapper.UserMapper;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import java.util.Set;
+
 @Service
 public class CustomUserDetailsService implements UserDetailsService {
 
     private final UserMapper userMapper;
+    private final Set<String> adminUsernames;
 
-    public CustomUserDetailsService(UserMapper userMapper) {
+    public CustomUserDetailsService(UserMapper userMapper,
+                                    @Value("${security.admin-usernames:admin}") Set<String> adminUsernames) {
         this.userMapper = userMapper;
+        this.adminUsernames = adminUsernames;
     }
 
     @Override
@@ -23,7 +29,7 @@ public class CustomUserDetailsService implements UserDetailsService {
         return org.springframework.security.core.userdetails.User
             .withUsername(user.getUsername())
             .password(user.getPasswordHash())
-            .roles("USER")
+            .roles(adminUsernames.contains(user.getUsername()) ? new String[]{"USER", "ADMIN"} : new String[]{"USER"})
             .disabled(user.getStatus() == null || user.getStatus() != 1)
             .build();
     }
@@ -0,0 +1,32 @@
+package com.campusmail.controller;
+
+import com.campusmail.dto.SMTPSessionDTO;
+import com.campusmail.smtp.SMTPSessionMonitor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * 管理接口，仅ADMIN角色可访问（见SecurityConfig）
+ */
+@RestController
+@RequestMapping("/api/admin")
+public class AdminController {
+
+    private final SMTPSessionMonitor sessionMonitor;
+
+    public AdminController(SMTPSessionMonitor sessionMonitor) {
+        this.sessionMonitor = sessionMonitor;
+    }
+
+    /**
+     * 当前在线的SMTP会话：状态、对端地址、已接收字节数等
+     */
+    @GetMapping("/smtp/sessions")
+    public ResponseEntity<List<SMTPSessionDTO>> smtpSessions() {
+        return ResponseEntity.ok(sessionMonitor.liveSessions());
+    }
+}
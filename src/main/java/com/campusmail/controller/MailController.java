@@ -3,6 +3,7 @@ package com.campusmail.controller;
 import com.campusmail.dto.MailDTO;
 import com.campusmail.entity.Attachment;
 import com.campusmail.entity.Mail;
+import com.campusmail.entity.MailDelivery;
 import com.campusmail.mapper.AttachmentMapper;
 import com.campusmail.service.MailService;
 import com.campusmail.utils.SecurityUtils;
@@ -117,6 +118,15 @@ public class MailController {
             .orElse(ResponseEntity.notFound().build());
     }
 
+    /**
+     * 获取已发送邮件各外部收件人的投递状态
+     */
+    @GetMapping("/{id}/deliveries")
+    public ResponseEntity<List<MailDelivery>> getDeliveries(@PathVariable("id") Long id) {
+        Long userId = SecurityUtils.getCurrentUserId();
+        return ResponseEntity.ok(mailService.getDeliveries(id, userId));
+    }
+
     /**
      * 标记邮件为已读
      */
@@ -0,0 +1,22 @@
+package com.campusmail.dto;
+
+import lombok.Data;
+
+@Data
+public class SMTPSessionDTO {
+    private long sessionId;
+    private String clientAddress;
+    // 经负载均衡器转发时为负载均衡器地址
+    private String proxyAddress;
+    private String clientDomain;
+    private String state;
+    private boolean tls;
+    // 提交端口已认证的用户名
+    private String authenticatedUser;
+    private String mailFrom;
+    private int recipientCount;
+    private long bytesReceived;
+    // 已连接时长和距上次收到数据的时长（毫秒）
+    private long connectedMillis;
+    private long idleMillis;
+}
@@ -24,6 +24,7 @@ public class Mail {
     private Integer priority;       // 1-高, 3-普通, 5-低
     private LocalDateTime sendTime;
     private LocalDateTime receiveTime;
+    private String messageKey;      // SMTP入站去重键，同一邮箱内唯一；其余来源为空
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
 
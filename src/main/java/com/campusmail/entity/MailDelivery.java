@@ -0,0 +1,20 @@
+package com.campusmail.entity;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class MailDelivery {
+    private Long id;
+    private Long outboxId;
+    private Long mailId;
+    private String recipient;
+    private String recipientType;   // TO/CC/BCC
+    private String status;          // PENDING/RETRYING/SENT/FAILED
+    private Integer attempts;
+    private LocalDateTime nextAttemptAt;
+    private String lastError;
+    private LocalDateTime deliveredAt;
+    private LocalDateTime updatedAt;
+}
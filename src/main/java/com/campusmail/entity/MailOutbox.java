@@ -0,0 +1,18 @@
+package com.campusmail.entity;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class MailOutbox {
+    private Long id;
+    private Long mailId;
+    private String status;          // PENDING/SENDING/RETRYING/SENT/FAILED
+    private Integer attempts;
+    private LocalDateTime nextAttemptAt;
+    private LocalDateTime lockedUntil;  // SENDING状态的租约，到期未完成视为投递中断
+    private String lastError;
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+}
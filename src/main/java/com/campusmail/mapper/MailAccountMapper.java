@@ -24,6 +24,10 @@ public interface MailAccountMapper {
 
     Optional<MailAccount> findByEmailAddress(@Param("emailAddress") String emailAddress);
 
+    List<MailAccount> findByEmailAddresses(@Param("emailAddresses") List<String> emailAddresses);
+
+    List<String> findAllEmailAddresses();
+
     void clearDefaultByUserId(@Param("userId") Long userId);
 
     int countDefaultByUserId(@Param("userId") Long userId);
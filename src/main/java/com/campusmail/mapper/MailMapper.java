@@ -14,6 +14,14 @@ import java.util.Optional;
 public interface MailMapper {
     void insert(Mail mail);
 
+    void batchInsert(@Param("mails") List<Mail> mails);
+
+    /**
+     * 给定邮箱中已存在该去重键的邮箱ID
+     */
+    List<Long> findAccountIdsByMessageKey(@Param("messageKey") String messageKey,
+                                          @Param("accountIds") List<Long> accountIds);
+
     void update(Mail mail);
 
     void delete(@Param("id") Long id);
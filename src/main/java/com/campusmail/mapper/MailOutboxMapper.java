@@ -0,0 +1,47 @@
+package com.campusmail.mapper;
+
+import com.campusmail.entity.MailDelivery;
+import com.campusmail.entity.MailOutbox;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Mapper
+public interface MailOutboxMapper {
+    void insert(MailOutbox outbox);
+
+    void batchInsertDeliveries(@Param("deliveries") List<MailDelivery> deliveries);
+
+    Optional<MailOutbox> findById(@Param("id") Long id);
+
+    /**
+     * 到期待投递的任务，以及租约已过期（投递中断）的任务
+     */
+    List<Long> findDueIds(@Param("now") LocalDateTime now, @Param("limit") int limit);
+
+    /**
+     * 领取任务并记一次尝试；其他线程或实例已领取时返回0
+     */
+    int claim(@Param("id") Long id, @Param("now") LocalDateTime now, @Param("lockedUntil") LocalDateTime lockedUntil);
+
+    void updateStatus(@Param("id") Long id,
+                      @Param("status") String status,
+                      @Param("nextAttemptAt") LocalDateTime nextAttemptAt,
+                      @Param("lastError") String lastError);
+
+    List<MailDelivery> findDeliveriesByOutboxId(@Param("outboxId") Long outboxId);
+
+    List<MailDelivery> findDeliveriesByMailId(@Param("mailId") Long mailId);
+
+    /**
+     * 更新一次尝试涉及的收件人状态，尝试次数加一
+     */
+    void updateDeliveries(@Param("ids") List<Long> ids,
+                          @Param("status") String status,
+                          @Param("nextAttemptAt") LocalDateTime nextAttemptAt,
+                          @Param("lastError") String lastError,
+                          @Param("deliveredAt") LocalDateTime deliveredAt);
+}
@@ -18,6 +18,11 @@ public interface AttachmentService {
      */
     List<Attachment> uploadMultiple(MultipartFile[] files, Long mailId);
 
+    /**
+     * 登记已写入上传目录的附件文件（如SMTP提交的邮件中解析出的附件），分配ID并保存记录
+     */
+    Attachment register(Attachment attachment);
+
     /**
      * 获取邮件的所有附件
      */
@@ -3,6 +3,7 @@ package com.campusmail.service;
 import com.campusmail.dto.MailDTO;
 import com.campusmail.dto.MailStatisticsDTO;
 import com.campusmail.entity.Mail;
+import com.campusmail.entity.MailDelivery;
 import com.campusmail.smtp.ParsedMail;
 
 import java.util.List;
@@ -21,6 +22,11 @@ public interface MailService {
 
     Optional<Mail> getMailById(Long id, Long userId);
 
+    /**
+     * 已发送邮件每个外部收件人的投递状态；外发在事务提交后异步进行，发信接口返回时通常仍为PENDING
+     */
+    List<MailDelivery> getDeliveries(Long id, Long userId);
+
     void markAsRead(Long id, Long userId);
 
     void toggleStar(Long id, Long userId);
@@ -39,9 +45,23 @@ public interface MailService {
     java.util.Map<String, Integer> getMailStats(Long userId);
 
     /**
-     * 通过SMTP协议接收的邮件创建
+     * 通过SMTP协议接收的邮件创建，为每个本地收件人生成一封收件箱邮件
+     * @return 已保存的邮件，没有本地收件人时为空
+     */
+    List<Mail> createMail(ParsedMail parsedMail);
+
+    /**
+     * 在一个事务中批量创建SMTP接收的邮件，收件账户一次查询，邮件行和附件关联用多行INSERT写入
+     * @return 与参数一一对应的已保存邮件；任一封失败时整批回滚
+     */
+    List<List<Mail>> createMails(List<ParsedMail> parsedMails);
+
+    /**
+     * 已认证用户通过SMTP提交端口发送的邮件，与网页发信走同一流程（sendMail）
+     * 邮件头To/Cc中属于信封收件人的地址按原类型发送，其余信封收件人作为密送
+     * @param accountId MAIL FROM对应的该用户的邮件账户
      */
-    Mail createMail(ParsedMail parsedMail);
+    Mail submitMail(Long userId, Long accountId, ParsedMail parsedMail);
 
     /**
      * 全文搜索用户邮件
@@ -0,0 +1,407 @@
+package com.campusmail.service;
+
+import com.campusmail.entity.Attachment;
+import com.campusmail.entity.Mail;
+import com.campusmail.entity.MailDelivery;
+import com.campusmail.entity.MailOutbox;
+import com.campusmail.mapper.AttachmentMapper;
+import com.campusmail.mapper.MailMapper;
+import com.campusmail.mapper.MailOutboxMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Address;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.InternetAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailSendException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * 外发邮件队列（事务发件箱）- 发信时在同一事务中写入 mail_outbox 任务和每个外部收件人的 mail_delivery 记录，
+ * 事务提交后由有界的外发线程池调用 {@link OutboundMailSender}，发信请求和事务都不再等待外部SMTP
+ *
+ * 领取：调度线程查出到期的任务，用条件UPDATE领取（多实例部署时只有一个实例领取成功），领取数不超过空闲的外发线程数；
+ * 领取时设置租约，进程在投递中途退出时，租约到期后任务会被重新领取，外部收件人可能收到重复邮件（至少一次投递）
+ * 重试：失败按指数退避加随机抖动重试，达到最大次数后标记为FAILED；
+ * 发送异常中带有逐个收件人的结果（SendFailedException）时，已发送的收件人不再重发，地址无效的收件人直接失败
+ */
+@Component
+public class OutboundMailQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboundMailQueue.class);
+
+    public static final String PENDING = "PENDING";
+    public static final String SENDING = "SENDING";
+    public static final String RETRYING = "RETRYING";
+    public static final String SENT = "SENT";
+    public static final String FAILED = "FAILED";
+
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    private final MailOutboxMapper outboxMapper;
+    private final MailMapper mailMapper;
+    private final AttachmentMapper attachmentMapper;
+    private final OutboundMailSender outboundMailSender;
+    private final int workers;
+    private final long leaseSeconds;
+    private final int maxAttempts;
+    private final long initialRetryDelayMs;
+    private final long maxRetryDelayMs;
+
+    // 空闲的外发线程，领取任务前先占用，任务结束后归还
+    private final Semaphore idleWorkers;
+    private ThreadPoolExecutor workerExecutor;
+    // 单线程查询和领取到期任务；等待中的调度请求最多一个，多次触发合并为一次
+    private ThreadPoolExecutor dispatchExecutor;
+    // 上次调度领取满了空闲线程，可能还有到期任务，线程空闲后立即再调度
+    private volatile boolean backlog;
+
+    public OutboundMailQueue(MailOutboxMapper outboxMapper,
+                             MailMapper mailMapper,
+                             AttachmentMapper attachmentMapper,
+                             OutboundMailSender outboundMailSender,
+                             @Value("${mail.outbound.workers:4}") int workers,
+                             @Value("${mail.outbound.lease-seconds:300}") long leaseSeconds,
+                             @Value("${mail.outbound.max-attempts:8}") int maxAttempts,
+                             @Value("${mail.outbound.retry-initial-seconds:60}") long initialRetrySeconds,
+                             @Value("${mail.outbound.retry-max-seconds:3600}") long maxRetrySeconds) {
+        this.outboxMapper = outboxMapper;
+        this.mailMapper = mailMapper;
+        this.attachmentMapper = attachmentMapper;
+        this.outboundMailSender = outboundMailSender;
+        this.workers = Math.max(1, workers);
+        this.leaseSeconds = Math.max(1, leaseSeconds);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialRetryDelayMs = Math.max(1, initialRetrySeconds) * 1000;
+        this.maxRetryDelayMs = Math.max(initialRetrySeconds, maxRetrySeconds) * 1000;
+        this.idleWorkers = new Semaphore(this.workers);
+    }
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        workerExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), r -> new Thread(r, "OutboundMail-" + threadIndex.getAndIncrement()));
+        dispatchExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(1), r -> new Thread(r, "OutboundMail-Dispatch"),
+            new ThreadPoolExecutor.DiscardPolicy());
+        // 启动时投递上次退出前未完成的任务
+        trigger();
+    }
+
+    /**
+     * 停止时不等待进行中的外部SMTP会话结束太久，未完成的任务在租约到期后重新投递
+     */
+    @PreDestroy
+    public void stop() {
+        dispatchExecutor.shutdownNow();
+        workerExecutor.shutdown();
+        try {
+            if (!workerExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                workerExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workerExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 写入外发任务，必须在发信的事务中调用；事务提交后立即调度，没有事务时直接调度
+     * @param deliveries 外部收件人，只需填写recipient和recipientType
+     */
+    public void enqueue(Long mailId, List<MailDelivery> deliveries) {
+        MailOutbox outbox = new MailOutbox();
+        outbox.setMailId(mailId);
+        outbox.setStatus(PENDING);
+        outbox.setAttempts(0);
+        outbox.setNextAttemptAt(LocalDateTime.now());
+        outboxMapper.insert(outbox);
+        for (MailDelivery delivery : deliveries) {
+            delivery.setOutboxId(outbox.getId());
+            delivery.setMailId(mailId);
+            delivery.setStatus(PENDING);
+            delivery.setAttempts(0);
+        }
+        outboxMapper.batchInsertDeliveries(deliveries);
+        log.info("Queued outbound mail {} for {} external recipient(s)", mailId, deliveries.size());
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    trigger();
+                }
+            });
+        } else {
+            trigger();
+        }
+    }
+
+    /**
+     * 邮件每个外部收件人的投递状态，没有外部收件人时为空
+     */
+    public List<MailDelivery> findDeliveries(Long mailId) {
+        return outboxMapper.findDeliveriesByMailId(mailId);
+    }
+
+    /**
+     * 定期检查到期的重试和租约过期的任务
+     */
+    @Scheduled(fixedDelayString = "${mail.outbound.poll-interval-ms:5000}")
+    public void poll() {
+        trigger();
+    }
+
+    private void trigger() {
+        if (dispatchExecutor != null) {
+            dispatchExecutor.execute(this::dispatchDue);
+        }
+    }
+
+    private void dispatchDue() {
+        int free = idleWorkers.availablePermits();
+        if (free == 0) {
+            backlog = true;
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        List<Long> due;
+        try {
+            due = outboxMapper.findDueIds(now, free);
+        } catch (RuntimeException e) {
+            log.warn("Failed to load due outbound mails: {}", e.getMessage());
+            return;
+        }
+        backlog = due.size() >= free;
+        for (Long outboxId : due) {
+            if (!idleWorkers.tryAcquire()) {
+                backlog = true;
+                break;
+            }
+            boolean claimed = false;
+            try {
+                claimed = outboxMapper.claim(outboxId, now, now.plusSeconds(leaseSeconds)) == 1;
+            } catch (RuntimeException e) {
+                log.warn("Failed to claim outbound mail task {}: {}", outboxId, e.getMessage());
+            }
+            if (!claimed) {
+                idleWorkers.release();
+                continue;
+            }
+            try {
+                workerExecutor.execute(() -> {
+                    try {
+                        deliver(outboxId);
+                    } finally {
+                        idleWorkers.release();
+                        if (backlog) {
+                            trigger();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 正在停止，租约到期后重新投递
+                idleWorkers.release();
+                return;
+            }
+        }
+    }
+
+    private void deliver(Long outboxId) {
+        try {
+            MailOutbox outbox = outboxMapper.findById(outboxId).orElse(null);
+            if (outbox == null) {
+                // 邮件已被彻底删除，任务随之级联删除
+                return;
+            }
+            List<MailDelivery> deliveries = outboxMapper.findDeliveriesByOutboxId(outboxId);
+            List<MailDelivery> pending = deliveries.stream()
+                .filter(d -> !SENT.equals(d.getStatus()) && !FAILED.equals(d.getStatus()))
+                .toList();
+            Mail source = mailMapper.findByIdIncludingDeleted(outbox.getMailId()).orElse(null);
+            if (source == null || pending.isEmpty()) {
+                outboxMapper.updateStatus(outboxId, completedStatus(deliveries), null, outbox.getLastError());
+                return;
+            }
+
+            Mail outboundMail = buildOutboundMail(source, pending);
+            List<Attachment> attachments = Boolean.TRUE.equals(source.getHasAttachment())
+                ? attachmentMapper.findByMailId(source.getId())
+                : Collections.emptyList();
+            try {
+                outboundMailSender.send(outboundMail, attachments);
+            } catch (RuntimeException e) {
+                onFailure(outbox, deliveries, pending, e);
+                return;
+            }
+            outboxMapper.updateDeliveries(ids(pending), SENT, null, null, LocalDateTime.now());
+            boolean anyFailed = deliveries.stream().anyMatch(d -> FAILED.equals(d.getStatus()));
+            outboxMapper.updateStatus(outboxId, anyFailed ? FAILED : SENT, null, outbox.getLastError());
+            log.info("Outbound mail {} sent to {} recipient(s) on attempt {}",
+                source.getId(), pending.size(), outbox.getAttempts());
+        } catch (RuntimeException e) {
+            // 数据库不可用等，任务保持SENDING，租约到期后重新领取
+            log.error("Outbound mail task {} interrupted", outboxId, e);
+        }
+    }
+
+    /**
+     * 按收件人区分结果：已发送的标记SENT，地址无效的直接FAILED，其余按退避重试或在次数用尽后FAILED
+     */
+    private void onFailure(MailOutbox outbox, List<MailDelivery> deliveries, List<MailDelivery> pending,
+                           RuntimeException error) {
+        SendFailedException failure = findSendFailure(error);
+        Set<String> sentAddresses = failure == null ? Set.of() : addresses(failure.getValidSentAddresses());
+        Set<String> invalidAddresses = failure == null ? Set.of() : addresses(failure.getInvalidAddresses());
+        List<MailDelivery> sent = new ArrayList<>();
+        List<MailDelivery> invalid = new ArrayList<>();
+        List<MailDelivery> retry = new ArrayList<>();
+        for (MailDelivery delivery : pending) {
+            String address = delivery.getRecipient().toLowerCase();
+            if (sentAddresses.contains(address)) {
+                sent.add(delivery);
+            } else if (invalidAddresses.contains(address)) {
+                invalid.add(delivery);
+            } else {
+                retry.add(delivery);
+            }
+        }
+
+        String message = abbreviate(describe(failure != null ? failure : error));
+        LocalDateTime now = LocalDateTime.now();
+        if (!sent.isEmpty()) {
+            outboxMapper.updateDeliveries(ids(sent), SENT, null, null, now);
+        }
+        if (!invalid.isEmpty()) {
+            outboxMapper.updateDeliveries(ids(invalid), FAILED, null, message, null);
+        }
+        if (retry.isEmpty()) {
+            boolean anyFailed = !invalid.isEmpty() || deliveries.stream().anyMatch(d -> FAILED.equals(d.getStatus()));
+            outboxMapper.updateStatus(outbox.getId(), anyFailed ? FAILED : SENT, null, message);
+            log.warn("Outbound mail {} rejected for {} recipient(s): {}", outbox.getMailId(), invalid.size(), message);
+            return;
+        }
+        int attempts = outbox.getAttempts();
+        if (attempts >= maxAttempts) {
+            outboxMapper.updateDeliveries(ids(retry), FAILED, null, message, null);
+            outboxMapper.updateStatus(outbox.getId(), FAILED, null, message);
+            log.warn("Outbound mail {} failed after {} attempts: {}", outbox.getMailId(), attempts, message);
+            return;
+        }
+        LocalDateTime nextAttemptAt = now.plus(retryDelayMillis(attempts), ChronoUnit.MILLIS);
+        outboxMapper.updateDeliveries(ids(retry), RETRYING, nextAttemptAt, message, null);
+        outboxMapper.updateStatus(outbox.getId(), RETRYING, nextAttemptAt, message);
+        log.info("Outbound mail {} attempt {} failed, retry at {}: {}",
+            outbox.getMailId(), attempts, nextAttemptAt, message);
+    }
+
+    /**
+     * 指数退避，一半固定、一半随机，避免同时失败的任务（如中继故障期间的全部邮件）在同一时刻集中重试
+     */
+    private long retryDelayMillis(int attempts) {
+        long delay = Math.min(maxRetryDelayMs, initialRetryDelayMs << Math.min(Math.max(attempts - 1, 0), 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * 只发给尚未完成的收件人，收件人类型与发信时相同
+     */
+    private Mail buildOutboundMail(Mail source, List<MailDelivery> pending) {
+        Mail mail = new Mail();
+        mail.setId(source.getId());
+        mail.setAccountId(source.getAccountId());
+        mail.setFromAddress(source.getFromAddress());
+        mail.setToAddress(joinRecipients(pending, "TO"));
+        mail.setCcAddress(joinRecipients(pending, "CC"));
+        mail.setBccAddress(joinRecipients(pending, "BCC"));
+        mail.setSubject(source.getSubject());
+        mail.setContent(source.getContent());
+        mail.setPlainContent(source.getPlainContent());
+        return mail;
+    }
+
+    private String joinRecipients(List<MailDelivery> deliveries, String type) {
+        String joined = deliveries.stream()
+            .filter(d -> type.equals(d.getRecipientType()))
+            .map(MailDelivery::getRecipient)
+            .collect(Collectors.joining(","));
+        return joined.isEmpty() ? null : joined;
+    }
+
+    private String completedStatus(List<MailDelivery> deliveries) {
+        return deliveries.stream().allMatch(d -> SENT.equals(d.getStatus())) ? SENT : FAILED;
+    }
+
+    private List<Long> ids(List<MailDelivery> deliveries) {
+        return deliveries.stream().map(MailDelivery::getId).toList();
+    }
+
+    /**
+     * JavaMail在部分收件人被拒时抛出SendFailedException；Spring的MailSendException把它放在逐封的异常中，
+     * MessagingException的getCause即nextException，沿cause链即可找到
+     */
+    private static SendFailedException findSendFailure(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof SendFailedException failure) {
+                return failure;
+            }
+            if (t instanceof MailSendException sendException) {
+                for (Exception nested : sendException.getMessageExceptions()) {
+                    SendFailedException failure = findSendFailure(nested);
+                    if (failure != null) {
+                        return failure;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Set<String> addresses(Address[] addresses) {
+        Set<String> result = new HashSet<>();
+        if (addresses != null) {
+            for (Address address : addresses) {
+                String value = address instanceof InternetAddress internet ? internet.getAddress() : address.toString();
+                if (value != null) {
+                    result.add(value.toLowerCase());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String describe(Exception error) {
+        Throwable root = error;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        String message = root.getMessage() != null ? root.getMessage() : root.getClass().getSimpleName();
+        return root == error ? message : error.getClass().getSimpleName() + ": " + message;
+    }
+
+    private static String abbreviate(String message) {
+        return message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message;
+    }
+}
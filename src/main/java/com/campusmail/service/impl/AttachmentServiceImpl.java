@@ -86,6 +86,14 @@ public class AttachmentServiceImpl implements AttachmentService {
         return attachments;
     }
 
+    @Override
+    @Transactional
+    public Attachment register(Attachment attachment) {
+        attachment.setId(idGen.nextId());
+        attachmentMapper.insert(attachment);
+        return attachment;
+    }
+
     @Override
     public List<Attachment> getByMailId(Long mailId) {
         return attachmentMapper.findByMailId(mailId);
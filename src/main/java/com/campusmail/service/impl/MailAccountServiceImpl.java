@@ -3,6 +3,7 @@ package com.campusmail.service.impl;
 import com.campusmail.entity.MailAccount;
 import com.campusmail.mapper.MailAccountMapper;
 import com.campusmail.service.MailAccountService;
+import com.campusmail.smtp.LocalRecipientDirectory;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -16,10 +17,13 @@ public class MailAccountServiceImpl implements MailAccountService {
 
     private final MailAccountMapper mailAccountMapper;
     private final SnowflakeIdGenerator idGen;
+    private final LocalRecipientDirectory recipientDirectory;
 
-    public MailAccountServiceImpl(MailAccountMapper mailAccountMapper, SnowflakeIdGenerator idGen) {
+    public MailAccountServiceImpl(MailAccountMapper mailAccountMapper, SnowflakeIdGenerator idGen,
+                                  LocalRecipientDirectory recipientDirectory) {
         this.mailAccountMapper = mailAccountMapper;
         this.idGen = idGen;
+        this.recipientDirectory = recipientDirectory;
     }
 
     @Override
@@ -28,9 +32,11 @@ public class MailAccountServiceImpl implements MailAccountService {
         account.setUserId(userId);
         account.setId(idGen.nextId());
         account.setCreatedAt(LocalDateTime.now());
+        normalizeEmailAddress(account);
         normalizeDefault(account);
         mailAccountMapper.insert(account);
         ensureSingleDefault(account);
+        recipientDirectory.add(account.getEmailAddress());
         return account;
     }
 
@@ -45,9 +51,12 @@ public class MailAccountServiceImpl implements MailAccountService {
             throw new AccessDeniedException("无权修改该邮箱账号");
         }
         account.setUserId(existing.getUserId());
+        normalizeEmailAddress(account);
         normalizeDefault(account);
         mailAccountMapper.update(account);
         ensureSingleDefault(account);
+        recipientDirectory.add(account.getEmailAddress());
+        recipientDirectory.remove(existing.getEmailAddress());
         return account;
     }
 
@@ -62,6 +71,7 @@ public class MailAccountServiceImpl implements MailAccountService {
             throw new AccessDeniedException("无权删除该邮箱账号");
         }
         mailAccountMapper.delete(id);
+        recipientDirectory.remove(existing.getEmailAddress());
 
         int defaultCount = mailAccountMapper.countDefaultByUserId(existing.getUserId());
         if (defaultCount == 0) {
@@ -77,6 +87,12 @@ public class MailAccountServiceImpl implements MailAccountService {
         return mailAccountMapper.findByUserId(userId);
     }
 
+    private void normalizeEmailAddress(MailAccount account) {
+        if (account.getEmailAddress() != null) {
+            account.setEmailAddress(LocalRecipientDirectory.normalize(account.getEmailAddress()));
+        }
+    }
+
     private void normalizeDefault(MailAccount account) {
         if (Boolean.TRUE.equals(account.getIsDefault())) {
             mailAccountMapper.clearDefaultByUserId(account.getUserId());
@@ -8,19 +8,24 @@ import com.campusmail.dto.ResponseTimeStatDTO;
 import com.campusmail.entity.Attachment;
 import com.campusmail.entity.Mail;
 import com.campusmail.entity.MailAccount;
+import com.campusmail.entity.MailDelivery;
 import com.campusmail.mapper.AttachmentMapper;
 import com.campusmail.mapper.MailAccountMapper;
 import com.campusmail.mapper.MailMapper;
 import com.campusmail.service.AttachmentService;
 import com.campusmail.service.MailService;
-import com.campusmail.service.OutboundMailSender;
+import com.campusmail.service.OutboundMailQueue;
+import com.campusmail.smtp.InboundDedupIndex;
 import com.campusmail.smtp.ParsedMail;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.StringUtils;
 
 import java.time.Duration;
@@ -31,11 +36,15 @@ import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,23 +53,30 @@ public class MailServiceImpl implements MailService {
 
     private static final Logger log = LoggerFactory.getLogger(MailServiceImpl.class);
     private static final String INTERNAL_EMAIL_DOMAIN = "@campus.mail";
+    // 多行INSERT（入站邮件、群发的收件箱副本）单条语句的行数上限，避免语句超过max_allowed_packet
+    private static final int INSERT_BATCH_ROWS = 500;
+    // 收件箱副本按正文大小估算单条语句的字节上限，低于MySQL 5.7默认的4MB max_allowed_packet
+    private static final long INSERT_BATCH_BYTES = 3L * 1024 * 1024;
 
     private final MailMapper mailMapper;
     private final AttachmentMapper attachmentMapper;
     private final AttachmentService attachmentService;
     private final MailAccountMapper mailAccountMapper;
-    private final OutboundMailSender outboundMailSender;
+    private final OutboundMailQueue outboundMailQueue;
+    private final InboundDedupIndex dedupIndex;
 
     public MailServiceImpl(MailMapper mailMapper,
                            AttachmentMapper attachmentMapper,
                            AttachmentService attachmentService,
                            MailAccountMapper mailAccountMapper,
-                           OutboundMailSender outboundMailSender) {
+                           OutboundMailQueue outboundMailQueue,
+                           InboundDedupIndex dedupIndex) {
         this.mailMapper = mailMapper;
         this.attachmentMapper = attachmentMapper;
         this.attachmentService = attachmentService;
         this.mailAccountMapper = mailAccountMapper;
-        this.outboundMailSender = outboundMailSender;
+        this.outboundMailQueue = outboundMailQueue;
+        this.dedupIndex = dedupIndex;
     }
 
     @Override
@@ -101,7 +117,7 @@ public class MailServiceImpl implements MailService {
             }
         }
 
-        sendOutbound(mail);
+        enqueueOutbound(mail);
         distributeToLocalRecipients(mail);
 
         // 如果是从草稿编辑后发送，删除原草稿
@@ -216,6 +232,12 @@ public class MailServiceImpl implements MailService {
             });
     }
 
+    @Override
+    public List<MailDelivery> getDeliveries(Long id, Long userId) {
+        Mail mail = requireOwnedMail(id, userId);
+        return outboundMailQueue.findDeliveries(mail.getId());
+    }
+
     @Override
     public void markAsRead(Long id, Long userId) {
         Mail mail = requireOwnedMail(id, userId);
@@ -331,7 +353,7 @@ public class MailServiceImpl implements MailService {
         draft.setPriority(draft.getPriority() != null ? draft.getPriority() : 3);
 
         mailMapper.update(draft);
-        sendOutbound(draft);
+        enqueueOutbound(draft);
         distributeToLocalRecipients(draft);
         log.info("草稿发送成功: id={}, to={}", draft.getId(), draft.getToAddress());
         return draft;
@@ -394,99 +416,357 @@ public class MailServiceImpl implements MailService {
         return mail;
     }
 
-@Override
+    @Override
+    @Transactional
+    public List<Mail> createMail(ParsedMail parsedMail) {
+        return storeInboundMails(List.of(parsedMail)).get(0);
+    }
+
+    @Override
     @Transactional
-    public Mail createMail(ParsedMail parsedMail) {
-        log.info("Creating mail from SMTP: from={}, to={}, subject={}",
-            parsedMail.getFrom(), parsedMail.getTo(), parsedMail.getSubject());
+    public List<List<Mail>> createMails(List<ParsedMail> parsedMails) {
+        return storeInboundMails(parsedMails);
+    }
 
-        // 根据收件人地址查找对应的用户和账户
-        String toAddress = parsedMail.getTo().get(0); // 取第一个收件人
-        Optional<MailAccount> accountOpt = mailAccountMapper.findByEmailAddress(toAddress);
+    @Override
+    @Transactional
+    public Mail submitMail(Long userId, Long accountId, ParsedMail parsedMail) {
+        Map<String, String> envelope = new LinkedHashMap<>();
+        for (String address : parsedMail.getTo()) {
+            envelope.putIfAbsent(address.toLowerCase(), address);
+        }
+        MailDTO request = new MailDTO();
+        request.setUserId(userId);
+        request.setAccountId(accountId);
+        // 按信封投递：头部中不在信封里的地址不发送，信封中未出现在头部的地址即客户端的密送
+        request.setToAddress(takeEnvelopeRecipients(parsedMail.getHeader("To"), envelope));
+        request.setCcAddress(takeEnvelopeRecipients(parsedMail.getHeader("Cc"), envelope));
+        request.setBccAddress(envelope.isEmpty() ? null : String.join(",", envelope.values()));
+        request.setSubject(parsedMail.getSubject());
+        request.setContent(parsedMail.getHtmlBody() != null ? parsedMail.getHtmlBody() : parsedMail.getBody());
+        request.setPlainContent(parsedMail.getBody());
+
+        // 附件文件已由MailParser写入上传目录，登记后按ID关联，与网页上传的附件相同
+        List<Long> attachmentIds = new ArrayList<>();
+        for (Attachment attachment : parsedMail.getAttachments()) {
+            attachmentIds.add(attachmentService.register(attachment).getId());
+        }
+        request.setAttachmentIds(attachmentIds);
+
+        log.info("Submitting mail from SMTP: userId={}, accountId={}, recipients={}, subject={}",
+            userId, accountId, parsedMail.getTo().size(), parsedMail.getSubject());
+        return sendMail(userId, request);
+    }
 
-        Mail mail = new Mail();
-        if (accountOpt.isPresent()) {
-            MailAccount account = accountOpt.get();
+    /**
+     * 取出邮件头地址列表中属于信封收件人的地址（从envelope中移除），没有时返回null
+     */
+    private String takeEnvelopeRecipients(String header, Map<String, String> envelope) {
+        if (!StringUtils.hasText(header)) {
+            return null;
+        }
+        List<String> addresses = new ArrayList<>();
+        for (String part : header.split("[;,]")) {
+            String address = envelope.remove(extractEmail(part).toLowerCase());
+            if (address != null) {
+                addresses.add(address);
+            }
+        }
+        return addresses.isEmpty() ? null : String.join(",", addresses);
+    }
+
+    /**
+     * 入站邮件入库：全部信封收件人一次查出本地账户，邮件行按批多行INSERT，附件关联一次写入
+     */
+    private List<List<Mail>> storeInboundMails(List<ParsedMail> parsedMails) {
+        Set<String> addresses = new LinkedHashSet<>();
+        for (ParsedMail parsedMail : parsedMails) {
+            // 群发邮件的收件人列表可能很长，INFO只记录数量
+            log.info("Creating mail from SMTP: from={}, recipients={}, subject={}",
+                parsedMail.getFrom(), parsedMail.getTo().size(), parsedMail.getSubject());
+            if (log.isDebugEnabled()) {
+                log.debug("SMTP mail envelope recipients: {}", parsedMail.getTo());
+            }
+            parsedMail.getTo().forEach(address -> addresses.add(address.toLowerCase()));
+        }
+        Map<String, MailAccount> accountsByAddress = new HashMap<>();
+        if (!addresses.isEmpty()) {
+            for (MailAccount account : mailAccountMapper.findByEmailAddresses(new ArrayList<>(addresses))) {
+                accountsByAddress.put(account.getEmailAddress().toLowerCase(), account);
+            }
+        }
+
+        List<InboundMessage> messages = new ArrayList<>(parsedMails.size());
+        for (ParsedMail parsedMail : parsedMails) {
+            messages.add(buildInboxMails(parsedMail, accountsByAddress));
+        }
+        insertInboundMails(messages);
+
+        // 附件文件已由MailParser写入上传目录，各收件人的副本共用同一文件，关联记录一次写入
+        List<Attachment> attachments = new ArrayList<>();
+        for (InboundMessage message : messages) {
+            for (Mail mail : message.mails()) {
+                attachments.addAll(cloneAttachments(message.parsedMail().getAttachments(), mail.getId()));
+            }
+        }
+        if (!attachments.isEmpty()) {
+            attachmentMapper.batchInsert(attachments);
+        }
+
+        List<List<Mail>> stored = new ArrayList<>(messages.size());
+        for (InboundMessage message : messages) {
+            if (!message.mails().isEmpty()) {
+                log.info("Mail saved for {} recipients", message.mails().size());
+                if (log.isDebugEnabled()) {
+                    log.debug("Saved SMTP mail ids: {}", message.mails().stream().map(Mail::getId).toList());
+                }
+            }
+            stored.add(message.mails());
+        }
+        return stored;
+    }
+
+    /**
+     * 为一封入站邮件的每个本地收件人生成收件箱邮件，跳过未绑定的地址和去重窗口内已入库的邮箱
+     */
+    private InboundMessage buildInboxMails(ParsedMail parsedMail, Map<String, MailAccount> accountsByAddress) {
+        Map<String, String> recipients = new LinkedHashMap<>();
+        for (String address : parsedMail.getTo()) {
+            recipients.putIfAbsent(address.toLowerCase(), address);
+        }
+        List<MailAccount> accounts = new ArrayList<>(recipients.size());
+        Set<String> unknown = new LinkedHashSet<>();
+        for (String address : recipients.keySet()) {
+            MailAccount account = accountsByAddress.get(address);
+            if (account != null) {
+                accounts.add(account);
+            } else {
+                unknown.add(address);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            log.warn("Addresses {} are not bound to any local account, skip inbox delivery", unknown);
+        }
+
+        // 发送方重发的同一封邮件：去重窗口内已入库的邮箱直接跳过
+        String messageKey = InboundDedupIndex.messageKey(parsedMail);
+        List<MailAccount> duplicates = accounts.stream()
+            .filter(account -> dedupIndex.contains(account.getId(), messageKey))
+            .toList();
+        if (!duplicates.isEmpty()) {
+            log.info("Duplicate SMTP mail {} from {} suppressed for {} mailbox(es)",
+                parsedMail.getMessageId(), parsedMail.getFrom(), duplicates.size());
+            accounts = accounts.stream().filter(account -> !duplicates.contains(account)).toList();
+        }
+
+        String subject = parsedMail.getSubject() != null ? parsedMail.getSubject() : "(无主题)";
+        String toAddress = String.join(",", parsedMail.getTo());
+        boolean hasAttachment = !parsedMail.getAttachments().isEmpty();
+        LocalDateTime receiveTime = LocalDateTime.now();
+
+        List<Mail> inboxMails = new ArrayList<>(accounts.size());
+        for (MailAccount account : accounts) {
+            Mail mail = new Mail();
             mail.setUserId(account.getUserId());
             mail.setAccountId(account.getId());
+            mail.setFolder("inbox");
+            mail.setFromAddress(parsedMail.getFrom());
+            mail.setToAddress(toAddress);
+            mail.setSubject(subject);
+            mail.setContent(parsedMail.getHtmlBody() != null ? parsedMail.getHtmlBody() : parsedMail.getBody());
+            mail.setPlainContent(parsedMail.getBody());
+            mail.setIsRead(false);
+            mail.setIsStarred(false);
+            mail.setIsDeleted(false);
+            mail.setHasAttachment(hasAttachment);
+            mail.setPriority(3);
+            mail.setReceiveTime(receiveTime);
+            mail.setMessageKey(messageKey);
+            inboxMails.add(mail);
         }
-        mail.setFolder("inbox");
-        mail.setFromAddress(parsedMail.getFrom());
-        mail.setToAddress(String.join(",", parsedMail.getTo()));
-        mail.setSubject(parsedMail.getSubject() != null ? parsedMail.getSubject() : "(无主题)");
-        mail.setContent(parsedMail.getBody());
-        mail.setPlainContent(parsedMail.getBody());
-        mail.setIsRead(false);
-        mail.setIsStarred(false);
-        mail.setIsDeleted(false);
-        mail.setHasAttachment(false);
-        mail.setPriority(3);
-        mail.setReceiveTime(LocalDateTime.now());
+        if (inboxMails.isEmpty() && duplicates.isEmpty()) {
+            log.warn("SMTP mail from {} has no local recipient, dropped", parsedMail.getFrom());
+        }
+        return new InboundMessage(parsedMail, messageKey, inboxMails);
+    }
 
-        mailMapper.insert(mail);
+    /**
+     * 多封邮件的收件箱行按行数分组，每组一条多行INSERT
+     * 一组因唯一键冲突失败时（其中一封是重发的邮件）改为逐封写入，由逐封的重复处理定位已入库的邮箱；其余异常照常抛出
+     */
+    private void insertInboundMails(List<InboundMessage> messages) {
+        List<InboundMessage> group = new ArrayList<>();
+        int rows = 0;
+        for (InboundMessage message : messages) {
+            if (message.mails().isEmpty()) {
+                continue;
+            }
+            group.add(message);
+            rows += message.mails().size();
+            if (rows >= INSERT_BATCH_ROWS) {
+                insertInboundGroup(group);
+                group.clear();
+                rows = 0;
+            }
+        }
+        if (!group.isEmpty()) {
+            insertInboundGroup(group);
+        }
+    }
 
-        log.info("Mail saved with id={}", mail.getId());
-        return mail;
+    private void insertInboundGroup(List<InboundMessage> group) {
+        if (group.size() > 1) {
+            List<Mail> rows = group.stream().flatMap(message -> message.mails().stream()).toList();
+            try {
+                mailMapper.batchInsert(rows);
+                group.forEach(message -> rememberAfterCommit(
+                    message.mails().stream().map(Mail::getAccountId).toList(), message.messageKey()));
+                return;
+            } catch (DuplicateKeyException e) {
+                // 唯一键冲突只回滚这条语句；死锁、锁等待超时、连接中断等会回滚整个事务，必须抛出让整批重试
+                log.info("Batch insert of {} SMTP mails hit a duplicate, inserting them one by one: {}",
+                    group.size(), e.getMessage());
+            }
+        }
+        group.forEach(message -> insertInboundMails(message.mails(), message.messageKey()));
+    }
+
+    /**
+     * 写入入站邮件并在提交后登记到去重索引
+     * 去重窗口之外的重发（重启后重放队列、两个投递线程同时处理同一封）会触发唯一键 (account_id, message_key) 冲突：
+     * 多行INSERT整体失败（只回滚该语句），查出已入库的邮箱，从列表中移除后重试一次；
+     * 其余异常（死锁、连接中断等可能已回滚整个事务）不做处理，照常抛出
+     */
+    private void insertInboundMails(List<Mail> inboxMails, String messageKey) {
+        List<Long> accountIds = inboxMails.stream().map(Mail::getAccountId).toList();
+        try {
+            mailMapper.batchInsert(inboxMails);
+        } catch (DuplicateKeyException e) {
+            Set<Long> stored = new HashSet<>(mailMapper.findAccountIdsByMessageKey(messageKey, accountIds));
+            if (stored.isEmpty()) {
+                throw e;
+            }
+            log.info("Duplicate SMTP mail {} already stored for {} mailbox(es)", messageKey, stored.size());
+            inboxMails.removeIf(mail -> stored.contains(mail.getAccountId()));
+            if (!inboxMails.isEmpty()) {
+                mailMapper.batchInsert(inboxMails);
+            }
+        }
+        rememberAfterCommit(accountIds, messageKey);
+    }
+
+    /**
+     * 事务回滚的邮件不能登记，否则重试投递时会被误判为重复；没有事务时立即登记
+     */
+    private void rememberAfterCommit(List<Long> accountIds, String messageKey) {
+        Runnable remember = () -> accountIds.forEach(accountId -> dedupIndex.add(accountId, messageKey));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    remember.run();
+                }
+            });
+        } else {
+            remember.run();
+        }
     }
 
+    /**
+     * 为本地收件人生成收件箱副本：收件账户一次查出，副本分组多行INSERT，附件记录一条语句写入全部副本
+     */
     private void distributeToLocalRecipients(Mail sourceMail) {
         List<RecipientInfo> recipients = collectRecipientInfos(sourceMail);
-        log.info("Distributing mail {} to {} recipients: {}", 
-            sourceMail.getId(), recipients.size(), 
-            recipients.stream().map(r -> r.address() + "(" + r.type() + ")").toList());
+        log.info("Distributing mail {} to {} recipient(s)", sourceMail.getId(), recipients.size());
         if (recipients.isEmpty()) {
             return;
         }
 
-        List<Attachment> sourceAttachments = Boolean.TRUE.equals(sourceMail.getHasAttachment())
-            ? attachmentMapper.findByMailId(sourceMail.getId())
-            : Collections.emptyList();
+        Map<String, MailAccount> accounts = new HashMap<>();
+        List<String> addresses = recipients.stream().map(r -> r.address().toLowerCase()).toList();
+        for (MailAccount account : mailAccountMapper.findByEmailAddresses(addresses)) {
+            accounts.put(account.getEmailAddress().toLowerCase(), account);
+        }
 
+        LocalDateTime receiveTime = LocalDateTime.now();
+        List<Mail> inboxMails = new ArrayList<>(accounts.size());
         for (RecipientInfo recipient : recipients) {
-            String address = recipient.address();
-            Optional<MailAccount> targetAccountOpt = mailAccountMapper.findByEmailAddress(address);
-            if (targetAccountOpt.isEmpty()) {
-                log.warn("Address '{}' is not bound to any local account, skip inbox delivery", address);
+            MailAccount targetAccount = accounts.get(recipient.address().toLowerCase());
+            if (targetAccount == null) {
+                log.debug("Address '{}' is not bound to any local account, skip inbox delivery", recipient.address());
                 continue;
             }
+            inboxMails.add(buildInboxCopy(sourceMail, recipient, targetAccount, receiveTime));
+        }
+        if (inboxMails.size() < recipients.size()) {
+            log.info("Mail {}: {} recipient(s) not bound to any local account", sourceMail.getId(),
+                recipients.size() - inboxMails.size());
+        }
+        if (inboxMails.isEmpty()) {
+            return;
+        }
 
-            MailAccount targetAccount = targetAccountOpt.get();
-            Mail inboxMail = new Mail();
-            inboxMail.setUserId(targetAccount.getUserId());
-            inboxMail.setAccountId(targetAccount.getId());
-            inboxMail.setFolder("inbox");
-            inboxMail.setFromAddress(sourceMail.getFromAddress());
-            if (recipient.type() == RecipientType.BCC) {
-                inboxMail.setToAddress(address);
-                inboxMail.setCcAddress(null);
-            } else {
-                inboxMail.setToAddress(sourceMail.getToAddress());
-                inboxMail.setCcAddress(sourceMail.getCcAddress());
-            }
-            inboxMail.setBccAddress(null); // 收件箱副本不应暴露密送名单
-            inboxMail.setSubject(sourceMail.getSubject());
-            inboxMail.setContent(sourceMail.getContent());
-            inboxMail.setPlainContent(sourceMail.getPlainContent());
-            inboxMail.setIsRead(false);
-            inboxMail.setIsStarred(false);
-            inboxMail.setIsDeleted(false);
-            inboxMail.setHasAttachment(sourceMail.getHasAttachment());
-            inboxMail.setPriority(sourceMail.getPriority());
-            inboxMail.setSendTime(sourceMail.getSendTime());
-            inboxMail.setReceiveTime(LocalDateTime.now());
-
-            mailMapper.insert(inboxMail);
-
-            if (!sourceAttachments.isEmpty()) {
-                copyAttachments(sourceAttachments, inboxMail.getId());
+        int rowsPerInsert = (int) Math.max(1,
+            Math.min(INSERT_BATCH_ROWS, INSERT_BATCH_BYTES / estimateRowBytes(sourceMail)));
+        for (int from = 0; from < inboxMails.size(); from += rowsPerInsert) {
+            mailMapper.batchInsert(inboxMails.subList(from, Math.min(inboxMails.size(), from + rowsPerInsert)));
+        }
+
+        List<Attachment> sourceAttachments = Boolean.TRUE.equals(sourceMail.getHasAttachment())
+            ? attachmentMapper.findByMailId(sourceMail.getId())
+            : Collections.emptyList();
+        if (!sourceAttachments.isEmpty()) {
+            List<Attachment> clones = new ArrayList<>(inboxMails.size() * sourceAttachments.size());
+            for (Mail inboxMail : inboxMails) {
+                clones.addAll(cloneAttachments(sourceAttachments, inboxMail.getId()));
             }
+            attachmentMapper.batchInsert(clones);
+        }
+        log.debug("Mail {} delivered to {} local inbox(es)", sourceMail.getId(), inboxMails.size());
+    }
+
+    private Mail buildInboxCopy(Mail sourceMail, RecipientInfo recipient, MailAccount targetAccount,
+                                LocalDateTime receiveTime) {
+        Mail inboxMail = new Mail();
+        inboxMail.setUserId(targetAccount.getUserId());
+        inboxMail.setAccountId(targetAccount.getId());
+        inboxMail.setFolder("inbox");
+        inboxMail.setFromAddress(sourceMail.getFromAddress());
+        if (recipient.type() == RecipientType.BCC) {
+            inboxMail.setToAddress(recipient.address());
+            inboxMail.setCcAddress(null);
+        } else {
+            inboxMail.setToAddress(sourceMail.getToAddress());
+            inboxMail.setCcAddress(sourceMail.getCcAddress());
+        }
+        inboxMail.setBccAddress(null); // 收件箱副本不应暴露密送名单
+        inboxMail.setSubject(sourceMail.getSubject());
+        inboxMail.setContent(sourceMail.getContent());
+        inboxMail.setPlainContent(sourceMail.getPlainContent());
+        inboxMail.setIsRead(false);
+        inboxMail.setIsStarred(false);
+        inboxMail.setIsDeleted(false);
+        inboxMail.setHasAttachment(sourceMail.getHasAttachment());
+        inboxMail.setPriority(sourceMail.getPriority());
+        inboxMail.setSendTime(sourceMail.getSendTime());
+        inboxMail.setReceiveTime(receiveTime);
+        return inboxMail;
+    }
 
-            log.debug("Mail {} delivered to inbox of user {} via address {}",
-                sourceMail.getId(), inboxMail.getUserId(), address);
+    /**
+     * 收件箱副本一行的大致字节数，按UTF-8每字符最多3字节估算；副本的正文与原邮件相同，密送副本的收件人更短
+     */
+    private long estimateRowBytes(Mail mail) {
+        long chars = 0;
+        for (String value : new String[]{mail.getFromAddress(), mail.getToAddress(), mail.getCcAddress(),
+            mail.getSubject(), mail.getContent(), mail.getPlainContent()}) {
+            chars += value == null ? 0 : value.length();
         }
+        return chars * 3 + 256;
     }
 
-    private List<RecipientInfo> collectRecipientInfos(Mail mail) {
+    // 包内可见，供基准测试调用
+    List<RecipientInfo> collectRecipientInfos(Mail mail) {
         Map<String, RecipientInfo> normalized = new LinkedHashMap<>();
         addAddresses(normalized, mail.getBccAddress(), RecipientType.BCC);
         addAddresses(normalized, mail.getCcAddress(), RecipientType.CC);
@@ -501,7 +781,8 @@ public class MailServiceImpl implements MailService {
         mails.forEach(this::sanitizeMailVisibility);
     }
 
-    private void applyHighlight(List<Mail> mails, String keyword) {
+    // 包内可见，供基准测试调用
+    void applyHighlight(List<Mail> mails, String keyword) {
         if (mails == null || mails.isEmpty() || !StringUtils.hasText(keyword)) {
             return;
         }
@@ -530,7 +811,8 @@ public class MailServiceImpl implements MailService {
         return sb.toString();
     }
 
-    private String buildSnippet(String text, Pattern pattern, int maxLen) {
+    // 包内可见，供基准测试调用
+    String buildSnippet(String text, Pattern pattern, int maxLen) {
         if (!StringUtils.hasText(text)) {
             return "";
         }
@@ -612,13 +894,19 @@ public class MailServiceImpl implements MailService {
         return String.join(",", normalized.values());
     }
 
-    private enum RecipientType {
+    enum RecipientType {
         TO,
         CC,
         BCC
     }
 
-    private static class RecipientInfo {
+    /**
+     * 一封入站邮件及其待写入的收件箱邮件；写入时发现的重复邮箱会从mails中移除
+     */
+    private record InboundMessage(ParsedMail parsedMail, String messageKey, List<Mail> mails) {
+    }
+
+    static class RecipientInfo {
         private final String address;
         private final RecipientType type;
 
@@ -649,10 +937,7 @@ public class MailServiceImpl implements MailService {
         return value.trim();
     }
 
-    private void copyAttachments(List<Attachment> sourceAttachments, Long targetMailId) {
-        if (sourceAttachments == null || sourceAttachments.isEmpty()) {
-            return;
-        }
+    private List<Attachment> cloneAttachments(List<Attachment> sourceAttachments, Long targetMailId) {
         List<Attachment> clones = new ArrayList<>();
         for (Attachment attachment : sourceAttachments) {
             Attachment clone = new Attachment();
@@ -663,47 +948,45 @@ public class MailServiceImpl implements MailService {
             clone.setStoragePath(attachment.getStoragePath());
             clones.add(clone);
         }
-        attachmentMapper.batchInsert(clones);
+        return clones;
     }
 
-    private void sendOutbound(Mail mail) {
+    /**
+     * 外部收件人写入发件箱，与邮件在同一事务中提交，由 {@link OutboundMailQueue} 在提交后异步投递
+     * 同一地址出现在多处时只投递一次，按收件人、抄送、密送的顺序取第一次出现的类型
+     */
+    private void enqueueOutbound(Mail mail) {
         if (mail == null) {
             return;
         }
-        Mail outboundMail = buildOutboundMail(mail);
-        if (outboundMail == null) {
+        Map<String, MailDelivery> deliveries = new LinkedHashMap<>();
+        addOutboundRecipients(deliveries, mail.getToAddress(), RecipientType.TO);
+        addOutboundRecipients(deliveries, mail.getCcAddress(), RecipientType.CC);
+        addOutboundRecipients(deliveries, mail.getBccAddress(), RecipientType.BCC);
+        if (deliveries.isEmpty()) {
             log.info("Skip outbound SMTP: internal-only recipients mailId={}", mail.getId());
             return;
         }
-        List<Attachment> attachments = Boolean.TRUE.equals(mail.getHasAttachment())
-            ? attachmentMapper.findByMailId(mail.getId())
-            : Collections.emptyList();
-        outboundMailSender.send(outboundMail, attachments);
+        outboundMailQueue.enqueue(mail.getId(), new ArrayList<>(deliveries.values()));
     }
 
-    private Mail buildOutboundMail(Mail source) {
-        String toAddress = filterExternalRecipients(source.getToAddress());
-        String ccAddress = filterExternalRecipients(source.getCcAddress());
-        String bccAddress = filterExternalRecipients(source.getBccAddress());
-
-        if (!StringUtils.hasText(toAddress) && !StringUtils.hasText(ccAddress) && !StringUtils.hasText(bccAddress)) {
-            return null;
+    private void addOutboundRecipients(Map<String, MailDelivery> deliveries, String rawAddresses, RecipientType type) {
+        String external = filterExternalRecipients(rawAddresses);
+        if (external == null) {
+            return;
+        }
+        for (String address : external.split(",")) {
+            deliveries.computeIfAbsent(address.toLowerCase(), key -> {
+                MailDelivery delivery = new MailDelivery();
+                delivery.setRecipient(address);
+                delivery.setRecipientType(type.name());
+                return delivery;
+            });
         }
-
-        Mail mail = new Mail();
-        mail.setId(source.getId());
-        mail.setAccountId(source.getAccountId());
-        mail.setFromAddress(source.getFromAddress());
-        mail.setToAddress(toAddress);
-        mail.setCcAddress(ccAddress);
-        mail.setBccAddress(bccAddress);
-        mail.setSubject(source.getSubject());
-        mail.setContent(source.getContent());
-        mail.setPlainContent(source.getPlainContent());
-        return mail;
     }
 
-    private String filterExternalRecipients(String rawAddresses) {
+    // 包内可见，供基准测试调用
+    String filterExternalRecipients(String rawAddresses) {
         if (!StringUtils.hasText(rawAddresses)) {
             return null;
         }
@@ -753,7 +1036,7 @@ public class MailServiceImpl implements MailService {
         }
         for (Mail mail : dueMails) {
             try {
-                sendOutbound(mail);
+                enqueueOutbound(mail);
                 distributeToLocalRecipients(mail);
                 mail.setFolder("sent");
                 mail.setIsDeleted(false);
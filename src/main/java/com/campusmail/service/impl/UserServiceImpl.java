@@ -8,6 +8,7 @@ import com.campusmail.mapper.MailAccountMapper;
 import com.campusmail.mapper.UserMapper;
 import com.campusmail.service.JwtService;
 import com.campusmail.service.UserService;
+import com.campusmail.smtp.LocalRecipientDirectory;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
@@ -33,6 +34,7 @@ public class UserServiceImpl implements UserService {
     private final AuthenticationManager authenticationManager;
     private final UserDetailsService userDetailsService;
     private final SnowflakeIdGenerator idGen;
+    private final LocalRecipientDirectory recipientDirectory;
 
     public UserServiceImpl(UserMapper userMapper,
                            MailAccountMapper mailAccountMapper,
@@ -40,7 +42,8 @@ public class UserServiceImpl implements UserService {
                            JwtService jwtService,
                            AuthenticationManager authenticationManager,
                            UserDetailsService userDetailsService,
-                           SnowflakeIdGenerator idGen) {
+                           SnowflakeIdGenerator idGen,
+                           LocalRecipientDirectory recipientDirectory) {
         this.userMapper = userMapper;
         this.mailAccountMapper = mailAccountMapper;
         this.passwordEncoder = passwordEncoder;
@@ -48,6 +51,7 @@ public class UserServiceImpl implements UserService {
         this.authenticationManager = authenticationManager;
         this.userDetailsService = userDetailsService;
         this.idGen = idGen;
+        this.recipientDirectory = recipientDirectory;
     }
 
     @Override
@@ -70,12 +74,13 @@ public class UserServiceImpl implements UserService {
         MailAccount mailAccount = new MailAccount();
         mailAccount.setId(idGen.nextId());
         mailAccount.setUserId(user.getId());
-        mailAccount.setEmailAddress(request.getEmail());
+        mailAccount.setEmailAddress(LocalRecipientDirectory.normalize(request.getEmail()));
         mailAccount.setDisplayName(request.getUsername());
         mailAccount.setSmtpHost("localhost");
         mailAccount.setSmtpPort(25);
         mailAccount.setIsDefault(true);
         mailAccountMapper.insert(mailAccount);
+        recipientDirectory.add(mailAccount.getEmailAddress());
 
         return user;
     }
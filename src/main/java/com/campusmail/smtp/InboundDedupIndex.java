@@ -0,0 +1,123 @@
+package com.campusmail.smtp;
+
+import com.campusmail.entity.Attachment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 入站邮件去重索引 - 发送方等待250超时后重发同一封邮件时，已投递过的邮箱不再重复入库
+ * 去重键按收件邮箱计算：有Message-ID时取Message-ID，没有时取发件人、To、主题、Date、正文和附件的摘要
+ *
+ * 这里只保存最近一段时间内入库过的（邮箱, 去重键），数量和时间都有上限，作为快速路径；
+ * 重启后重放队列或并发投递同一封邮件时由 mail 表的唯一键 (account_id, message_key) 兜底
+ */
+@Component
+public class InboundDedupIndex {
+
+    private final long windowMillis;
+    private final int maxEntries;
+    // 按插入顺序排列，最早的在前；过期或超出数量时从头部淘汰
+    private final LinkedHashMap<Entry, Long> entries = new LinkedHashMap<>();
+
+    public InboundDedupIndex(@Value("${smtp.dedup.window-seconds:86400}") long windowSeconds,
+                             @Value("${smtp.dedup.max-entries:200000}") int maxEntries) {
+        this.windowMillis = windowSeconds * 1000;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * 去重键：SHA-256十六进制（64位），Message-ID和内容摘要加不同前缀，两种键不会相互冲突
+     */
+    public static String messageKey(ParsedMail parsedMail) {
+        MessageDigest digest = sha256();
+        String messageId = normalizeMessageId(parsedMail.getMessageId());
+        if (messageId != null) {
+            update(digest, "id");
+            update(digest, messageId);
+        } else {
+            update(digest, "content");
+            update(digest, parsedMail.getFrom());
+            // 取To头而不是信封收件人：重发时信封可能只含上次未成功的收件人
+            update(digest, parsedMail.getHeader("To"));
+            update(digest, parsedMail.getSubject());
+            update(digest, parsedMail.getHeader("Date"));
+            update(digest, parsedMail.getBody());
+            update(digest, parsedMail.getHtmlBody());
+            // 附件文件每次解析都会写出新文件，只取文件名和大小
+            for (Attachment attachment : parsedMail.getAttachments()) {
+                update(digest, attachment.getFileName());
+                update(digest, String.valueOf(attachment.getFileSize()));
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public synchronized boolean contains(Long accountId, String messageKey) {
+        Long storedAt = entries.get(new Entry(accountId, messageKey));
+        return storedAt != null && System.currentTimeMillis() - storedAt < windowMillis;
+    }
+
+    /**
+     * 记录已入库的邮箱，应在事务提交后调用，否则回滚的邮件会被误判为重复
+     */
+    public synchronized void add(Long accountId, String messageKey) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(accountId, messageKey);
+        // 重新插入以移到尾部，保持按时间排序
+        entries.remove(entry);
+        entries.put(entry, now);
+        Iterator<Map.Entry<Entry, Long>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Entry, Long> eldest = it.next();
+            if (entries.size() <= maxEntries && now - eldest.getValue() < windowMillis) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 去掉首尾空白和尖括号；空值视为没有Message-ID
+     */
+    private static String normalizeMessageId(String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+        String value = messageId.trim();
+        if (value.startsWith("<") && value.endsWith(">")) {
+            value = value.substring(1, value.length() - 1).trim();
+        }
+        return value.isEmpty() ? null : value;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        // 分隔符，避免字段拼接后产生歧义
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256不可用", e);
+        }
+    }
+
+    private record Entry(Long accountId, String messageKey) {
+    }
+}
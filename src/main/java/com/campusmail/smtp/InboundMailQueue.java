@@ -0,0 +1,814 @@
+package com.campusmail.smtp;
+
+import com.campusmail.entity.Mail;
+import com.campusmail.service.MailService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 入站邮件持久化队列 - SMTP会话只负责把邮件追加到磁盘并fsync，解析和入库由独立的投递线程完成
+ *
+ * 存储结构：
+ * segment-N.log 追加写的段文件，每条记录为 [魔数][信封长度][信封][正文长度][正文][CRC32]
+ * acks.idx      已投递记录的索引，每条为 [段号][记录偏移]
+ * 启动时扫描段文件，跳过已确认的记录并重新投递其余记录；段内记录全部投递后删除该段
+ * 投递失败（如数据库不可用）按指数退避重试，邮件在确认前始终保留在磁盘上；
+ * 重试smtp.queue.max-attempts次仍失败的邮件（解析出错、字段超长等无法入库的邮件）写入dead-letter目录后确认，
+ * 不再阻止段文件删除，需人工处理后重新投递
+ *
+ * 组提交：
+ * 追加记录后由一个会话执行fsync，覆盖此前所有已追加的记录，同时等待的会话在fsync完成后一起回复250
+ * 投递线程只解析邮件，解析结果交给入库线程：第一封到达后最多等待smtp.persist.batch-delay-ms，
+ * 或攒够smtp.persist.batch-size封，在一个事务中写入，提交后一次fsync确认整批；整批失败时逐封重试入库
+ */
+@Component
+public class InboundMailQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(InboundMailQueue.class);
+
+    private static final int RECORD_MAGIC = 0x534D5451;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_FILE = "acks.idx";
+    private static final String DEAD_LETTER_DIR = "dead-letter";
+    private static final int ACK_RECORD_SIZE = 16;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final long INITIAL_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 10 * 60 * 1000;
+
+    private final MailService mailService;
+    private final MailParser mailParser;
+    private final SMTPSessionMonitor sessionMonitor;
+    private final Path queueDir;
+    private final long segmentSize;
+    private final int maxAttempts;
+    private final int deliveryThreads;
+    private final int persistBatchSize;
+    private final long persistBatchDelayMs;
+
+    // 段文件追加和确认都在该锁内进行；使用ReentrantLock避免虚拟线程pinning
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Long, AtomicInteger> pendingBySegment = new HashMap<>();
+    private long currentSegment;
+    private FileChannel segmentChannel;
+    private FileChannel ackChannel;
+    // 已追加的记录数，在lock内递增；已fsync覆盖的记录数，只在syncLock内推进
+    private long appendedRecords;
+    private volatile long syncedRecords;
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private ScheduledThreadPoolExecutor deliveryExecutor;
+    // 等待入库的邮件，容量有限，入库跟不上时阻塞投递线程
+    private BlockingQueue<ParsedEntry> persistQueue;
+    private Thread persistThread;
+    private volatile boolean persisting;
+
+    public InboundMailQueue(MailService mailService,
+                            MailParser mailParser,
+                            SMTPSessionMonitor sessionMonitor,
+                            @Value("${smtp.queue.dir:./smtp-queue}") String queueDir,
+                            @Value("${smtp.queue.segment-size:67108864}") long segmentSize,
+                            @Value("${smtp.queue.max-attempts:20}") int maxAttempts,
+                            @Value("${smtp.max-concurrent-deliveries:10}") int deliveryThreads,
+                            @Value("${smtp.persist.batch-size:32}") int persistBatchSize,
+                            @Value("${smtp.persist.batch-delay-ms:5}") long persistBatchDelayMs) {
+        this.mailService = mailService;
+        this.mailParser = mailParser;
+        this.sessionMonitor = sessionMonitor;
+        this.queueDir = Paths.get(queueDir).toAbsolutePath().normalize();
+        this.segmentSize = segmentSize;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.deliveryThreads = Math.max(1, deliveryThreads);
+        this.persistBatchSize = Math.max(1, persistBatchSize);
+        this.persistBatchDelayMs = Math.max(0, persistBatchDelayMs);
+    }
+
+    @PostConstruct
+    public void start() {
+        List<Entry> pending;
+        try {
+            Files.createDirectories(queueDir);
+            pending = recover();
+            openSegment(currentSegment + 1);
+        } catch (IOException e) {
+            throw new RuntimeException("无法初始化SMTP投递队列", e);
+        }
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        deliveryExecutor = new ScheduledThreadPoolExecutor(deliveryThreads,
+            r -> new Thread(r, "SMTP-Delivery-" + threadIndex.getAndIncrement()));
+        // 停止时不再等待退避中的重试，未确认的邮件下次启动时重放
+        deliveryExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // 排队数包括退避等待中的重试
+        sessionMonitor.monitorExecutor("delivery", deliveryExecutor);
+        if (persistBatchSize > 1) {
+            persistQueue = new LinkedBlockingQueue<>(persistBatchSize * 4);
+            persisting = true;
+            persistThread = new Thread(this::persistLoop, "SMTP-Persist");
+            persistThread.start();
+        }
+        if (!pending.isEmpty()) {
+            log.info("Replaying {} undelivered SMTP messages from {}", pending.size(), queueDir);
+        }
+        pending.forEach(this::schedule);
+    }
+
+    /**
+     * 将邮件追加到段文件并fsync，返回后邮件即使进程崩溃也不会丢失
+     * fsync失败时记录仍留在段文件中，重启后重放；发送方收到错误后重发造成的重复由入站去重处理
+     */
+    public void enqueue(String mailFrom, List<String> rcptTo, MessageSpool data) throws IOException {
+        byte[] envelope = encodeEnvelope(mailFrom, rcptTo);
+        Entry entry;
+        long sequence;
+        lock.lock();
+        try {
+            if (segmentChannel.size() >= segmentSize) {
+                rollSegment();
+            }
+            entry = append(envelope, mailFrom, rcptTo, data);
+            sequence = ++appendedRecords;
+            pendingBySegment.computeIfAbsent(currentSegment, k -> new AtomicInteger()).incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        sync(sequence);
+        schedule(entry);
+    }
+
+    /**
+     * 组提交：等待fsync覆盖第sequence条记录
+     * 持有syncLock的线程一次fsync覆盖此前追加的所有记录，排队等待的线程醒来后发现自己的记录已落盘，直接返回；
+     * fsync期间其他会话仍可以继续追加，下一次fsync一并覆盖
+     */
+    private void sync(long sequence) throws IOException {
+        if (syncedRecords >= sequence) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (syncedRecords >= sequence) {
+                return;
+            }
+            long target;
+            FileChannel channel;
+            lock.lock();
+            try {
+                target = appendedRecords;
+                channel = segmentChannel;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // 期间切换了段文件：rollSegment在关闭旧段前已fsync
+                if (!isRolledSegment(channel)) {
+                    throw e;
+                }
+            }
+            syncedRecords = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private boolean isRolledSegment(FileChannel channel) {
+        lock.lock();
+        try {
+            return channel != segmentChannel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry append(byte[] envelope, String mailFrom, List<String> rcptTo, MessageSpool data) throws IOException {
+        long offset = segmentChannel.size();
+        segmentChannel.position(offset);
+        try {
+            CRC32 crc = new CRC32();
+            ByteBuffer header = ByteBuffer.allocate(8 + envelope.length + 8);
+            header.putInt(RECORD_MAGIC).putInt(envelope.length).put(envelope).putLong(data.size()).flip();
+            crc.update(envelope);
+            writeFully(header);
+
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            try (InputStream in = data.openInputStream()) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, n);
+                    writeFully(ByteBuffer.wrap(buffer, 0, n));
+                }
+            }
+            writeFully(ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip());
+        } catch (IOException e) {
+            // 去掉写了一半的记录，保持段文件可以顺序扫描
+            segmentChannel.truncate(offset);
+            throw e;
+        }
+        long bodyOffset = offset + 8 + envelope.length + 8;
+        return new Entry(currentSegment, offset, mailFrom, rcptTo, bodyOffset, data.size());
+    }
+
+    /**
+     * 在投递线程中解析，交给入库线程批量入库；batch-size为1时直接逐封入库
+     * 失败时按指数退避重新调度
+     */
+    private void deliver(Entry entry) {
+        ParsedMail parsedMail = null;
+        boolean stored = false;
+        boolean handedOff = false;
+        try (InputStream in = openBody(entry)) {
+            long start = System.nanoTime();
+            parsedMail = mailParser.parse(in, entry.mailFrom, entry.rcptTo);
+            sessionMonitor.record(SMTPSessionMonitor.Phase.PARSE, start);
+            if (persistQueue != null) {
+                persistQueue.put(new ParsedEntry(entry, parsedMail, System.nanoTime()));
+                handedOff = true;
+                return;
+            }
+            // 没有本地收件人时不会入库，附件文件随之清理
+            start = System.nanoTime();
+            stored = !mailService.createMail(parsedMail).isEmpty();
+            sessionMonitor.record(SMTPSessionMonitor.Phase.PERSIST, start);
+        } catch (Exception e) {
+            retry(entry, e);
+            return;
+        } finally {
+            if (parsedMail != null && !stored && !handedOff) {
+                mailParser.discardAttachments(parsedMail);
+            }
+        }
+        acknowledge(List.of(entry));
+    }
+
+    /**
+     * 按指数退避重新调度；达到最大尝试次数后转入dead-letter目录并确认，只在此时记录一次异常堆栈
+     */
+    private void retry(Entry entry, Exception e) {
+        entry.attempts++;
+        if (entry.attempts >= maxAttempts) {
+            try {
+                Path file = writeDeadLetter(entry, e);
+                log.error("Queued mail from {} to {} failed {} times, moved to {}",
+                    entry.mailFrom, entry.rcptTo, entry.attempts, file, e);
+                acknowledge(List.of(entry));
+                return;
+            } catch (IOException ioe) {
+                log.error("Error writing dead letter for queued mail {}:{}, keeping it queued",
+                    entry.segment, entry.offset, ioe);
+            }
+        }
+        long delay = Math.min(MAX_RETRY_DELAY_MS, INITIAL_RETRY_DELAY_MS << Math.min(entry.attempts - 1, 20));
+        log.warn("Error delivering queued mail from {} (attempt {}/{}), retrying in {} ms: {}",
+            entry.mailFrom, entry.attempts, maxAttempts, delay, e.toString());
+        schedule(entry, delay);
+    }
+
+    /**
+     * 写出原始邮件（段号-偏移.eml）和信封及失败原因（.envelope），fsync后才确认队列中的记录
+     */
+    private Path writeDeadLetter(Entry entry, Exception e) throws IOException {
+        Path dir = queueDir.resolve(DEAD_LETTER_DIR);
+        Files.createDirectories(dir);
+        String name = entry.segment + "-" + entry.offset;
+        Path message = dir.resolve(name + ".eml");
+        try (InputStream in = openBody(entry);
+             FileChannel out = FileChannel.open(message, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+            }
+            out.force(false);
+        }
+        StringBuilder envelope = new StringBuilder();
+        envelope.append("MAIL FROM: ").append(entry.mailFrom).append('\n');
+        entry.rcptTo.forEach(rcpt -> envelope.append("RCPT TO: ").append(rcpt).append('\n'));
+        envelope.append("Attempts: ").append(entry.attempts).append('\n');
+        envelope.append("Error: ").append(e).append('\n');
+        try (FileChannel out = FileChannel.open(dir.resolve(name + ".envelope"), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = ByteBuffer.wrap(envelope.toString().getBytes(StandardCharsets.UTF_8));
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+            out.force(false);
+        }
+        // 新建的文件和目录本身都要落盘，确认后队列中的记录不再保留
+        forceDirectory(dir);
+        forceDirectory(queueDir);
+        return message;
+    }
+
+    /**
+     * 入库线程：取出第一封后在batch-delay-ms内继续收集，最多batch-size封一起入库
+     * 入库期间到达的邮件留在队列中，负载越高批次越大
+     */
+    private void persistLoop() {
+        List<ParsedEntry> batch = new ArrayList<>(persistBatchSize);
+        while (persisting || !persistQueue.isEmpty()) {
+            try {
+                ParsedEntry first = persistQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(persistBatchDelayMs);
+                while (batch.size() < persistBatchSize) {
+                    ParsedEntry next = persistQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                persistBatch(batch);
+            } catch (InterruptedException e) {
+                // 停止超时被中断，未确认的邮件下次启动时重放
+                batch.forEach(parsed -> mailParser.discardAttachments(parsed.parsedMail()));
+                return;
+            } catch (RuntimeException e) {
+                // 与逐封入库失败相同：清理附件，按退避重新解析投递，不留到下次启动
+                log.warn("Error persisting SMTP mail batch of {}: {}", batch.size(), e.toString());
+                for (ParsedEntry parsed : batch) {
+                    mailParser.discardAttachments(parsed.parsedMail());
+                    retry(parsed.entry(), e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 整批在一个事务中入库，提交后一次确认；整批回滚时逐封入库，一封邮件的问题不影响同批的其他邮件
+     */
+    private void persistBatch(List<ParsedEntry> batch) {
+        List<List<Mail>> stored;
+        try {
+            stored = mailService.createMails(batch.stream().map(ParsedEntry::parsedMail).toList());
+        } catch (Exception e) {
+            log.warn("Error persisting batch of {} SMTP mails, storing them one by one: {}", batch.size(), e.toString());
+            persistIndividually(batch);
+            return;
+        }
+        List<Entry> delivered = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            ParsedEntry parsed = batch.get(i);
+            // 耗时从交给入库线程算起，包括等待同批邮件和排队的时间
+            sessionMonitor.record(SMTPSessionMonitor.Phase.PERSIST, parsed.handedOffAt());
+            if (stored.get(i).isEmpty()) {
+                mailParser.discardAttachments(parsed.parsedMail());
+            }
+            delivered.add(parsed.entry());
+        }
+        log.debug("Persisted batch of {} SMTP mails", batch.size());
+        acknowledge(delivered);
+    }
+
+    private void persistIndividually(List<ParsedEntry> batch) {
+        List<Entry> delivered = new ArrayList<>(batch.size());
+        for (ParsedEntry parsed : batch) {
+            boolean stored = false;
+            try {
+                stored = !mailService.createMail(parsed.parsedMail()).isEmpty();
+                sessionMonitor.record(SMTPSessionMonitor.Phase.PERSIST, parsed.handedOffAt());
+                delivered.add(parsed.entry());
+            } catch (Exception e) {
+                retry(parsed.entry(), e);
+            } finally {
+                if (!stored) {
+                    mailParser.discardAttachments(parsed.parsedMail());
+                }
+            }
+        }
+        acknowledge(delivered);
+    }
+
+    private void schedule(Entry entry) {
+        schedule(entry, 0);
+    }
+
+    private void schedule(Entry entry, long delayMs) {
+        try {
+            deliveryExecutor.schedule(() -> deliver(entry), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 正在停止，邮件已落盘，下次启动时重放
+            log.debug("Delivery executor stopped, mail from {} stays queued", entry.mailFrom);
+        }
+    }
+
+    /**
+     * 确认已入库的邮件：一批确认记录一次写入、一次fsync
+     * 确认未落盘时重启后会再次投递，由入站去重跳过已入库的邮箱
+     */
+    private void acknowledge(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            ByteBuffer ack = ByteBuffer.allocate(ACK_RECORD_SIZE * entries.size());
+            for (Entry entry : entries) {
+                ack.putLong(entry.segment).putLong(entry.offset);
+            }
+            ack.flip();
+            while (ack.hasRemaining()) {
+                ackChannel.write(ack);
+            }
+            ackChannel.force(false);
+
+            for (Entry entry : entries) {
+                AtomicInteger pending = pendingBySegment.get(entry.segment);
+                if (pending != null && pending.decrementAndGet() == 0 && entry.segment != currentSegment) {
+                    pendingBySegment.remove(entry.segment);
+                    Files.deleteIfExists(segmentPath(entry.segment));
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error acknowledging {} queued mail(s), first {}:{}", entries.size(),
+                entries.get(0).segment, entries.get(0).offset, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private InputStream openBody(Entry entry) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(entry.segment), StandardOpenOption.READ);
+        return new BufferedInputStream(new RegionInputStream(channel, entry.bodyOffset, entry.bodyLength, true), 8192);
+    }
+
+    /**
+     * 启动恢复：读取确认索引，扫描全部段文件，返回尚未投递的记录
+     * 末尾不完整或校验失败的记录（写入过程中崩溃）会被截断；已全部确认的段直接删除，确认索引同时压缩
+     */
+    private List<Entry> recover() throws IOException {
+        Set<Long> acked = readAcks();
+        List<Entry> pending = new ArrayList<>();
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (var files = Files.list(queueDir)) {
+            files.forEach(path -> {
+                Long id = parseSegmentId(path.getFileName().toString());
+                if (id != null) {
+                    segments.put(id, path);
+                }
+            });
+        }
+
+        List<long[]> retainedAcks = new ArrayList<>();
+        for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+            long id = segment.getKey();
+            int remaining = 0;
+            List<Long> ackedOffsets = new ArrayList<>();
+            for (Entry entry : scanSegment(id, segment.getValue())) {
+                if (acked.contains(ackKey(id, entry.offset))) {
+                    ackedOffsets.add(entry.offset);
+                } else {
+                    pending.add(entry);
+                    remaining++;
+                }
+            }
+            if (remaining == 0) {
+                Files.deleteIfExists(segment.getValue());
+            } else {
+                pendingBySegment.put(id, new AtomicInteger(remaining));
+                ackedOffsets.forEach(offset -> retainedAcks.add(new long[]{id, offset}));
+            }
+            currentSegment = Math.max(currentSegment, id);
+        }
+
+        rewriteAcks(retainedAcks);
+        return pending;
+    }
+
+    private List<Entry> scanSegment(long id, Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long offset = 0;
+            long size = channel.size();
+            while (offset < size) {
+                Entry entry = readRecord(channel, id, offset, size);
+                if (entry == null) {
+                    log.warn("Truncating incomplete SMTP queue record at {}:{}", path.getFileName(), offset);
+                    channel.truncate(offset);
+                    channel.force(false);
+                    break;
+                }
+                entries.add(entry);
+                offset = entry.bodyOffset + entry.bodyLength + 4;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 读取并校验一条记录，记录不完整或CRC不符时返回null
+     */
+    private Entry readRecord(FileChannel channel, long id, long offset, long size) throws IOException {
+        if (size - offset < 8) {
+            return null;
+        }
+        ByteBuffer head = readAt(channel, offset, 8);
+        if (head.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+        int envelopeLength = head.getInt();
+        if (envelopeLength < 0 || size - offset - 8 < envelopeLength + 8L) {
+            return null;
+        }
+        byte[] envelope = readAt(channel, offset + 8, envelopeLength).array();
+        long bodyOffset = offset + 8 + envelopeLength + 8;
+        long bodyLength = readAt(channel, offset + 8 + envelopeLength, 8).getLong();
+        if (bodyLength < 0 || size - bodyOffset < bodyLength + 4) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(envelope);
+        try (InputStream in = new RegionInputStream(channel, bodyOffset, bodyLength, false)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        if (readAt(channel, bodyOffset + bodyLength, 4).getInt() != (int) crc.getValue()) {
+            return null;
+        }
+
+        String[] fields = new String(envelope, StandardCharsets.UTF_8).split("\n", -1);
+        List<String> rcptTo = new ArrayList<>(Arrays.asList(fields).subList(1, fields.length));
+        return new Entry(id, offset, fields[0], rcptTo, bodyOffset, bodyLength);
+    }
+
+    private Set<Long> readAcks() throws IOException {
+        Set<Long> acked = new HashSet<>();
+        Path ackPath = queueDir.resolve(ACK_FILE);
+        if (!Files.exists(ackPath)) {
+            return acked;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(ackPath));
+        // 末尾不足一条的部分是写入时崩溃留下的，忽略
+        while (buffer.remaining() >= ACK_RECORD_SIZE) {
+            acked.add(ackKey(buffer.getLong(), buffer.getLong()));
+        }
+        return acked;
+    }
+
+    private void rewriteAcks(List<long[]> acks) throws IOException {
+        Path ackPath = queueDir.resolve(ACK_FILE);
+        Path tmp = queueDir.resolve(ACK_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(ACK_RECORD_SIZE);
+            for (long[] ack : acks) {
+                buffer.clear();
+                buffer.putLong(ack[0]).putLong(ack[1]).flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, ackPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // 重命名只有目录落盘后才持久，否则断电后可能回到旧的确认索引
+        forceDirectory(queueDir);
+        ackChannel = FileChannel.open(ackPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void rollSegment() throws IOException {
+        long previous = currentSegment;
+        // 旧段上可能有尚未被组提交覆盖的记录
+        segmentChannel.force(false);
+        segmentChannel.close();
+        openSegment(previous + 1);
+        AtomicInteger pending = pendingBySegment.get(previous);
+        if (pending == null || pending.get() == 0) {
+            pendingBySegment.remove(previous);
+            Files.deleteIfExists(segmentPath(previous));
+        }
+    }
+
+    private void openSegment(long id) throws IOException {
+        currentSegment = id;
+        segmentChannel = FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.READ);
+        // 段文件的目录项落盘后，写入其中并fsync的邮件才能在断电后找到
+        forceDirectory(queueDir);
+    }
+
+    /**
+     * fsync目录，使其中新建、重命名的文件项持久化；文件本身的force不包含目录项
+     */
+    private static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return queueDir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static Long parseSegmentId(String fileName) {
+        if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long ackKey(long segment, long offset) {
+        // 段号和段内偏移合并为一个long，段大小远小于2^40
+        return (segment << 40) | offset;
+    }
+
+    private static byte[] encodeEnvelope(String mailFrom, List<String> rcptTo) {
+        StringBuilder envelope = new StringBuilder(mailFrom);
+        for (String rcpt : rcptTo) {
+            envelope.append('\n').append(rcpt);
+        }
+        return envelope.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of queue segment");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            segmentChannel.write(buffer);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (deliveryExecutor != null) {
+            deliveryExecutor.shutdown();
+            try {
+                if (!deliveryExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    deliveryExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                deliveryExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        stopPersisting();
+        lock.lock();
+        try {
+            closeQuietly(segmentChannel);
+            closeQuietly(ackChannel);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 投递线程已停止，入库线程处理完队列中剩余的邮件后退出
+     */
+    private void stopPersisting() {
+        if (persistThread == null) {
+            return;
+        }
+        persisting = false;
+        try {
+            persistThread.join(10_000);
+            if (persistThread.isAlive()) {
+                persistThread.interrupt();
+                persistThread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            persistThread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing SMTP queue file", e);
+        }
+    }
+
+    /**
+     * 队列中的一条邮件记录
+     */
+    private static class Entry {
+        final long segment;
+        final long offset;
+        final String mailFrom;
+        final List<String> rcptTo;
+        final long bodyOffset;
+        final long bodyLength;
+        int attempts = 0;
+
+        Entry(long segment, long offset, String mailFrom, List<String> rcptTo, long bodyOffset, long bodyLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.mailFrom = mailFrom;
+            this.rcptTo = rcptTo;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+        }
+    }
+
+    /**
+     * 已解析、等待入库的邮件
+     */
+    private record ParsedEntry(Entry entry, ParsedMail parsedMail, long handedOffAt) {
+    }
+
+    /**
+     * 读取段文件中一段区域的输入流
+     */
+    private static class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private final boolean ownsChannel;
+        private long position;
+        private final long end;
+
+        RegionInputStream(FileChannel channel, long offset, long length, boolean ownsChannel) {
+            this.channel = channel;
+            this.ownsChannel = ownsChannel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(data, offset, (int) Math.min(length, end - position)), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (ownsChannel) {
+                channel.close();
+            }
+        }
+    }
+}
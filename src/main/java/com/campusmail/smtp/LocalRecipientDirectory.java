@@ -0,0 +1,207 @@
+package com.campusmail.smtp;
+
+import com.campusmail.mapper.MailAccountMapper;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地收件人目录 - 内存中保存全部已绑定的邮箱地址，RCPT TO据此直接回复250/550，不访问数据库
+ * 启动时从mail_account全量加载，之后由注册和MailAccountServiceImpl在账号增删改时同步更新
+ * 地址统一按小写保存；查询先经过一个紧凑的布隆过滤器，绝大多数不存在的地址在这里就被拒绝
+ */
+@Component
+public class LocalRecipientDirectory {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalRecipientDirectory.class);
+
+    // 过滤器每个地址占用的位数，4个哈希函数下误判率约1%
+    private static final int BITS_PER_ADDRESS = 10;
+    private static final int MIN_FILTER_BITS = 1 << 13;
+
+    private final MailAccountMapper mailAccountMapper;
+
+    // 小写地址 -> 绑定该地址的账号数（地址没有唯一约束，可能被多个账号绑定）
+    private final ConcurrentHashMap<String, Integer> addresses = new ConcurrentHashMap<>();
+    private volatile AddressFilter filter = new AddressFilter(MIN_FILTER_BITS, 0);
+
+    public LocalRecipientDirectory(MailAccountMapper mailAccountMapper) {
+        this.mailAccountMapper = mailAccountMapper;
+    }
+
+    /**
+     * 从数据库全量加载地址并重建过滤器
+     */
+    @PostConstruct
+    public synchronized void load() {
+        List<String> emailAddresses;
+        try {
+            emailAddresses = mailAccountMapper.findAllEmailAddresses();
+        } catch (RuntimeException e) {
+            throw new RuntimeException("无法加载本地收件人目录", e);
+        }
+        Map<String, Integer> loaded = new HashMap<>();
+        for (String address : emailAddresses) {
+            if (address != null) {
+                loaded.merge(normalize(address), 1, Integer::sum);
+            }
+        }
+        addresses.clear();
+        addresses.putAll(loaded);
+        rebuildFilter();
+        log.info("Local recipient directory loaded with {} addresses", addresses.size());
+    }
+
+    /**
+     * 地址是否属于本地账号
+     */
+    public boolean contains(String address) {
+        if (address == null) {
+            return false;
+        }
+        String key = normalize(address);
+        return filter.mightContain(key) && addresses.containsKey(key);
+    }
+
+    /**
+     * 登记一个账号绑定的地址；在事务中调用时提交后才生效，回滚时目录保持不变
+     */
+    public void add(String address) {
+        if (address != null) {
+            afterCommit(() -> addNow(address));
+        }
+    }
+
+    /**
+     * 移除一个账号绑定的地址，事务语义同 {@link #add}
+     * 过滤器中残留的位只会造成误判，由映射兜底
+     */
+    public void remove(String address) {
+        if (address != null) {
+            afterCommit(() -> addresses.computeIfPresent(normalize(address), (key, count) -> count > 1 ? count - 1 : null));
+        }
+    }
+
+    public int size() {
+        return addresses.size();
+    }
+
+    /**
+     * 邮箱地址统一去掉首尾空白并转为小写，mail_account按该形式存储和查询
+     */
+    public static String normalize(String address) {
+        return address.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private void addNow(String address) {
+        String key = normalize(address);
+        // 先置过滤器位再写入映射，并发查询不会在映射已有地址时被过滤器拒绝
+        AddressFilter current = filter;
+        current.add(key);
+        addresses.merge(key, 1, Integer::sum);
+        if (filter != current) {
+            // 过滤器在此期间被重建，重建时可能还没看到该地址
+            filter.add(key);
+        } else if (current.countAddition()) {
+            rebuildFilter();
+        }
+    }
+
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private synchronized void rebuildFilter() {
+        int bits = MIN_FILTER_BITS;
+        // 按当前地址数的两倍预留，避免频繁重建
+        while (bits < 2L * addresses.size() * BITS_PER_ADDRESS && bits < (1 << 30)) {
+            bits <<= 1;
+        }
+        AddressFilter rebuilt = new AddressFilter(bits, addresses.size());
+        addresses.keySet().forEach(rebuilt::add);
+        filter = rebuilt;
+        // 切换后再补一遍：填充期间并发新增、但仍写入旧过滤器的地址（切换之后的新增由add自行补写）
+        addresses.keySet().forEach(rebuilt::add);
+    }
+
+    /**
+     * 布隆过滤器，4个哈希位由两个基础哈希组合得到（Kirsch-Mitzenmacher），位数为2的幂
+     */
+    private static final class AddressFilter {
+
+        private static final int HASHES = 4;
+
+        private final AtomicLongArray words;
+        private final int mask;
+        private final int capacity;
+        private final AtomicInteger added = new AtomicInteger();
+
+        AddressFilter(int bits, int initialCount) {
+            this.words = new AtomicLongArray(bits >>> 6);
+            this.mask = bits - 1;
+            this.capacity = bits / BITS_PER_ADDRESS;
+            this.added.set(initialCount);
+        }
+
+        void add(String key) {
+            int h1 = mix(key.hashCode());
+            int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (h1 + i * h2) & mask;
+                long flag = 1L << bit;
+                int word = bit >>> 6;
+                long current = words.get(word);
+                while ((current & flag) == 0 && !words.compareAndSet(word, current, current | flag)) {
+                    current = words.get(word);
+                }
+            }
+        }
+
+        boolean mightContain(String key) {
+            int h1 = mix(key.hashCode());
+            int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (h1 + i * h2) & mask;
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 记录一次新增，超过容量时返回true，需要按更大的位数重建
+         */
+        boolean countAddition() {
+            return added.incrementAndGet() > capacity;
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.campusmail.smtp;
+
+import jakarta.mail.internet.MimeUtility;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 邮件头索引 - 读取头部时逐行建立，只记录每个字段值在原始字节中的位置
+ * 字段值在第一次访问时才解码为字符串（UTF-8，RFC 6532）并展开折叠行，RFC 2047编码字在 {@link #get} 时按需解码并缓存
+ */
+public class MailHeaders {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private byte[] data = new byte[1024];
+    private int length = 0;
+
+    private int count = 0;
+    // 小写字段名，与值的起止位置一一对应
+    private String[] names = new String[16];
+    private int[] valueStarts = new int[16];
+    private int[] valueEnds = new int[16];
+    private String[] decodedValues = new String[16];
+    // 上一行是否属于已索引的字段，决定折叠行归属
+    private boolean fieldOpen = false;
+    // 字段名 -> 第一次出现的位置
+    private final Map<String, Integer> firstIndex = new HashMap<>();
+
+    /**
+     * 追加一行头部原始字节（不含行尾CRLF）
+     * 以空白开头的行是上一个字段的折叠行，没有冒号的行不建索引
+     */
+    public void appendLine(byte[] line, int offset, int lineLength) {
+        if (length > 0) {
+            write(CRLF, 0, CRLF.length);
+        }
+        int start = length;
+        write(line, offset, lineLength);
+
+        if (lineLength > 0 && (line[offset] == ' ' || line[offset] == '\t')) {
+            if (fieldOpen) {
+                valueEnds[count - 1] = length;
+            }
+            return;
+        }
+        int colon = -1;
+        for (int i = 0; i < lineLength; i++) {
+            if (line[offset + i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        fieldOpen = colon > 0;
+        if (!fieldOpen) {
+            return;
+        }
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            valueStarts = Arrays.copyOf(valueStarts, count * 2);
+            valueEnds = Arrays.copyOf(valueEnds, count * 2);
+            decodedValues = Arrays.copyOf(decodedValues, count * 2);
+        }
+        String name = new String(line, offset, colon, StandardCharsets.ISO_8859_1).trim().toLowerCase(Locale.ROOT);
+        names[count] = name;
+        valueStarts[count] = start + colon + 1;
+        valueEnds[count] = length;
+        firstIndex.putIfAbsent(name, count);
+        count++;
+    }
+
+    /**
+     * 字段值（展开折叠行），不解码RFC 2047编码字，适用于Content-Type等结构化字段
+     */
+    public String getRaw(String name) {
+        Integer index = firstIndex.get(name.toLowerCase(Locale.ROOT));
+        return index != null ? rawValue(index) : null;
+    }
+
+    /**
+     * 字段值，RFC 2047编码字（=?charset?B/Q?...?=）已解码，适用于Subject、From等
+     */
+    public String get(String name) {
+        Integer index = firstIndex.get(name.toLowerCase(Locale.ROOT));
+        if (index == null) {
+            return null;
+        }
+        if (decodedValues[index] == null) {
+            String raw = rawValue(index);
+            String decoded = raw;
+            if (raw.contains("=?")) {
+                try {
+                    decoded = MimeUtility.decodeText(raw);
+                } catch (UnsupportedEncodingException | RuntimeException e) {
+                    // 无法识别的编码字保持原样
+                }
+            }
+            decodedValues[index] = decoded;
+        }
+        return decodedValues[index];
+    }
+
+    /**
+     * 同名字段的全部值（如Received），不解码编码字
+     */
+    public List<String> getAll(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        if (!firstIndex.containsKey(key)) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<>();
+        for (int i = firstIndex.get(key); i < count; i++) {
+            if (names[i].equals(key)) {
+                values.add(rawValue(i));
+            }
+        }
+        return values;
+    }
+
+    public boolean contains(String name) {
+        return firstIndex.containsKey(name.toLowerCase(Locale.ROOT));
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 头部原文（各行以CRLF分隔）
+     */
+    public String toRawString() {
+        return new String(data, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private String rawValue(int index) {
+        String value = new String(data, valueStarts[index], valueEnds[index] - valueStarts[index], StandardCharsets.UTF_8);
+        // 展开折叠行：去掉CRLF，保留其后的空白
+        return value.replace("\r\n", "").trim();
+    }
+
+    private void write(byte[] bytes, int offset, int n) {
+        if (length + n > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+        }
+        System.arraycopy(bytes, offset, data, length, n);
+        length += n;
+    }
+}
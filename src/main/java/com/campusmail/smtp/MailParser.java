@@ -1,86 +1,312 @@
 package com.campusmail.smtp;
 
+import com.campusmail.entity.Attachment;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.ContentDisposition;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * 邮件解析器 - 解析SMTP DATA部分的邮件内容
- * 支持基本的邮件头和正文解析
+ * 流式解析MIME结构：逐行扫描暂存区，支持嵌套multipart，base64/quoted-printable边读边解码
+ * text/plain和text/html填充正文，其余部分直接写入附件目录，解码后的邮件不会整体驻留内存
+ * SMTP层只保存原始字节，字符集解码在这里进行且只做一次：头部按UTF-8（RFC 6532），正文按各部分声明的charset
+ * 邮件头和各部分的头部在读取时一次性建立 {@link MailHeaders} 索引，字段值按需解码
  */
 @Component
 public class MailParser {
 
     private static final Logger log = LoggerFactory.getLogger(MailParser.class);
 
+    // 嵌套multipart的最大层数，超过后按普通附件处理
+    private static final int MAX_MULTIPART_DEPTH = 10;
+    // 解析时按行读取的上限，更长的正文行分段处理，超长的头部行截断
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final Path uploadPath;
+
+    public MailParser(@Value("${file.upload-dir:./uploads}") String uploadDir) {
+        this.uploadPath = Paths.get(uploadDir).toAbsolutePath().normalize();
+        try {
+            Files.createDirectories(this.uploadPath);
+        } catch (IOException e) {
+            throw new RuntimeException("无法创建上传目录", e);
+        }
+    }
+
     /**
      * 解析邮件内容
+     * 从暂存区流式读取，不再持有原始邮件的完整副本；附件在解析过程中写入上传目录
      * @param rawData 原始邮件数据（包含头部和正文）
      * @param envelopeFrom SMTP信封发件人
      * @param envelopeTo SMTP信封收件人列表
-     * @return 解析后的邮件对象
+     * @return 解析后的邮件对象，附件尚未关联邮件ID
      */
-    public ParsedMail parse(String rawData, String envelopeFrom, List<String> envelopeTo) {
+    public ParsedMail parse(InputStream rawData, String envelopeFrom, List<String> envelopeTo) throws IOException {
         ParsedMail mail = new ParsedMail();
-        mail.setRawData(rawData);
         mail.setFrom(envelopeFrom);
         mail.setTo(envelopeTo);
 
+        SMTPLineReader reader = new SMTPLineReader(rawData, MAX_LINE_LENGTH);
+
         // 分离头部和正文（空行分隔）
-        int headerEnd = rawData.indexOf("\r\n\r\n");
-        if (headerEnd == -1) {
-            headerEnd = rawData.indexOf("\n\n");
+        MailHeaders headers = new MailHeaders();
+        if (!readHeaderBlock(reader, headers)) {
+            // 没有头部分隔行，整体作为正文
+            mail.setBody(headers.toRawString().strip());
+            return mail;
         }
+        mail.setHeaders(headers);
 
-        String headers;
-        String body;
-
-        if (headerEnd != -1) {
-            headers = rawData.substring(0, headerEnd);
-            body = rawData.substring(headerEnd).trim();
-        } else {
-            headers = "";
-            body = rawData;
+        try {
+            parseEntity(reader, headers, new ArrayList<>(), mail, 0);
+        } catch (IOException | RuntimeException e) {
+            discardAttachments(mail);
+            throw e;
+        }
+        if (mail.getBody() != null) {
+            mail.setBody(mail.getBody().strip());
+        } else if (mail.getHtmlBody() != null) {
+            mail.setBody(htmlToText(mail.getHtmlBody()));
         }
 
         // 解析头部
-        mail.setSubject(extractHeader(headers, "Subject"));
+        mail.setSubject(headers.get("Subject"));
 
         // 如果头部中有From，可以覆盖信封地址
-        String headerFrom = extractHeader(headers, "From");
+        String headerFrom = headers.get("From");
         if (headerFrom != null && !headerFrom.isEmpty()) {
             mail.setFrom(headerFrom);
         }
 
-        mail.setBody(body);
-
-        log.debug("Parsed mail: from={}, to={}, subject={}", mail.getFrom(), mail.getTo(), mail.getSubject());
+        log.debug("Parsed mail: from={}, to={}, subject={}, attachments={}",
+            mail.getFrom(), mail.getTo(), mail.getSubject(), mail.getAttachments().size());
 
         return mail;
     }
 
     /**
-     * 从邮件头中提取指定字段值
+     * 删除解析过程中已写入上传目录的附件文件（入库失败时调用）
      */
-    private String extractHeader(String headers, String headerName) {
-        String[] lines = headers.split("\r?\n");
-        StringBuilder value = new StringBuilder();
-        boolean found = false;
-
-        for (String line : lines) {
-            if (line.toLowerCase().startsWith(headerName.toLowerCase() + ":")) {
-                found = true;
-                value.append(line.substring(headerName.length() + 1).trim());
-            } else if (found && (line.startsWith(" ") || line.startsWith("\t"))) {
-                // 折叠行继续
-                value.append(" ").append(line.trim());
-            } else if (found) {
-                break;
+    public void discardAttachments(ParsedMail mail) {
+        for (Attachment attachment : mail.getAttachments()) {
+            try {
+                Files.deleteIfExists(uploadPath.resolve(attachment.getStoragePath()));
+            } catch (IOException e) {
+                log.warn("Error deleting attachment file {}", attachment.getStoragePath(), e);
             }
         }
+        mail.getAttachments().clear();
+    }
+
+    /**
+     * 解析一个MIME实体（头部已读取）的正文
+     * @param boundaries 外层multipart的边界，由外到内
+     * @return 结束该实体的分隔行信息
+     */
+    private MimePartInputStream parseEntity(SMTPLineReader reader, MailHeaders headers, List<byte[]> boundaries,
+                                            ParsedMail mail, int depth) throws IOException {
+        ContentType type = contentType(headers.getRaw("Content-Type"));
+        String boundary = type.getParameter("boundary");
+
+        if (type.match("multipart/*") && boundary != null && depth < MAX_MULTIPART_DEPTH) {
+            boundaries.add(boundary.getBytes(StandardCharsets.ISO_8859_1));
+            int level = boundaries.size() - 1;
+
+            // 跳过前言，逐个解析子部分，直到本层结束边界或外层边界
+            MimePartInputStream delimiter = skipBody(reader, boundaries);
+            while (delimiter.getDelimiterLevel() == level && !delimiter.isCloseDelimiter()) {
+                MailHeaders partHeaders = new MailHeaders();
+                readHeaderBlock(reader, partHeaders);
+                delimiter = parseEntity(reader, partHeaders, boundaries, mail, depth + 1);
+            }
+            boundaries.remove(level);
+            // 本层正常结束时跳过结尾部分，定位到外层的下一个边界
+            return delimiter.getDelimiterLevel() == level ? skipBody(reader, boundaries) : delimiter;
+        }
+
+        MimePartInputStream body = new MimePartInputStream(reader, boundaries);
+        consumePart(headers, type, decode(body, headers.getRaw("Content-Transfer-Encoding")), mail);
+        body.drain();
+        return body;
+    }
+
+    private MimePartInputStream skipBody(SMTPLineReader reader, List<byte[]> boundaries) throws IOException {
+        MimePartInputStream body = new MimePartInputStream(reader, boundaries);
+        body.drain();
+        return body;
+    }
+
+    /**
+     * 正文部分填充到邮件正文，其他部分作为附件写入上传目录
+     */
+    private void consumePart(MailHeaders headers, ContentType type, InputStream content, ParsedMail mail) throws IOException {
+        String disposition = headers.getRaw("Content-Disposition");
+        String fileName = fileName(disposition, type);
+        boolean isAttachment = fileName != null
+            || (disposition != null && disposition.trim().toLowerCase().startsWith("attachment"));
+
+        if (!isAttachment && type.match("text/plain")) {
+            mail.setBody(append(mail.getBody(), readText(content, type)));
+        } else if (!isAttachment && type.match("text/html")) {
+            mail.setHtmlBody(append(mail.getHtmlBody(), readText(content, type)));
+        } else {
+            mail.getAttachments().add(storeAttachment(content, type, fileName, mail.getAttachments().size() + 1));
+        }
+    }
+
+    private Attachment storeAttachment(InputStream content, ContentType type, String fileName, int index) throws IOException {
+        if (fileName == null) {
+            fileName = type.match("message/rfc822") ? "message-" + index + ".eml" : "attachment-" + index;
+        }
+        String storedFileName = UUID.randomUUID().toString() + getFileExtension(fileName);
+        long size = Files.copy(content, uploadPath.resolve(storedFileName));
+
+        Attachment attachment = new Attachment();
+        attachment.setFileName(fileName);
+        attachment.setFileType(type.getBaseType());
+        attachment.setFileSize(size);
+        attachment.setStoragePath(storedFileName);
+        return attachment;
+    }
+
+    private String readText(InputStream content, ContentType type) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        content.transferTo(bytes);
+        return bytes.toString(charset(type.getParameter("charset")));
+    }
+
+    private static String append(String existing, String text) {
+        return existing == null ? text : existing + "\r\n" + text;
+    }
 
-        return value.length() > 0 ? value.toString() : null;
+    /**
+     * 按Content-Transfer-Encoding包装解码流，7bit/8bit/binary原样返回
+     */
+    private InputStream decode(InputStream body, String encoding) {
+        if (encoding == null) {
+            return body;
+        }
+        String normalized = encoding.trim().toLowerCase();
+        if (!"base64".equals(normalized) && !"quoted-printable".equals(normalized)) {
+            return body;
+        }
+        try {
+            return MimeUtility.decode(body, normalized);
+        } catch (MessagingException e) {
+            return body;
+        }
+    }
+
+    private ContentType contentType(String value) {
+        if (value != null) {
+            try {
+                return new ContentType(value);
+            } catch (ParseException e) {
+                log.debug("Invalid Content-Type '{}', treated as text/plain", value);
+            }
+        }
+        return new ContentType("text", "plain", null);
+    }
+
+    /**
+     * 附件文件名：优先取Content-Disposition的filename，其次Content-Type的name，并去掉路径部分
+     */
+    private String fileName(String disposition, ContentType type) {
+        String name = null;
+        if (disposition != null) {
+            try {
+                name = new ContentDisposition(disposition).getParameter("filename");
+            } catch (ParseException e) {
+                log.debug("Invalid Content-Disposition '{}'", disposition);
+            }
+        }
+        if (name == null) {
+            name = type.getParameter("name");
+        }
+        if (name == null) {
+            return null;
+        }
+        try {
+            // 很多客户端用RFC 2047编码文件名
+            name = MimeUtility.decodeText(name);
+        } catch (UnsupportedEncodingException e) {
+            log.debug("Undecodable file name '{}'", name);
+        }
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).trim();
+        return name.isEmpty() ? null : name;
+    }
+
+    /**
+     * 正文字符集，未声明或无法识别时按UTF-8处理
+     */
+    private Charset charset(String name) {
+        if (name != null) {
+            try {
+                return Charset.forName(name);
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                log.debug("Unknown charset {}, falling back to UTF-8", name);
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private String htmlToText(String html) {
+        return html.replaceAll("(?is)<(script|style)[^>]*>.*?</\\1>", "")
+            .replaceAll("<[^>]+>", " ")
+            .replaceAll("&nbsp;", " ")
+            .replaceAll("[ \\t]+", " ")
+            .strip();
+    }
+
+    private String getFileExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        // 扩展名只用于存储文件名，限制长度和字符避免异常文件名
+        if (dot == -1 || fileName.length() - dot > 16 || !fileName.substring(dot + 1).matches("[A-Za-z0-9]+")) {
+            return "";
+        }
+        return fileName.substring(dot);
+    }
+
+    /**
+     * 读取头部直到空行（空行本身不写入），边读边建立索引
+     * 超过 {@link #MAX_LINE_LENGTH} 的头部行只保留开头部分
+     * @return 是否遇到了头部结束的空行
+     */
+    private boolean readHeaderBlock(SMTPLineReader reader, MailHeaders headers) throws IOException {
+        boolean lineStart = true;
+        int length;
+        while ((length = reader.readLinePart()) >= 0) {
+            boolean continuation = !lineStart;
+            lineStart = reader.isLineComplete();
+            if (continuation) {
+                continue;
+            }
+            if (length == 0) {
+                return true;
+            }
+            headers.appendLine(reader.line(), 0, length);
+        }
+        return false;
     }
 }
@@ -0,0 +1,113 @@
+package com.campusmail.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * DATA内容暂存 - 小邮件保存在有界内存缓冲区，超过阈值后整体转存到临时文件
+ * 单个会话占用的堆内存不超过阈值，与邮件大小无关
+ */
+public class MessageSpool implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageSpool.class);
+
+    private final Path spoolDir;
+    private final int memoryThreshold;
+
+    private byte[] buffer = new byte[1024];
+    private int count = 0;
+    private long size = 0;
+
+    private Path spillFile;
+    private OutputStream fileOut;
+
+    public MessageSpool(Path spoolDir, int memoryThreshold) {
+        this.spoolDir = spoolDir;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (fileOut == null && count + length > memoryThreshold) {
+            spill();
+        }
+        if (fileOut != null) {
+            fileOut.write(data, offset, length);
+        } else {
+            if (count + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, count + length), memoryThreshold));
+            }
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+        }
+        size += length;
+    }
+
+    /**
+     * 内存缓冲区写满，转存到临时文件
+     */
+    private void spill() throws IOException {
+        Files.createDirectories(spoolDir);
+        spillFile = Files.createTempFile(spoolDir, "smtp-", ".eml");
+        fileOut = new BufferedOutputStream(Files.newOutputStream(spillFile), 8192);
+        fileOut.write(buffer, 0, count);
+        buffer = null;
+        count = 0;
+        log.debug("DATA spooled to {}", spillFile);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * 打开已写入内容的输入流，供解析器流式读取
+     */
+    public InputStream openInputStream() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+            return new BufferedInputStream(Files.newInputStream(spillFile), 8192);
+        }
+        return new ByteArrayInputStream(buffer, 0, count);
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+        count = 0;
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                log.warn("Error closing spool file {}", spillFile, e);
+            }
+            fileOut = null;
+        }
+        if (spillFile != null) {
+            try {
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                log.warn("Error deleting spool file {}", spillFile, e);
+            }
+            spillFile = null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.campusmail.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * MIME实体正文的输入流 - 从行读取器中逐行取出原始正文，遇到任一层级的边界行时结束
+ * 边界行之前的CRLF属于边界（RFC 2046），因此每行的行尾要等读到下一行正文时才输出
+ * 超长的行（例如不换行的base64）由读取器分段返回，各段之间不插入行尾
+ */
+public class MimePartInputStream extends InputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final SMTPLineReader reader;
+    // 由外到内的各层边界
+    private final List<byte[]> boundaries;
+
+    private int lineLength = 0;
+    private int linePosition = 0;
+    private int crlfPosition = CRLF.length;
+    private boolean started = false;
+    private boolean finished = false;
+    // 上一段还没有到行尾，下一段是同一行的后续内容
+    private boolean partialLine = false;
+
+    // 结束本实体的边界所在层级，-1表示流结束
+    private int delimiterLevel = -1;
+    private boolean closeDelimiter = false;
+
+    public MimePartInputStream(SMTPLineReader reader, List<byte[]> boundaries) {
+        this.reader = reader;
+        this.boundaries = boundaries;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (true) {
+            if (crlfPosition < CRLF.length) {
+                int n = Math.min(length, CRLF.length - crlfPosition);
+                System.arraycopy(CRLF, crlfPosition, data, offset, n);
+                crlfPosition += n;
+                return n;
+            }
+            if (linePosition < lineLength) {
+                int n = Math.min(length, lineLength - linePosition);
+                System.arraycopy(reader.line(), linePosition, data, offset, n);
+                linePosition += n;
+                return n;
+            }
+            if (finished || !nextLine()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * 跳过本实体剩余的正文，定位到结束边界
+     */
+    public void drain() throws IOException {
+        while (!finished) {
+            linePosition = lineLength;
+            crlfPosition = CRLF.length;
+            nextLine();
+        }
+    }
+
+    public int getDelimiterLevel() {
+        return delimiterLevel;
+    }
+
+    public boolean isCloseDelimiter() {
+        return closeDelimiter;
+    }
+
+    private boolean nextLine() throws IOException {
+        boolean lineStart = !partialLine;
+        int length = reader.readLinePart();
+        if (length < 0 || (lineStart && reader.isLineComplete() && isDelimiter(reader.line(), length))) {
+            finished = true;
+            lineLength = 0;
+            linePosition = 0;
+            return false;
+        }
+        if (started && lineStart) {
+            crlfPosition = 0;
+        }
+        started = true;
+        partialLine = !reader.isLineComplete();
+        lineLength = length;
+        linePosition = 0;
+        return true;
+    }
+
+    /**
+     * 判断是否为 "--boundary" 或 "--boundary--"（允许行尾空白），优先匹配最内层
+     */
+    private boolean isDelimiter(byte[] line, int length) {
+        if (length < 2 || line[0] != '-' || line[1] != '-') {
+            return false;
+        }
+        for (int level = boundaries.size() - 1; level >= 0; level--) {
+            byte[] boundary = boundaries.get(level);
+            if (length < 2 + boundary.length) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < boundary.length && match; i++) {
+                match = line[2 + i] == boundary[i];
+            }
+            if (!match) {
+                continue;
+            }
+            int end = 2 + boundary.length;
+            boolean close = length >= end + 2 && line[end] == '-' && line[end + 1] == '-';
+            for (int i = close ? end + 2 : end; i < length; i++) {
+                if (line[i] != ' ' && line[i] != '\t') {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                delimiterLevel = level;
+                closeDelimiter = close;
+                return true;
+            }
+        }
+        return false;
+    }
+}
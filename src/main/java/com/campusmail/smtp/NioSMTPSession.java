@@ -0,0 +1,470 @@
+package com.campusmail.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * 非阻塞SMTP会话 - 由 {@link SMTPEventLoop} 驱动，协议状态仍交给 {@link SMTPCommandHandler} 和 {@link SMTPContext}
+ * DATA结束后的解析和入库提交到工作线程池，期间暂停读取，完成后回到事件循环写回响应
+ * 一次读取到的所有命令（PIPELINING批次）处理完后，响应合并为一次写出
+ * BDAT块数据直接从读缓冲区交给处理器，不经过按行切分
+ * STARTTLS的220响应写出后切换到 {@link NioTlsChannel}，之后的读写都经过SSLEngine
+ * 超时由 {@link SMTPSessionTimeouts} 通知，回复421和关闭都转到事件循环线程执行
+ * 经负载均衡器转发的连接先在读缓冲区中累积并解析PROXY协议头，按客户端真实地址做准入控制后再发送欢迎消息
+ * 提交端口的AUTH凭据校验需要查询数据库和BCrypt比较，与DATA结束后的处理一样交给工作线程
+ */
+public class NioSMTPSession implements SMTPSessionTimeouts.Connection {
+
+    private static final Logger log = LoggerFactory.getLogger(NioSMTPSession.class);
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // 待写出的响应超过该值时暂停读取和处理命令，避免只发不收的客户端让写缓冲区无限增长
+    private static final int MAX_PENDING_OUTPUT = 64 * 1024;
+    private static final SMTPResponse PROCESSING_ERROR = SMTPResponse.error("451 4.3.0 Requested action aborted: error in processing");
+
+    private final SMTPEventLoop eventLoop;
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final SMTPCommandHandler commandHandler;
+    private final ExecutorService workerPool;
+    private final SMTPTlsContext tlsContext;
+
+    private final SMTPContext context = new SMTPContext();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // 待写出的响应，两次flush之间处于写模式
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(512);
+
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength = 0;
+    // 当前行超过长度上限，丢弃到行尾
+    private boolean discardingLine = false;
+
+    // 等待工作线程处理DATA或校验AUTH凭据期间不再读取后续命令
+    private boolean awaitingWorker = false;
+    // 转发端口的连接在读到完整的PROXY协议头之前不处理命令
+    private boolean awaitingProxyHeader;
+    private boolean closeAfterFlush = false;
+    private boolean closed = false;
+    // 已回复STARTTLS，响应全部写出后开始握手
+    private boolean startTlsAfterFlush = false;
+    // TLS建立后不为null
+    private NioTlsChannel tls;
+
+    public NioSMTPSession(SMTPEventLoop eventLoop, SelectionKey key, SocketChannel channel,
+                          SMTPCommandHandler commandHandler, ExecutorService workerPool, SMTPTlsContext tlsContext,
+                          boolean proxyProtocol, boolean submission) {
+        this.eventLoop = eventLoop;
+        this.key = key;
+        this.channel = channel;
+        this.commandHandler = commandHandler;
+        this.workerPool = workerPool;
+        this.tlsContext = tlsContext;
+        this.awaitingProxyHeader = proxyProtocol;
+        context.setClientAddress(channel.socket().getInetAddress());
+        // 直连的会话已在接收连接时占用准入名额
+        context.setAdmitted(!proxyProtocol);
+        context.setSubmission(submission);
+        context.setConnection(this);
+        commandHandler.sessionOpened(context);
+    }
+
+    void start() throws IOException {
+        if (awaitingProxyHeader) {
+            // 欢迎消息等PROXY协议头读取后再发送
+            return;
+        }
+        // 发送欢迎消息
+        reply(commandHandler.greeting().getMessage());
+        flush();
+    }
+
+    void onReadable() throws IOException {
+        int n = tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        context.addBytesReceived(n);
+        if (awaitingProxyHeader && !readProxyHeader()) {
+            return;
+        }
+        processInput();
+        readBufferedTls();
+    }
+
+    /**
+     * 解析读缓冲区开头的PROXY协议头，解析后从缓冲区移除
+     * @return 头部已读完且会话被接受；数据不足、头部非法或超出准入限制时返回false
+     */
+    private boolean readProxyHeader() throws IOException {
+        ProxyProtocolHeader header;
+        try {
+            header = ProxyProtocolHeader.parse(readBuffer.array(), readBuffer.arrayOffset(), readBuffer.position());
+        } catch (ProtocolException e) {
+            log.warn("Invalid PROXY protocol header from {}: {}", context.getClientAddress().getHostAddress(), e.getMessage());
+            close();
+            return false;
+        }
+        if (header == null) {
+            return false;
+        }
+        awaitingProxyHeader = false;
+        readBuffer.flip();
+        readBuffer.position(header.length());
+        readBuffer.compact();
+        SMTPResponse greeting = commandHandler.openProxiedSession(context, header);
+        closeAfterFlush = greeting.isCloseConnection();
+        reply(greeting.getMessage());
+        if (closeAfterFlush) {
+            flush();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * TLS层中已读入但尚未解密的数据不会再触发选择器，在可以继续处理命令时主动读取
+     */
+    private void readBufferedTls() throws IOException {
+        while (tls != null && tls.hasBufferedInput() && canProcessInput()) {
+            int n = tls.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            context.addBytesReceived(n);
+            processInput();
+        }
+    }
+
+    void onWritable() throws IOException {
+        flush();
+        if (canProcessInput()) {
+            // 积压的响应已写出，继续处理暂停期间留在缓冲区中的命令
+            if (readBuffer.position() > 0) {
+                processInput();
+            }
+            readBufferedTls();
+        }
+    }
+
+    /**
+     * 等待工作线程、即将关闭或切换TLS、响应积压时都不处理后续命令
+     */
+    private boolean canProcessInput() {
+        return !awaitingWorker && !awaitingProxyHeader && !closeAfterFlush && !startTlsAfterFlush && !closed
+            && pendingOutput() < MAX_PENDING_OUTPUT;
+    }
+
+    /**
+     * 按行切分已读取的数据并逐行处理；readBuffer在两次调用之间始终处于写模式
+     */
+    private void processInput() throws IOException {
+        do {
+            readBuffer.flip();
+            try {
+                while (readBuffer.hasRemaining() && canProcessInput()) {
+                    if (context.getState() == SMTPContext.State.BDAT) {
+                        consumeChunk();
+                        continue;
+                    }
+                    byte b = readBuffer.get();
+                    if (b != '\n') {
+                        appendToLine(b);
+                        continue;
+                    }
+                    if (discardingLine) {
+                        discardingLine = false;
+                        continue;
+                    }
+                    int length = lineLength;
+                    if (length > 0 && lineBuffer[length - 1] == '\r') {
+                        length--;
+                    }
+                    lineLength = 0;
+                    handleLine(length);
+                }
+            } finally {
+                readBuffer.compact();
+            }
+            flush();
+            // 因响应积压暂停、而积压的响应已一次写完时继续处理剩余的命令
+        } while (readBuffer.position() > 0 && canProcessInput());
+    }
+
+    private void consumeChunk() {
+        int n = commandHandler.handleChunkData(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(),
+            readBuffer.remaining(), context);
+        readBuffer.position(readBuffer.position() + n);
+        if (context.getChunkRemaining() == 0) {
+            finishChunk();
+        }
+    }
+
+    /**
+     * BDAT块读取完毕；LAST块需要解析入库，交给工作线程
+     */
+    private void finishChunk() {
+        if (context.isLastChunk() && context.getRejectedChunkState() == null) {
+            dispatchToWorker(() -> commandHandler.completeChunk(context));
+        } else {
+            reply(commandHandler.completeChunk(context).getMessage());
+        }
+    }
+
+    private void appendToLine(byte b) {
+        if (discardingLine) {
+            return;
+        }
+        if (lineLength == MAX_LINE_LENGTH) {
+            // 与阻塞引擎一致：丢弃该行，按处理器的决定回复500后继续会话
+            discardingLine = true;
+            lineLength = 0;
+            SMTPResponse response = commandHandler.handleLineTooLong(context);
+            if (response != null) {
+                reply(response.getMessage());
+            }
+            return;
+        }
+        if (lineLength == lineBuffer.length) {
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH));
+        }
+        lineBuffer[lineLength++] = b;
+    }
+
+    private void handleLine(int length) {
+        if (context.getState() == SMTPContext.State.DATA) {
+            // DATA内容保持原始字节
+            if (commandHandler.handleDataLine(lineBuffer, 0, length, context)) {
+                dispatchToWorker(() -> commandHandler.completeData(context));
+            }
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("SMTP received: {}", commandHandler.loggableCommand(lineBuffer, 0, length, context));
+        }
+
+        SMTPResponse response = commandHandler.handleCommand(lineBuffer, 0, length, context);
+        if (response.isVerifyCredentials()) {
+            dispatchToWorker(() -> commandHandler.completeAuth(context));
+            return;
+        }
+        if (response.isDeferred()) {
+            // BDAT 0 没有块数据，直接结束本块
+            if (context.getChunkRemaining() == 0) {
+                finishChunk();
+            }
+            return;
+        }
+        closeAfterFlush = response.isCloseConnection();
+        startTlsAfterFlush = response.isStartTls();
+        reply(response.getMessage());
+    }
+
+    /**
+     * 将邮件解析和入库（或AUTH凭据校验）交给工作线程，避免阻塞事件循环
+     */
+    private void dispatchToWorker(Supplier<SMTPResponse> task) {
+        awaitingWorker = true;
+        try {
+            workerPool.execute(() -> {
+                SMTPResponse response;
+                try {
+                    response = task.get();
+                } catch (RuntimeException e) {
+                    // 任务未送回响应时会话会一直停在等待状态，按失败结束当前事务
+                    log.error("Error processing SMTP session task", e);
+                    context.reset();
+                    context.clearCredentials();
+                    response = PROCESSING_ERROR;
+                }
+                SMTPResponse result = response;
+                eventLoop.execute(() -> onWorkerCompleted(result));
+            });
+        } catch (RejectedExecutionException e) {
+            awaitingWorker = false;
+            context.reset();
+            context.clearCredentials();
+            reply(PROCESSING_ERROR.getMessage());
+        }
+    }
+
+    /**
+     * 回复421后不再读取，写完即关闭；工作线程之后送回的响应追加在421之后，随连接关闭丢弃
+     */
+    @Override
+    public void timeout(String reply) {
+        eventLoop.execute(() -> {
+            if (closed) {
+                return;
+            }
+            closeAfterFlush = true;
+            reply(reply);
+            try {
+                flush();
+            } catch (IOException e) {
+                log.debug("Error sending SMTP timeout reply: {}", e.getMessage());
+                close();
+            }
+        });
+    }
+
+    @Override
+    public void abort() {
+        eventLoop.execute(this::close);
+    }
+
+    private void onWorkerCompleted(SMTPResponse response) {
+        if (closed) {
+            return;
+        }
+        awaitingWorker = false;
+        // 认证失败次数达到上限时回复421后断开
+        closeAfterFlush |= response.isCloseConnection();
+        try {
+            reply(response.getMessage());
+            // 处理在等待期间已经读入缓冲区的后续命令
+            processInput();
+            readBufferedTls();
+        } catch (IOException e) {
+            log.debug("SMTP connection error: {}", e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * 响应只追加到写缓冲区，由 {@link #flush} 统一写出
+     * 响应几乎都是ASCII，逐字符写入缓冲区，不创建中间字节数组
+     */
+    private void reply(String message) {
+        int length = message.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = message.charAt(i) < 0x80;
+        }
+        if (!ascii) {
+            // 回显的HELO域名或BODY参数可能含UTF-8字符
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            ensureWritable(bytes.length + 2);
+            writeBuffer.put(bytes);
+        } else {
+            ensureWritable(length + 2);
+            for (int i = 0; i < length; i++) {
+                writeBuffer.put((byte) message.charAt(i));
+            }
+        }
+        writeBuffer.put((byte) '\r').put((byte) '\n');
+    }
+
+    private void ensureWritable(int length) {
+        if (writeBuffer.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + length));
+            writeBuffer.flip();
+            larger.put(writeBuffer);
+            writeBuffer = larger;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (writeBuffer.position() > 0) {
+            writeBuffer.flip();
+            try {
+                if (tls != null) {
+                    tls.write(writeBuffer);
+                } else {
+                    channel.write(writeBuffer);
+                }
+            } finally {
+                writeBuffer.compact();
+            }
+        } else if (tls != null) {
+            tls.flush();
+        }
+        if (!hasPendingOutput() && closeAfterFlush) {
+            close();
+            return;
+        }
+        if (!hasPendingOutput() && startTlsAfterFlush) {
+            startTls();
+        }
+        updateInterest();
+    }
+
+    private boolean hasPendingOutput() {
+        return writeBuffer.position() > 0 || (tls != null && tls.hasPendingOutput());
+    }
+
+    private int pendingOutput() {
+        return writeBuffer.position() + (tls != null ? tls.pendingOutput() : 0);
+    }
+
+    /**
+     * 220已写出，切换到TLS；读缓冲区中剩余的是客户端在握手前流水线发送的明文，必须丢弃
+     */
+    private void startTls() {
+        startTlsAfterFlush = false;
+        InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        tls = new NioTlsChannel(tlsContext.createEngine(remote.getHostString(), remote.getPort()), channel);
+        if (readBuffer.position() > 0) {
+            log.warn("Discarding plaintext pipelined after STARTTLS from {}", remote.getHostString());
+        }
+        // 解密需要读缓冲区至少能容纳一条完整的TLS记录
+        readBuffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, tls.applicationBufferSize()));
+        lineLength = 0;
+        discardingLine = false;
+        context.startTls();
+    }
+
+    private void updateInterest() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        // 响应积压时不读取，客户端读走响应、缓冲区回落到上限以下后由onWritable恢复
+        if (!awaitingWorker && !closeAfterFlush && pendingOutput() < MAX_PENDING_OUTPUT) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (hasPendingOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // 工作线程处理中的暂存由completeData负责释放
+        if (!awaitingWorker) {
+            context.discardData();
+        }
+        key.cancel();
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Error closing socket", e);
+        }
+        commandHandler.sessionClosed(context);
+    }
+}
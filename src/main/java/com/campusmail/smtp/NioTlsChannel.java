@@ -0,0 +1,203 @@
+package com.campusmail.smtp;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 非阻塞连接上的TLS层 - 由 {@link NioSMTPSession} 在事件循环线程中调用
+ * 读取时把网络数据解密到会话的读缓冲区，写出时把响应加密后写入连接，握手在读写过程中顺带推进
+ * 已读入但因读缓冲区已满暂未解密的数据不会再触发选择器，会话需根据 {@link #hasBufferedInput} 主动继续读取
+ */
+class NioTlsChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final SocketChannel channel;
+
+    // 两个缓冲区在调用之间都处于写模式
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    // 上次解密因数据不足而停止，需要从连接读取更多数据
+    private boolean needsNetworkData = true;
+
+    NioTlsChannel(SSLEngine engine, SocketChannel channel) {
+        this.engine = engine;
+        this.channel = channel;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize);
+    }
+
+    /**
+     * 解密后的读缓冲区至少需要的剩余空间
+     */
+    int applicationBufferSize() {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * 读取并解密数据到dst
+     * @return 解密得到的字节数，连接已关闭时返回-1
+     */
+    int read(ByteBuffer dst) throws IOException {
+        boolean endOfStream = false;
+        if (needsNetworkData) {
+            endOfStream = channel.read(netIn) < 0;
+        }
+        int produced = 0;
+        netIn.flip();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.unwrap(netIn, dst);
+                produced += result.bytesProduced();
+                SSLEngineResult.Status status = result.getStatus();
+                if (status == SSLEngineResult.Status.CLOSED) {
+                    return produced > 0 ? produced : -1;
+                }
+                runHandshake(result.getHandshakeStatus());
+                if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    needsNetworkData = true;
+                    break;
+                }
+                if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    // 读缓冲区已满，剩余记录等会话处理完已有数据后再解密
+                    needsNetworkData = false;
+                    break;
+                }
+                if (!netIn.hasRemaining()) {
+                    needsNetworkData = true;
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+        if (needsNetworkData && !netIn.hasRemaining()) {
+            // 单条记录超过当前缓冲区（对端协商了更大的记录），扩容后继续
+            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+        }
+        if (endOfStream && produced == 0) {
+            return -1;
+        }
+        return produced;
+    }
+
+    /**
+     * 还有已读入、未解密的完整数据
+     */
+    boolean hasBufferedInput() {
+        return !needsNetworkData && netIn.position() > 0;
+    }
+
+    /**
+     * 加密src中的全部数据并尽量写出，写不完的部分留在内部缓冲区
+     */
+    void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS连接已关闭");
+            }
+            runHandshake(result.getHandshakeStatus());
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                // 握手尚未完成，等待对端数据
+                break;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * 写出已加密的数据
+     * @return 是否已全部写出
+     */
+    boolean flush() throws IOException {
+        if (netOut.position() > 0) {
+            netOut.flip();
+            try {
+                channel.write(netOut);
+            } finally {
+                netOut.compact();
+            }
+        }
+        return netOut.position() == 0;
+    }
+
+    boolean hasPendingOutput() {
+        return netOut.position() > 0;
+    }
+
+    /**
+     * 已加密、尚未写出的字节数
+     */
+    int pendingOutput() {
+        return netOut.position();
+    }
+
+    /**
+     * 尽量发送close_notify，不等待对端确认
+     */
+    void close() {
+        engine.closeOutbound();
+        try {
+            while (!engine.isOutboundDone()) {
+                SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                } else if (result.bytesProduced() == 0) {
+                    break;
+                }
+            }
+            flush();
+        } catch (IOException ignored) {
+            // 连接即将关闭，发送失败无需处理
+        }
+    }
+
+    /**
+     * 执行握手需要的委托任务和握手消息发送；需要对端数据时返回，由下一次读取继续
+     */
+    private void runHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                }
+                case NEED_WRAP -> {
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        flush();
+                        return;
+                    }
+                    status = result.getHandshakeStatus();
+                    flush();
+                }
+                default -> {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int extra) {
+        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + extra);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
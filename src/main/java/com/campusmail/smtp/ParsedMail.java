@@ -1,7 +1,9 @@
 package com.campusmail.smtp;
 
+import com.campusmail.entity.Attachment;
 import lombok.Data;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -13,8 +15,22 @@ public class ParsedMail {
     private String from;
     private List<String> to;
     private String subject;
+    // 纯文本正文（只有HTML部分时由HTML转换）
     private String body;
-    private String rawData;
+    private String htmlBody;
+    // 已写入上传目录的附件，mailId在入库时回填
+    private List<Attachment> attachments = new ArrayList<>();
+    // 顶层邮件头索引，Message-ID、In-Reply-To、References、Date等字段按需读取
+    private MailHeaders headers = new MailHeaders();
 
-    // 可扩展：附件列表、Content-Type等
+    /**
+     * 读取邮件头字段，RFC 2047编码字已解码
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public String getMessageId() {
+        return headers.getRaw("Message-ID");
+    }
 }
@@ -0,0 +1,200 @@
+package com.campusmail.smtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HAProxy PROXY协议头（v1文本格式和v2二进制格式），负载均衡器在连接开始时发送，携带客户端的真实地址
+ * 头部必须在220欢迎消息之前完整读取；SMTP客户端在收到220之前不会发送数据，头部之后不会紧跟SMTP命令
+ * LOCAL命令（v2）和UNKNOWN协议族（v1）表示负载均衡器自身的健康检查，source为null，沿用连接的对端地址
+ *
+ * @param length 头部总字节数
+ * @param source 客户端真实地址，没有时为null
+ */
+public record ProxyProtocolHeader(int length, InetSocketAddress source) {
+
+    // v1头部最长107字节（含CRLF）
+    private static final int MAX_V1_LENGTH = 107;
+    // v2地址之后可带TLV，超过该长度视为非法
+    private static final int MAX_V2_PAYLOAD = 2048;
+    private static final int V2_HEADER_LENGTH = 16;
+    private static final byte[] V1_PREFIX = "PROXY ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] V2_SIGNATURE = {
+        0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A
+    };
+
+    /**
+     * 解析缓冲区开头的PROXY头
+     * @return 数据不足一个完整头部时返回null
+     * @throws ProtocolException 不是合法的PROXY头
+     */
+    public static ProxyProtocolHeader parse(byte[] data, int offset, int length) throws ProtocolException {
+        if (startsWith(data, offset, length, V2_SIGNATURE)) {
+            if (length < V2_HEADER_LENGTH) {
+                return null;
+            }
+            int payload = v2PayloadLength(data, offset);
+            if (payload > MAX_V2_PAYLOAD) {
+                throw new ProtocolException("PROXY v2 header too long: " + payload);
+            }
+            return length < V2_HEADER_LENGTH + payload ? null : parseV2(data, offset, payload);
+        }
+        if (startsWith(data, offset, length, V1_PREFIX)) {
+            int limit = Math.min(length, MAX_V1_LENGTH);
+            for (int i = 0; i < limit; i++) {
+                if (data[offset + i] == '\n') {
+                    return parseV1(data, offset, i + 1);
+                }
+            }
+            if (length >= MAX_V1_LENGTH) {
+                throw new ProtocolException("PROXY v1 header too long");
+            }
+            return null;
+        }
+        throw new ProtocolException("Missing PROXY protocol header");
+    }
+
+    /**
+     * 阻塞读取PROXY头，不会读取头部之后的数据：v1逐字节读到换行，v2读完固定头后按长度读取
+     */
+    public static ProxyProtocolHeader read(InputStream in) throws IOException {
+        byte[] buffer = new byte[V2_HEADER_LENGTH + MAX_V2_PAYLOAD];
+        int length = 0;
+        while (true) {
+            ProxyProtocolHeader header = parse(buffer, 0, length);
+            if (header != null) {
+                return header;
+            }
+            int want = 1;
+            if (length >= V2_HEADER_LENGTH && buffer[0] == V2_SIGNATURE[0]) {
+                want = V2_HEADER_LENGTH + v2PayloadLength(buffer, 0) - length;
+            }
+            int n = in.read(buffer, length, want);
+            if (n < 0) {
+                throw new EOFException("Connection closed before PROXY protocol header");
+            }
+            length += n;
+        }
+    }
+
+    /**
+     * PROXY TCP4|TCP6 源地址 目的地址 源端口 目的端口\r\n，或 PROXY UNKNOWN ...\r\n
+     */
+    private static ProxyProtocolHeader parseV1(byte[] data, int offset, int length) throws ProtocolException {
+        if (length < 2 || data[offset + length - 2] != '\r') {
+            throw new ProtocolException("PROXY v1 header must end with CRLF");
+        }
+        String line = new String(data, offset, length - 2, StandardCharsets.US_ASCII);
+        String[] parts = line.split(" ", -1);
+        if (parts.length >= 2 && "UNKNOWN".equals(parts[1])) {
+            return new ProxyProtocolHeader(length, null);
+        }
+        if (parts.length != 6 || !("TCP4".equals(parts[1]) || "TCP6".equals(parts[1]))) {
+            throw new ProtocolException("Malformed PROXY v1 header: " + line);
+        }
+        boolean ipv4 = "TCP4".equals(parts[1]);
+        InetAddress address = parseAddress(parts[2], ipv4);
+        // 目的地址只做格式检查
+        parseAddress(parts[3], ipv4);
+        int port = parsePort(parts[4]);
+        parsePort(parts[5]);
+        return new ProxyProtocolHeader(length, new InetSocketAddress(address, port));
+    }
+
+    /**
+     * 签名(12) + 版本/命令(1) + 协议族/传输协议(1) + 长度(2) + 地址和TLV
+     */
+    private static ProxyProtocolHeader parseV2(byte[] data, int offset, int payload) throws ProtocolException {
+        int length = V2_HEADER_LENGTH + payload;
+        int versionCommand = data[offset + 12] & 0xFF;
+        if (versionCommand >> 4 != 2) {
+            throw new ProtocolException("Unsupported PROXY protocol version: " + (versionCommand >> 4));
+        }
+        int command = versionCommand & 0x0F;
+        if (command == 0) {
+            // LOCAL
+            return new ProxyProtocolHeader(length, null);
+        }
+        if (command != 1) {
+            throw new ProtocolException("Unsupported PROXY v2 command: " + command);
+        }
+        int family = (data[offset + 13] & 0xFF) >> 4;
+        int addressLength = family == 1 ? 4 : family == 2 ? 16 : 0;
+        if (addressLength == 0) {
+            // AF_UNSPEC / AF_UNIX：没有可用的IP地址
+            return new ProxyProtocolHeader(length, null);
+        }
+        if (payload < addressLength * 2 + 4) {
+            throw new ProtocolException("PROXY v2 address block too short: " + payload);
+        }
+        int start = offset + V2_HEADER_LENGTH;
+        byte[] raw = new byte[addressLength];
+        System.arraycopy(data, start, raw, 0, addressLength);
+        int portOffset = start + addressLength * 2;
+        int port = ((data[portOffset] & 0xFF) << 8) | (data[portOffset + 1] & 0xFF);
+        try {
+            return new ProxyProtocolHeader(length, new InetSocketAddress(InetAddress.getByAddress(raw), port));
+        } catch (UnknownHostException e) {
+            throw new ProtocolException("Invalid PROXY v2 address");
+        }
+    }
+
+    private static int v2PayloadLength(byte[] data, int offset) {
+        return ((data[offset + 14] & 0xFF) << 8) | (data[offset + 15] & 0xFF);
+    }
+
+    /**
+     * 只接受IP字面量，先检查字符集，避免InetAddress.getByName对非法输入发起DNS查询
+     */
+    private static InetAddress parseAddress(String value, boolean ipv4) throws ProtocolException {
+        boolean valid = !value.isEmpty() && value.length() <= 45;
+        for (int i = 0; i < value.length() && valid; i++) {
+            char c = value.charAt(i);
+            valid = (c >= '0' && c <= '9') || c == '.'
+                || (!ipv4 && (c == ':' || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')));
+        }
+        if (valid && (ipv4 || value.indexOf(':') >= 0)) {
+            try {
+                // TCP6中的IPv4映射地址（::ffff:a.b.c.d）会被解析为Inet4Address
+                InetAddress address = InetAddress.getByName(value);
+                if (!ipv4 || address instanceof Inet4Address) {
+                    return address;
+                }
+            } catch (UnknownHostException e) {
+                // 按格式错误处理
+            }
+        }
+        throw new ProtocolException("Invalid address in PROXY header: " + value);
+    }
+
+    private static int parsePort(String value) throws ProtocolException {
+        if (value.isEmpty() || value.length() > 5 || !value.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            throw new ProtocolException("Invalid port in PROXY header: " + value);
+        }
+        int port = Integer.parseInt(value);
+        if (port > 65535) {
+            throw new ProtocolException("Invalid port in PROXY header: " + value);
+        }
+        return port;
+    }
+
+    /**
+     * 已有的数据是否与前缀一致（数据比前缀短时只比较已有部分）
+     */
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        int n = Math.min(length, prefix.length);
+        for (int i = 0; i < n; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,173 @@
+package com.campusmail.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SMTP准入控制 - 按客户端IP限制并发会话数，以及每分钟的邮件数和收件人数
+ * 会话数在接收连接时检查（超限回复421并断开），邮件数和收件人数在MAIL FROM和RCPT TO时检查（超限回复451）
+ * 每个IP的状态保存在ConcurrentHashMap中（按桶加锁），速率限制为无锁的令牌桶（GCRA，单个CAS更新）
+ * 配置为0表示不限制
+ */
+@Component
+public class SMTPAdmissionControl {
+
+    private static final Logger log = LoggerFactory.getLogger(SMTPAdmissionControl.class);
+
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final int maxSessionsPerIp;
+    private final int messagesPerMinute;
+    private final int recipientsPerMinute;
+
+    private final ConcurrentHashMap<InetAddress, ClientState> clients = new ConcurrentHashMap<>();
+
+    public SMTPAdmissionControl(@Value("${smtp.limits.max-sessions-per-ip:20}") int maxSessionsPerIp,
+                                @Value("${smtp.limits.messages-per-minute:60}") int messagesPerMinute,
+                                @Value("${smtp.limits.recipients-per-minute:300}") int recipientsPerMinute) {
+        this.maxSessionsPerIp = maxSessionsPerIp;
+        this.messagesPerMinute = messagesPerMinute;
+        this.recipientsPerMinute = recipientsPerMinute;
+    }
+
+    /**
+     * 为新连接占用一个会话名额
+     * @return 该IP的会话数已达上限时返回false，调用方应回复421并关闭连接
+     */
+    public boolean tryOpenSession(InetAddress address) {
+        if (maxSessionsPerIp <= 0) {
+            return true;
+        }
+        boolean[] admitted = new boolean[1];
+        // compute与清理互斥，不会把计数加到已被移除的状态上
+        clients.compute(address, (key, state) -> {
+            if (state == null) {
+                state = new ClientState(messagesPerMinute, recipientsPerMinute);
+            }
+            if (state.sessions.get() < maxSessionsPerIp) {
+                state.sessions.incrementAndGet();
+                admitted[0] = true;
+            }
+            return state;
+        });
+        if (!admitted[0]) {
+            log.warn("SMTP client {} exceeds {} concurrent sessions", address.getHostAddress(), maxSessionsPerIp);
+        }
+        return admitted[0];
+    }
+
+    /**
+     * 释放 {@link #tryOpenSession} 占用的名额
+     */
+    public void closeSession(InetAddress address) {
+        if (maxSessionsPerIp <= 0 || address == null) {
+            return;
+        }
+        clients.computeIfPresent(address, (key, state) -> {
+            if (state.sessions.get() > 0) {
+                state.sessions.decrementAndGet();
+            }
+            return state;
+        });
+    }
+
+    /**
+     * 消耗一个邮件令牌（MAIL FROM）
+     */
+    public boolean tryAcquireMessage(InetAddress address) {
+        if (messagesPerMinute <= 0 || address == null) {
+            return true;
+        }
+        boolean acquired = state(address).messages.tryAcquire();
+        if (!acquired) {
+            log.warn("SMTP client {} exceeds {} messages per minute", address.getHostAddress(), messagesPerMinute);
+        }
+        return acquired;
+    }
+
+    /**
+     * 消耗一个收件人令牌（RCPT TO）
+     */
+    public boolean tryAcquireRecipient(InetAddress address) {
+        if (recipientsPerMinute <= 0 || address == null) {
+            return true;
+        }
+        boolean acquired = state(address).recipients.tryAcquire();
+        if (!acquired) {
+            log.warn("SMTP client {} exceeds {} recipients per minute", address.getHostAddress(), recipientsPerMinute);
+        }
+        return acquired;
+    }
+
+    /**
+     * 定期移除没有会话且令牌已回满的IP，避免大量一次性来源占用内存
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void evictIdleClients() {
+        long now = System.nanoTime();
+        for (InetAddress address : clients.keySet()) {
+            clients.computeIfPresent(address, (key, state) -> state.isIdle(now) ? null : state);
+        }
+    }
+
+    private ClientState state(InetAddress address) {
+        ClientState state = clients.get(address);
+        return state != null ? state : clients.computeIfAbsent(address, key -> new ClientState(messagesPerMinute, recipientsPerMinute));
+    }
+
+    private static final class ClientState {
+        final AtomicInteger sessions = new AtomicInteger();
+        final RateLimiter messages;
+        final RateLimiter recipients;
+
+        ClientState(int messagesPerMinute, int recipientsPerMinute) {
+            this.messages = new RateLimiter(messagesPerMinute);
+            this.recipients = new RateLimiter(recipientsPerMinute);
+        }
+
+        boolean isIdle(long now) {
+            return sessions.get() == 0 && messages.isFull(now) && recipients.isFull(now);
+        }
+    }
+
+    /**
+     * 令牌桶的GCRA实现：只保存“理论到达时间”，容量为每分钟配额，匀速回补
+     */
+    private static final class RateLimiter {
+        private final long interval;
+        // 理论到达时间，比当前时间超前多少即已用掉多少令牌
+        private final AtomicLong tat;
+
+        RateLimiter(int perMinute) {
+            this.interval = WINDOW_NANOS / Math.max(1, perMinute);
+            this.tat = new AtomicLong(System.nanoTime());
+        }
+
+        boolean tryAcquire() {
+            while (true) {
+                long now = System.nanoTime();
+                long current = tat.get();
+                long next = Math.max(current, now) + interval;
+                if (next - now > WINDOW_NANOS) {
+                    return false;
+                }
+                if (tat.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        boolean isFull(long now) {
+            return tat.get() - now <= 0;
+        }
+    }
+}
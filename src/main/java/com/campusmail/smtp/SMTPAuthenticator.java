@@ -0,0 +1,144 @@
+package com.campusmail.smtp;
+
+import com.campusmail.entity.User;
+import com.campusmail.mapper.UserMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * SMTP AUTH凭据校验 - 按 UserMapper 中的用户名和BCrypt密码哈希验证
+ *
+ * BCrypt每次校验都要消耗可观的CPU，桌面客户端又会频繁重连，所以成功的校验在短时间内缓存：
+ * 缓存中不保存明文密码，只保存随机盐和 HMAC-SHA256(进程随机密钥, 盐 + 密码)，命中时重新计算比较；
+ * 同时记录校验时的密码哈希，用户修改密码（哈希变化）或被禁用后缓存立即失效。失败的校验不缓存
+ * 用户名不存在或已禁用时仍做一次BCrypt比较，响应时间不暴露用户名是否存在
+ */
+@Component
+public class SMTPAuthenticator {
+
+    private static final Logger log = LoggerFactory.getLogger(SMTPAuthenticator.class);
+
+    private static final int SALT_LENGTH = 16;
+    private static final String HMAC = "HmacSHA256";
+
+    private final UserMapper userMapper;
+    private final PasswordEncoder passwordEncoder;
+    private final long cacheMillis;
+    private final int cacheSize;
+    private final SecureRandom random = new SecureRandom();
+    // 进程内随机生成，不落盘；重启后缓存全部失效
+    private final SecretKeySpec cacheKey;
+    // 不存在的用户名用于比较的哈希
+    private final String dummyHash;
+    // 按插入顺序排列，最早的在前；过期或超出数量时从头部淘汰
+    private final LinkedHashMap<String, Verification> verified = new LinkedHashMap<>();
+
+    public SMTPAuthenticator(UserMapper userMapper,
+                             PasswordEncoder passwordEncoder,
+                             @Value("${smtp.submission.auth-cache-seconds:300}") long cacheSeconds,
+                             @Value("${smtp.submission.auth-cache-size:10000}") int cacheSize) {
+        this.userMapper = userMapper;
+        this.passwordEncoder = passwordEncoder;
+        this.cacheMillis = cacheSeconds * 1000;
+        this.cacheSize = cacheSize;
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        this.cacheKey = new SecretKeySpec(key, HMAC);
+        byte[] dummy = new byte[SALT_LENGTH];
+        random.nextBytes(dummy);
+        this.dummyHash = passwordEncoder.encode(new String(dummy, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * 校验用户名和密码，会查询数据库，未命中缓存时做BCrypt比较；NIO引擎下应在工作线程中调用
+     * @return 校验通过且用户未禁用时返回用户，否则返回null
+     */
+    public User authenticate(String username, String password) {
+        User user = username.isEmpty() ? null : userMapper.findByUsername(username).orElse(null);
+        if (user == null || user.getStatus() == null || user.getStatus() != 1 || user.getPasswordHash() == null) {
+            passwordEncoder.matches(password, dummyHash);
+            return null;
+        }
+        if (isCached(user, password)) {
+            log.debug("SMTP AUTH for {} verified from cache", username);
+            return user;
+        }
+        if (!passwordEncoder.matches(password, user.getPasswordHash())) {
+            return null;
+        }
+        remember(user, password);
+        return user;
+    }
+
+    public synchronized int cacheSize() {
+        return verified.size();
+    }
+
+    private boolean isCached(User user, String password) {
+        Verification verification;
+        synchronized (this) {
+            verification = verified.get(user.getUsername());
+        }
+        if (verification == null
+            || System.currentTimeMillis() - verification.verifiedAt() >= cacheMillis
+            || !Objects.equals(verification.userId(), user.getId())
+            || !Objects.equals(verification.passwordHash(), user.getPasswordHash())) {
+            return false;
+        }
+        return MessageDigest.isEqual(verification.digest(), digest(verification.salt(), password));
+    }
+
+    private void remember(User user, String password) {
+        if (cacheMillis <= 0 || cacheSize <= 0) {
+            return;
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Verification verification = new Verification(user.getId(), user.getPasswordHash(), salt,
+            digest(salt, password), System.currentTimeMillis());
+        synchronized (this) {
+            // 重新插入以移到尾部，保持按时间排序
+            verified.remove(user.getUsername());
+            verified.put(user.getUsername(), verification);
+            Iterator<Map.Entry<String, Verification>> it = verified.entrySet().iterator();
+            while (it.hasNext()) {
+                Verification eldest = it.next().getValue();
+                if (verified.size() <= cacheSize && verification.verifiedAt() - eldest.verifiedAt() < cacheMillis) {
+                    break;
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private byte[] digest(byte[] salt, String password) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(cacheKey);
+            mac.update(salt);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256不可用", e);
+        }
+    }
+
+    /**
+     * 一次成功的校验；passwordHash用于发现密码已修改
+     */
+    private record Verification(Long userId, String passwordHash, byte[] salt, byte[] digest, long verifiedAt) {
+    }
+}
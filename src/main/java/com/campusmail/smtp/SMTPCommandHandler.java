@@ -1,180 +1,734 @@
 package com.campusmail.smtp;
 
-import com.campusmail.service.MailService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
 
 /**
  * SMTP命令处理器 - 解析并处理SMTP命令
  * 命令解析与业务逻辑分离
+ * 命令行由 {@link SMTPCommandLine} 在字节上解码，地址按UTF-8转换（SMTPUTF8）；固定内容的响应预先创建
+ * DATA/BDAT内容按原始字节暂存，字符集只在MailParser中解码一次
+ * 邮件提交端口（587）的会话需先通过AUTH PLAIN/LOGIN认证，发件地址限于该用户的邮件账户，
+ * 收件人不限于本地地址，邮件交给 {@link SMTPSubmission} 按网页发信的流程发送
  */
 @Component
 public class SMTPCommandHandler {
 
     private static final Logger log = LoggerFactory.getLogger(SMTPCommandHandler.class);
 
-    // 邮箱地址提取正则
-    private static final Pattern EMAIL_PATTERN = Pattern.compile("<([^>]+)>|([^\\s<>]+@[^\\s<>]+)");
+    private static final byte[] CRLF = {'\r', '\n'};
 
-    private final MailService mailService;
-    private final MailParser mailParser;
+    // 固定内容的响应只创建一次，各会话共用（不要修改其字段）
+    private static final SMTPResponse GREETING = SMTPResponse.ok("220 CampusMail SMTP Server Ready");
+    private static final SMTPResponse TOO_MANY_SESSIONS = SMTPResponse.bye("421 Too many connections from your host, try again later");
+    private static final SMTPResponse OK = SMTPResponse.ok("250 OK");
+    private static final SMTPResponse QUEUED = SMTPResponse.ok("250 OK: Message queued");
+    private static final SMTPResponse SUBMITTED = SMTPResponse.ok("250 OK: Message accepted for delivery");
+    private static final SMTPResponse START_MAIL_INPUT = SMTPResponse.ok("354 End data with <CR><LF>.<CR><LF>");
+    private static final SMTPResponse READY_TO_START_TLS = SMTPResponse.startTls("220 Ready to start TLS");
+    private static final SMTPResponse BYE = SMTPResponse.bye("221 Bye");
+    // AUTH LOGIN的提示为Base64编码的"Username:"和"Password:"，PLAIN没有提示
+    private static final SMTPResponse AUTH_CONTINUE = SMTPResponse.ok("334 ");
+    private static final SMTPResponse AUTH_USERNAME = SMTPResponse.ok("334 VXNlcm5hbWU6");
+    private static final SMTPResponse AUTH_PASSWORD = SMTPResponse.ok("334 UGFzc3dvcmQ6");
+    private static final SMTPResponse AUTH_SUCCEEDED = SMTPResponse.ok("235 Authentication successful");
+    private static final SMTPResponse AUTH_FAILED = SMTPResponse.error("535 Authentication credentials invalid");
+    private static final SMTPResponse AUTH_UNAVAILABLE = SMTPResponse.error("454 Temporary authentication failure");
+    private static final SMTPResponse TOO_MANY_AUTH_FAILURES = SMTPResponse.bye("421 Too many failed authentication attempts, closing connection");
+    private static final SMTPResponse UNRECOGNIZED = SMTPResponse.error("500 Syntax error, command unrecognized");
+    private static final SMTPResponse LINE_TOO_LONG = SMTPResponse.error("500 5.5.2 Line too long");
+    private static final SMTPResponse HELO_SYNTAX = SMTPResponse.error("501 Syntax: HELO hostname");
+    private static final SMTPResponse EHLO_SYNTAX = SMTPResponse.error("501 Syntax: EHLO hostname");
+    private static final SMTPResponse MAIL_SYNTAX = SMTPResponse.error("501 Syntax: MAIL FROM:<address>");
+    private static final SMTPResponse RCPT_SYNTAX = SMTPResponse.error("501 Syntax: RCPT TO:<address>");
+    private static final SMTPResponse BDAT_SYNTAX = SMTPResponse.error("501 Syntax: BDAT <size> [LAST]");
+    private static final SMTPResponse STARTTLS_SYNTAX = SMTPResponse.error("501 Syntax: STARTTLS");
+    private static final SMTPResponse AUTH_SYNTAX = SMTPResponse.error("501 Syntax: AUTH mechanism [initial-response]");
+    private static final SMTPResponse AUTH_CANCELLED = SMTPResponse.error("501 Authentication cancelled");
+    private static final SMTPResponse AUTH_UNDECODABLE = SMTPResponse.error("501 Cannot decode authentication response");
+    private static final SMTPResponse AUTH_NOT_SUPPORTED = SMTPResponse.error("502 Error: AUTH not available on this port");
+    private static final SMTPResponse HELO_FIRST = SMTPResponse.error("503 Error: send HELO/EHLO first");
+    private static final SMTPResponse EHLO_FIRST = SMTPResponse.error("503 Error: send EHLO first");
+    private static final SMTPResponse MAIL_FIRST = SMTPResponse.error("503 Error: need MAIL command first");
+    private static final SMTPResponse RCPT_FIRST = SMTPResponse.error("503 Error: need RCPT command first");
+    private static final SMTPResponse RCPT_AFTER_BDAT = SMTPResponse.error("503 Error: RCPT not allowed after BDAT");
+    private static final SMTPResponse DATA_AFTER_BDAT = SMTPResponse.error("503 Error: DATA not allowed after BDAT");
+    private static final SMTPResponse TLS_ALREADY_ACTIVE = SMTPResponse.error("503 Error: TLS already active");
+    private static final SMTPResponse ALREADY_AUTHENTICATED = SMTPResponse.error("503 Error: already authenticated");
+    private static final SMTPResponse AUTH_IN_TRANSACTION = SMTPResponse.error("503 Error: AUTH not allowed during a mail transaction");
+    private static final SMTPResponse AUTH_MECHANISM_UNKNOWN = SMTPResponse.error("504 Unrecognized authentication type");
+    private static final SMTPResponse AUTH_REQUIRED = SMTPResponse.error("530 Authentication required");
+    private static final SMTPResponse ENCRYPTION_REQUIRED = SMTPResponse.error("538 Encryption required for requested authentication mechanism");
+    private static final SMTPResponse TLS_NOT_AVAILABLE = SMTPResponse.error("454 TLS not available due to temporary reason");
+    private static final SMTPResponse TOO_MANY_MESSAGES = SMTPResponse.error("451 Too many messages from your host, try again later");
+    private static final SMTPResponse TOO_MANY_RECIPIENTS = SMTPResponse.error("451 Too many recipients from your host, try again later");
+    private static final SMTPResponse PROCESSING_ERROR = SMTPResponse.error("451 Requested action aborted: error in processing");
+    private static final SMTPResponse NO_SUCH_USER = SMTPResponse.error("550 No such user here");
+    private static final SMTPResponse SENDER_NOT_OWNED = SMTPResponse.error("553 Sender address not owned by authenticated user");
+    private static final SMTPResponse SMTPUTF8_REQUIRED = SMTPResponse.error("553 Non-ASCII address requires SMTPUTF8");
+    private static final SMTPResponse SIZE_EXCEEDED = SMTPResponse.error("552 Message size exceeds fixed maximum message size");
 
-    public SMTPCommandHandler(MailService mailService, MailParser mailParser) {
-        this.mailService = mailService;
-        this.mailParser = mailParser;
+    private final InboundMailQueue mailQueue;
+    private final LocalRecipientDirectory recipientDirectory;
+    private final SMTPSubmission submission;
+    private final SMTPAdmissionControl admissionControl;
+    private final SMTPTlsContext tlsContext;
+    private final SMTPSessionMonitor sessionMonitor;
+    private final long maxMessageSize;
+    private final Path spoolDir;
+    private final int spoolMemoryThreshold;
+    // EHLO响应只取决于配置、是否已启用TLS和是否为提交端口
+    private final SMTPResponse ehlo;
+    private final SMTPResponse ehloWithStartTls;
+    private final SMTPResponse ehloWithAuth;
+    private final SMTPResponse ehloWithStartTlsAndAuth;
+
+    public SMTPCommandHandler(InboundMailQueue mailQueue,
+                              LocalRecipientDirectory recipientDirectory,
+                              SMTPSubmission submission,
+                              SMTPAdmissionControl admissionControl,
+                              SMTPTlsContext tlsContext,
+                              SMTPSessionMonitor sessionMonitor,
+                              @Value("${smtp.max-message-size:10485760}") long maxMessageSize,
+                              @Value("${smtp.spool.dir:}") String spoolDir,
+                              @Value("${smtp.spool.memory-threshold:262144}") int spoolMemoryThreshold) {
+        this.mailQueue = mailQueue;
+        this.recipientDirectory = recipientDirectory;
+        this.submission = submission;
+        this.admissionControl = admissionControl;
+        this.tlsContext = tlsContext;
+        this.sessionMonitor = sessionMonitor;
+        this.maxMessageSize = maxMessageSize;
+        this.spoolDir = StringUtils.hasText(spoolDir)
+            ? Paths.get(spoolDir).toAbsolutePath().normalize()
+            : Paths.get(System.getProperty("java.io.tmpdir"));
+        this.spoolMemoryThreshold = spoolMemoryThreshold;
+        this.ehlo = SMTPResponse.ok(ehloResponse(""));
+        this.ehloWithStartTls = SMTPResponse.ok(ehloResponse("250-STARTTLS\r\n"));
+        this.ehloWithAuth = SMTPResponse.ok(ehloResponse("250-AUTH PLAIN LOGIN\r\n"));
+        this.ehloWithStartTlsAndAuth = SMTPResponse.ok(ehloResponse("250-STARTTLS\r\n250-AUTH PLAIN LOGIN\r\n"));
+    }
+
+    private String ehloResponse(String extensions) {
+        return "250-CampusMail\r\n250-PIPELINING\r\n250-CHUNKING\r\n250-8BITMIME\r\n250-SMTPUTF8\r\n"
+            + extensions + "250-SIZE " + maxMessageSize + "\r\n250 OK";
     }
 
     /**
      * 处理SMTP命令
+     * DATA命令只返回354并切换到DATA状态，数据行由会话通过 {@link #handleDataLine} 逐行送入
      */
-    public SMTPResponse handleCommand(String line, SMTPContext context, BufferedReader reader) {
-        if (line == null || line.isEmpty()) {
-            return SMTPResponse.error("500 Syntax error, command unrecognized");
+    public SMTPResponse handleCommand(String line, SMTPContext context) {
+        if (line == null) {
+            return UNRECOGNIZED;
         }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return handleCommand(bytes, 0, bytes.length, context);
+    }
 
-        String command = line.split("\\s+")[0].toUpperCase();
-        String argument = line.length() > command.length() ? line.substring(command.length()).trim() : "";
+    /**
+     * 处理一行SMTP命令（不含行尾CRLF）
+     * 直接在会话的行缓冲区上解码，只有需要保存到上下文的地址和域名才会转为字符串
+     */
+    public SMTPResponse handleCommand(byte[] line, int offset, int length, SMTPContext context) {
+        if (context.getAuthStep() != SMTPContext.AuthStep.NONE) {
+            return handleAuthResponse(line, offset, length, context);
+        }
+        if (length == 0) {
+            return UNRECOGNIZED;
+        }
+        SMTPCommandLine command = context.getCommandLine().decode(line, offset, length);
 
-        return switch (command) {
-            case "HELO" -> handleHelo(argument, context);
-            case "EHLO" -> handleEhlo(argument, context);
-            case "MAIL" -> handleMailFrom(argument, context);
-            case "RCPT" -> handleRcptTo(argument, context);
-            case "DATA" -> handleData(context, reader);
-            case "RSET" -> handleRset(context);
-            case "NOOP" -> SMTPResponse.ok("250 OK");
-            case "QUIT" -> handleQuit(context);
-            default -> SMTPResponse.error("500 Syntax error, command unrecognized");
+        return switch (command.verb()) {
+            case HELO -> handleHelo(command, context);
+            case EHLO -> handleEhlo(command, context);
+            case MAIL -> {
+                long start = System.nanoTime();
+                SMTPResponse response = handleMailFrom(command, context);
+                sessionMonitor.record(SMTPSessionMonitor.Phase.MAIL, start);
+                yield response;
+            }
+            case RCPT -> {
+                long start = System.nanoTime();
+                SMTPResponse response = handleRcptTo(command, context);
+                sessionMonitor.record(SMTPSessionMonitor.Phase.RCPT, start);
+                yield response;
+            }
+            case DATA -> handleData(context);
+            case BDAT -> handleBdat(command, context);
+            case STARTTLS -> handleStartTls(command, context);
+            case AUTH -> handleAuth(command, context);
+            case RSET -> handleRset(context);
+            case NOOP -> OK;
+            case QUIT -> handleQuit(context);
+            case UNKNOWN -> UNRECOGNIZED;
         };
     }
 
-    private SMTPResponse handleHelo(String domain, SMTPContext context) {
-        if (domain.isEmpty()) {
-            return SMTPResponse.error("501 Syntax: HELO hostname");
+    private SMTPResponse handleHelo(SMTPCommandLine command, SMTPContext context) {
+        if (!command.hasArgument()) {
+            return HELO_SYNTAX;
         }
+        String domain = command.argument();
         context.setClientDomain(domain);
         context.setState(SMTPContext.State.GREETED);
+        recordGreeting(context);
         return SMTPResponse.ok("250 Hello " + domain + ", pleased to meet you");
     }
 
-    private SMTPResponse handleEhlo(String domain, SMTPContext context) {
-        if (domain.isEmpty()) {
-            return SMTPResponse.error("501 Syntax: EHLO hostname");
+    private SMTPResponse handleEhlo(SMTPCommandLine command, SMTPContext context) {
+        if (!command.hasArgument()) {
+            return EHLO_SYNTAX;
         }
-        context.setClientDomain(domain);
+        context.setClientDomain(command.argument());
         context.setState(SMTPContext.State.GREETED);
-        return SMTPResponse.ok("250-CampusMail\r\n250-SIZE 10485760\r\n250 OK");
+        recordGreeting(context);
+        boolean startTls = tlsContext.isEnabled() && !context.isTls();
+        if (isAuthAvailable(context)) {
+            return startTls ? ehloWithStartTlsAndAuth : ehloWithAuth;
+        }
+        return startTls ? ehloWithStartTls : ehlo;
+    }
+
+    /**
+     * 提交端口公布AUTH；要求TLS时只在STARTTLS之后公布
+     */
+    private boolean isAuthAvailable(SMTPContext context) {
+        return context.isSubmission() && submission != null && (context.isTls() || !submission.isTlsRequired());
     }
 
-    private SMTPResponse handleMailFrom(String argument, SMTPContext context) {
+    private SMTPResponse handleMailFrom(SMTPCommandLine command, SMTPContext context) {
         if (context.getState() == SMTPContext.State.INIT) {
-            return SMTPResponse.error("503 Error: send HELO/EHLO first");
+            return HELO_FIRST;
+        }
+        if (context.isSubmission() && context.getSubmitter() == null) {
+            return AUTH_REQUIRED;
         }
 
-        // 解析 MAIL FROM:<address>
-        if (!argument.toUpperCase().startsWith("FROM:")) {
-            return SMTPResponse.error("501 Syntax: MAIL FROM:<address>");
+        // 解析 MAIL FROM:<address> [参数...]
+        if (!command.parsePath("FROM:") || command.isMalformedParams()) {
+            return MAIL_SYNTAX;
         }
 
-        String emailPart = argument.substring(5).trim();
-        String email = extractEmail(emailPart);
-        if (email == null) {
-            return SMTPResponse.error("501 Syntax: MAIL FROM:<address>");
+        // 客户端声明的大小已超过上限时直接拒绝，无需等到DATA
+        int size = command.findParam("SIZE");
+        if (size >= 0 && command.hasParamValue(size) && exceedsMaxSize(command.paramValueAsLong(size))) {
+            return SIZE_EXCEEDED;
+        }
+        // 内容按原始字节保存，7BIT和8BITMIME无需区别处理；不支持BINARYMIME
+        int body = command.findParam("BODY");
+        if (body >= 0 && command.hasParamValue(body)
+            && !command.paramValueEquals(body, "7BIT") && !command.paramValueEquals(body, "8BITMIME")) {
+            return SMTPResponse.error("555 BODY=" + command.paramValue(body) + " not supported");
+        }
+        boolean smtpUtf8 = command.findParam("SMTPUTF8") >= 0;
+        if (!smtpUtf8 && !command.isPathAscii()) {
+            return SMTPUTF8_REQUIRED;
+        }
+        // 提交端口只能以该用户自己的邮件地址发信（不允许空发件人）
+        Long senderAccountId = null;
+        if (context.isSubmission()) {
+            senderAccountId = context.getSubmitter().accountId(command.path());
+            if (senderAccountId == null) {
+                return SENDER_NOT_OWNED;
+            }
+        }
+        if (!admissionControl.tryAcquireMessage(context.getClientAddress())) {
+            return TOO_MANY_MESSAGES;
         }
 
         context.reset();
-        context.setMailFrom(email);
+        context.setSmtpUtf8(smtpUtf8);
+        context.setMailFrom(command.path());
+        context.setSenderAccountId(senderAccountId);
+        context.setTransactionStartedAt(System.currentTimeMillis());
         context.setState(SMTPContext.State.MAIL_FROM);
-        return SMTPResponse.ok("250 OK");
+        return OK;
     }
 
-    private SMTPResponse handleRcptTo(String argument, SMTPContext context) {
+    private SMTPResponse handleRcptTo(SMTPCommandLine command, SMTPContext context) {
         if (context.getState() != SMTPContext.State.MAIL_FROM && context.getState() != SMTPContext.State.RCPT_TO) {
-            return SMTPResponse.error("503 Error: need MAIL command first");
+            return MAIL_FIRST;
+        }
+        if (context.isChunking()) {
+            return RCPT_AFTER_BDAT;
         }
 
         // 解析 RCPT TO:<address>
-        if (!argument.toUpperCase().startsWith("TO:")) {
-            return SMTPResponse.error("501 Syntax: RCPT TO:<address>");
+        if (!command.parsePath("TO:")) {
+            return RCPT_SYNTAX;
         }
-
-        String emailPart = argument.substring(3).trim();
-        String email = extractEmail(emailPart);
-        if (email == null) {
-            return SMTPResponse.error("501 Syntax: RCPT TO:<address>");
+        if (!context.isSmtpUtf8() && !command.isPathAscii()) {
+            return SMTPUTF8_REQUIRED;
+        }
+        // 未知地址也消耗令牌，限制逐个试探地址
+        if (!admissionControl.tryAcquireRecipient(context.getClientAddress())) {
+            return TOO_MANY_RECIPIENTS;
+        }
+        // 只接收本地账号的邮件，未知地址在传输正文前拒绝；提交端口的收件人可以是外部地址
+        String email = command.path();
+        if (!context.isSubmission() && !recipientDirectory.contains(email)) {
+            return NO_SUCH_USER;
         }
 
         context.addRecipient(email);
         context.setState(SMTPContext.State.RCPT_TO);
-        return SMTPResponse.ok("250 OK");
+        return OK;
     }
 
-    private SMTPResponse handleData(SMTPContext context, BufferedReader reader) {
+    private SMTPResponse handleData(SMTPContext context) {
         if (context.getState() != SMTPContext.State.RCPT_TO) {
-            return SMTPResponse.error("503 Error: need RCPT command first");
+            return RCPT_FIRST;
+        }
+        if (context.isChunking()) {
+            return DATA_AFTER_BDAT;
         }
 
+        // 客户端收到354后开始发送数据，以单独的"."结束
+        context.discardData();
+        context.setDataSpool(new MessageSpool(spoolDir, spoolMemoryThreshold));
+        context.startDataTransfer();
         context.setState(SMTPContext.State.DATA);
+        return START_MAIL_INPUT;
+    }
 
-        // 发送354响应，准备接收数据
-        // 注意：这里我们需要先返回354，然后读取数据
-        // 由于当前架构，我们在这里直接读取数据
+    /**
+     * 处理DATA阶段的一行数据（不含行尾CRLF），原样写入暂存区，不做字符集解码
+     * 超过SIZE上限后立即停止暂存并丢弃后续数据，按RFC 5321读到结束行后再回复552
+     * @return 收到结束行"."时返回true，此时应调用 {@link #completeData}
+     */
+    public boolean handleDataLine(byte[] line, int offset, int length, SMTPContext context) {
+        if (length == 1 && line[offset] == '.') {
+            context.finishDataTransfer();
+            return true;
+        }
+        if (context.isMessageTooLarge() || context.isDataFailed() || context.isLineTooLong()) {
+            return false;
+        }
+        // 处理透明传输（行首的点需要去掉一个）
+        if (length > 1 && line[offset] == '.') {
+            offset++;
+            length--;
+        }
 
-        try {
-            StringBuilder data = new StringBuilder();
-            String line;
-
-            // 客户端收到354后开始发送数据，以单独的"."结束
-            while ((line = reader.readLine()) != null) {
-                if (".".equals(line)) {
-                    break;
-                }
-                // 处理透明传输（行首的点需要去掉一个）
-                if (line.startsWith("..")) {
-                    line = line.substring(1);
-                }
-                data.append(line).append("\r\n");
+        if (checkSize(context, length + CRLF.length)) {
+            try {
+                context.getDataSpool().write(line, offset, length);
+                context.getDataSpool().write(CRLF);
+            } catch (IOException e) {
+                failSpool(context, e);
             }
+        }
+        return false;
+    }
 
-            // 解析并保存邮件
-            ParsedMail parsedMail = mailParser.parse(data.toString(), context.getMailFrom(), context.getRcptTo());
-            mailService.createMail(parsedMail);
+    /**
+     * 行超过长度上限，超出部分已由会话丢弃，会话继续
+     * 命令（或AUTH应答）立即回复500；DATA中的超长行使整封邮件作废，与超过SIZE一样读到结束行后再回复
+     * @return 需要立即发送的响应，DATA阶段返回null
+     */
+    public SMTPResponse handleLineTooLong(SMTPContext context) {
+        if (context.getState() != SMTPContext.State.DATA) {
+            if (context.getAuthStep() != SMTPContext.AuthStep.NONE) {
+                context.clearCredentials();
+            }
+            return LINE_TOO_LONG;
+        }
+        if (!context.isMessageTooLarge() && !context.isDataFailed() && !context.isLineTooLong()) {
+            log.warn("Message from {} contains a line that is too long, discarding", context.getMailFrom());
+            context.discardData();
+            context.setLineTooLong(true);
+        }
+        return null;
+    }
 
+    /**
+     * 处理 BDAT &lt;size&gt; [LAST]
+     * 返回deferred响应，会话随后读取size字节交给 {@link #handleChunkData}，读完后调用 {@link #completeChunk}
+     */
+    private SMTPResponse handleBdat(SMTPCommandLine command, SMTPContext context) {
+        int words = command.argumentWordCount();
+        long size = command.argumentWordAsLong(0);
+        boolean last = words == 2 && command.argumentWordEquals(1, "LAST");
+        if (size < 0 || words > 2 || (words == 2 && !last)) {
+            return BDAT_SYNTAX;
+        }
+
+        context.setChunkSize(size);
+        context.setChunkRemaining(size);
+        context.setLastChunk(last);
+        if (context.getState() != SMTPContext.State.RCPT_TO) {
+            // 块数据已在路上，读完丢弃后再回复503，避免被当作命令解析
+            context.setRejectedChunkState(context.getState());
+        } else if (!context.isChunking()) {
+            context.discardData();
+            context.setDataSpool(new MessageSpool(spoolDir, spoolMemoryThreshold));
+            context.startDataTransfer();
+            context.setChunking(true);
+        }
+        if (last && size == 0) {
+            context.finishDataTransfer();
+        }
+        context.setState(SMTPContext.State.BDAT);
+        return SMTPResponse.deferred();
+    }
+
+    /**
+     * 写入BDAT块数据，原样进入暂存区，不做按行切分和点转义处理
+     * @return 本次消费的字节数（不超过当前块剩余长度）
+     */
+    public int handleChunkData(byte[] data, int offset, int length, SMTPContext context) {
+        int n = (int) Math.min(length, context.getChunkRemaining());
+        context.setChunkRemaining(context.getChunkRemaining() - n);
+        if (context.getChunkRemaining() == 0 && context.isLastChunk()) {
+            context.finishDataTransfer();
+        }
+        if (context.getRejectedChunkState() == null && checkSize(context, n)) {
+            try {
+                context.getDataSpool().write(data, offset, n);
+            } catch (IOException e) {
+                failSpool(context, e);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 当前BDAT块接收完毕
+     * LAST块会写入持久化队列，NIO引擎下应在工作线程中调用
+     */
+    public SMTPResponse completeChunk(SMTPContext context) {
+        if (context.getRejectedChunkState() != null) {
+            context.setState(context.getRejectedChunkState());
+            context.setRejectedChunkState(null);
+            return RCPT_FIRST;
+        }
+        if (context.isLastChunk()) {
+            return completeData(context);
+        }
+        // 超限或失败后事务已无效，但客户端可能已流水线发出后续块，保持事务直到LAST或RSET
+        context.setState(SMTPContext.State.RCPT_TO);
+        if (context.isMessageTooLarge()) {
+            return SIZE_EXCEEDED;
+        }
+        if (context.isDataFailed()) {
+            return PROCESSING_ERROR;
+        }
+        return SMTPResponse.ok("250 " + context.getChunkSize() + " octets received");
+    }
+
+    /**
+     * 检查写入后是否超过SIZE上限，超限时丢弃已暂存的数据
+     * @return 可以继续写入时返回true
+     */
+    private boolean checkSize(SMTPContext context, int length) {
+        if (context.isMessageTooLarge() || context.isDataFailed() || context.isLineTooLong()) {
+            return false;
+        }
+        if (context.getDataSpool().size() + length > maxMessageSize) {
+            log.warn("Message from {} exceeds size limit {}, discarding", context.getMailFrom(), maxMessageSize);
+            context.discardData();
+            context.setMessageTooLarge(true);
+            return false;
+        }
+        return true;
+    }
+
+    private void failSpool(SMTPContext context, IOException e) {
+        log.error("Error spooling DATA", e);
+        context.discardData();
+        context.setDataFailed(true);
+    }
+
+    /**
+     * 完成DATA传输：追加到持久化队列并fsync后回复250，解析和入库由队列的投递线程完成
+     * 提交端口的邮件直接解析并发送，完成后才回复250
+     * 该方法会同步写磁盘（或访问数据库），NIO引擎下应在工作线程中调用，不能占用事件循环线程
+     */
+    public SMTPResponse completeData(SMTPContext context) {
+        try {
+            if (context.isMessageTooLarge()) {
+                return SIZE_EXCEEDED;
+            }
+            if (context.isDataFailed()) {
+                return PROCESSING_ERROR;
+            }
+            if (context.isLineTooLong()) {
+                return LINE_TOO_LONG;
+            }
+            sessionMonitor.record(SMTPSessionMonitor.Phase.DATA, context.getDataStartNanos());
+
+            // 复制收件人列表，reset()会清空上下文中的列表
+            long start = System.nanoTime();
+            if (context.isSubmission()) {
+                submission.submit(context.getSubmitter(), context.getSenderAccountId(), context.getMailFrom(),
+                    new ArrayList<>(context.getRcptTo()), context.getDataSpool());
+                sessionMonitor.record(SMTPSessionMonitor.Phase.SUBMIT, start);
+                return SUBMITTED;
+            }
+            mailQueue.enqueue(context.getMailFrom(), new ArrayList<>(context.getRcptTo()), context.getDataSpool());
+            sessionMonitor.record(SMTPSessionMonitor.Phase.QUEUE, start);
+            return QUEUED;
+        } catch (Exception e) {
+            log.error(context.isSubmission() ? "Error submitting mail" : "Error queueing mail", e);
+            return PROCESSING_ERROR;
+        } finally {
             context.reset();
-            return SMTPResponse.ok("250 OK: Message queued");
+            // 写队列是服务端的耗时，命令超时从回复时重新计算
+            context.setLastActivityAt(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * STARTTLS只回复220，握手由会话在响应写出后进行；进行中的事务随之作废
+     */
+    private SMTPResponse handleStartTls(SMTPCommandLine command, SMTPContext context) {
+        if (!tlsContext.isEnabled()) {
+            return TLS_NOT_AVAILABLE;
+        }
+        if (context.isTls()) {
+            return TLS_ALREADY_ACTIVE;
+        }
+        if (command.hasArgument()) {
+            return STARTTLS_SYNTAX;
+        }
+        if (context.getState() == SMTPContext.State.INIT) {
+            return EHLO_FIRST;
+        }
+        context.reset();
+        return READY_TO_START_TLS;
+    }
 
-        } catch (IOException e) {
-            log.error("Error reading DATA", e);
-            return SMTPResponse.error("451 Requested action aborted: error in processing");
+    /**
+     * AUTH PLAIN|LOGIN [initial-response]（RFC 4954），只在提交端口可用，不能在事务中进行
+     * 凭据收齐后返回verifyCredentials，由会话调用 {@link #completeAuth} 校验
+     */
+    private SMTPResponse handleAuth(SMTPCommandLine command, SMTPContext context) {
+        if (!context.isSubmission() || submission == null) {
+            return AUTH_NOT_SUPPORTED;
+        }
+        if (context.getState() == SMTPContext.State.INIT) {
+            return EHLO_FIRST;
+        }
+        if (context.getSubmitter() != null) {
+            return ALREADY_AUTHENTICATED;
+        }
+        if (context.getState() != SMTPContext.State.GREETED) {
+            return AUTH_IN_TRANSACTION;
+        }
+        if (submission.isTlsRequired() && !context.isTls()) {
+            return ENCRYPTION_REQUIRED;
+        }
+        int words = command.argumentWordCount();
+        if (words < 1 || words > 2) {
+            return AUTH_SYNTAX;
+        }
+        boolean plain = command.argumentWordEquals(0, "PLAIN");
+        if (!plain && !command.argumentWordEquals(0, "LOGIN")) {
+            return AUTH_MECHANISM_UNKNOWN;
+        }
+        if (words == 1) {
+            context.setAuthStep(plain ? SMTPContext.AuthStep.PLAIN : SMTPContext.AuthStep.LOGIN_USERNAME);
+            return plain ? AUTH_CONTINUE : AUTH_USERNAME;
+        }
+        // 初始应答为"="表示空字符串
+        String initial = command.argumentWord(1);
+        byte[] initialBytes = initial.getBytes(StandardCharsets.US_ASCII);
+        String value = "=".equals(initial) ? "" : decodeBase64(initialBytes, 0, initialBytes.length);
+        if (value == null) {
+            return AUTH_UNDECODABLE;
+        }
+        return plain ? plainCredentials(value, context) : loginUsername(value, context);
+    }
+
+    /**
+     * 客户端对334的应答：Base64编码的凭据，"*"表示取消
+     */
+    private SMTPResponse handleAuthResponse(byte[] line, int offset, int length, SMTPContext context) {
+        SMTPContext.AuthStep step = context.getAuthStep();
+        if (length == 1 && line[offset] == '*') {
+            context.clearCredentials();
+            return AUTH_CANCELLED;
+        }
+        String value = decodeBase64(line, offset, length);
+        if (value == null) {
+            context.clearCredentials();
+            return AUTH_UNDECODABLE;
+        }
+        return switch (step) {
+            case PLAIN -> plainCredentials(value, context);
+            case LOGIN_USERNAME -> loginUsername(value, context);
+            case LOGIN_PASSWORD -> {
+                context.setAuthStep(SMTPContext.AuthStep.NONE);
+                context.setAuthPassword(value);
+                yield SMTPResponse.verifyCredentials();
+            }
+            case NONE -> UNRECOGNIZED;
+        };
+    }
+
+    /**
+     * PLAIN凭据：授权身份\0用户名\0密码；不支持以他人身份授权，授权身份须为空或与用户名相同
+     */
+    private SMTPResponse plainCredentials(String value, SMTPContext context) {
+        context.clearCredentials();
+        int first = value.indexOf('\0');
+        int second = first < 0 ? -1 : value.indexOf('\0', first + 1);
+        if (second < 0 || value.indexOf('\0', second + 1) >= 0) {
+            return AUTH_UNDECODABLE;
+        }
+        String authorizationId = value.substring(0, first);
+        String username = value.substring(first + 1, second);
+        if (!authorizationId.isEmpty() && !authorizationId.equals(username)) {
+            return failAuth(context, username);
+        }
+        context.setAuthUsername(username);
+        context.setAuthPassword(value.substring(second + 1));
+        return SMTPResponse.verifyCredentials();
+    }
+
+    private SMTPResponse loginUsername(String username, SMTPContext context) {
+        context.setAuthUsername(username);
+        context.setAuthStep(SMTPContext.AuthStep.LOGIN_PASSWORD);
+        return AUTH_PASSWORD;
+    }
+
+    /**
+     * 校验会话中暂存的AUTH凭据，未命中校验缓存时需要BCrypt比较，NIO引擎下应在工作线程中调用
+     * @return 235；失败时为535，失败次数达到上限时为421（会话写出后断开）
+     */
+    public SMTPResponse completeAuth(SMTPContext context) {
+        String username = context.getAuthUsername();
+        String password = context.getAuthPassword();
+        context.clearCredentials();
+        long start = System.nanoTime();
+        try {
+            SMTPSubmission.Submitter submitter = submission.authenticate(username, password);
+            if (submitter == null) {
+                return failAuth(context, username);
+            }
+            context.setSubmitter(submitter);
+            log.info("SMTP AUTH succeeded for {} from {}", submitter.username(), clientHost(context));
+            return AUTH_SUCCEEDED;
         } catch (Exception e) {
-            log.error("Error processing mail", e);
-            return SMTPResponse.error("451 Requested action aborted: error in processing");
+            log.error("Error verifying SMTP credentials", e);
+            return AUTH_UNAVAILABLE;
+        } finally {
+            sessionMonitor.record(SMTPSessionMonitor.Phase.AUTH, start);
+            // 校验是服务端的耗时，命令超时从回复时重新计算
+            context.setLastActivityAt(System.currentTimeMillis());
+        }
+    }
+
+    private SMTPResponse failAuth(SMTPContext context, String username) {
+        context.setAuthFailures(context.getAuthFailures() + 1);
+        log.warn("SMTP AUTH failed for {} from {} ({} failure(s))", username, clientHost(context), context.getAuthFailures());
+        int maxFailures = submission.getMaxAuthFailures();
+        return maxFailures > 0 && context.getAuthFailures() >= maxFailures ? TOO_MANY_AUTH_FAILURES : AUTH_FAILED;
+    }
+
+    /**
+     * Base64解码为UTF-8字符串，不是合法的Base64时返回null
+     */
+    private static String decodeBase64(byte[] data, int offset, int length) {
+        try {
+            ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(data, offset, length));
+            return StandardCharsets.UTF_8.decode(decoded).toString();
+        } catch (IllegalArgumentException e) {
+            return null;
         }
     }
 
+    /**
+     * 调试日志中的命令行：AUTH的初始应答和对334的应答含有凭据，不输出原文
+     */
+    public String loggableCommand(byte[] line, int offset, int length, SMTPContext context) {
+        if (context.getAuthStep() != SMTPContext.AuthStep.NONE) {
+            return "<credentials>";
+        }
+        String text = new String(line, offset, length, StandardCharsets.UTF_8);
+        if (text.regionMatches(true, 0, "AUTH ", 0, 5)) {
+            int space = text.indexOf(' ', 5);
+            return space < 0 ? text : text.substring(0, space) + " <credentials>";
+        }
+        return text;
+    }
+
+    private static String clientHost(SMTPContext context) {
+        return context.getClientAddress() == null ? null : context.getClientAddress().getHostAddress();
+    }
+
     private SMTPResponse handleRset(SMTPContext context) {
         context.reset();
-        return SMTPResponse.ok("250 OK");
+        return OK;
     }
 
     private SMTPResponse handleQuit(SMTPContext context) {
-        return SMTPResponse.bye("221 Bye");
+        return BYE;
+    }
+
+    /**
+     * 会话建立时由会话调用，加入在线会话列表
+     */
+    public void sessionOpened(SMTPContext context) {
+        sessionMonitor.sessionOpened(context);
+    }
+
+    /**
+     * 直连的会话建立后发送的220欢迎消息，准入已在接收连接时检查
+     */
+    public SMTPResponse greeting() {
+        return GREETING;
     }
 
     /**
-     * 从字符串中提取邮箱地址
+     * PROXY协议连接读取头部后调用：按客户端真实地址检查并发会话数，直连的会话已在接收时检查
+     * @return 220欢迎消息，超出限制时为421（会话写出后断开）
      */
-    private String extractEmail(String input) {
-        Matcher matcher = EMAIL_PATTERN.matcher(input);
-        if (matcher.find()) {
-            return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+    public SMTPResponse openProxiedSession(SMTPContext context, ProxyProtocolHeader header) {
+        context.proxiedFrom(header.source() == null ? null : header.source().getAddress());
+        if (!admissionControl.tryOpenSession(context.getClientAddress())) {
+            return TOO_MANY_SESSIONS;
         }
-        return null;
+        context.setAdmitted(true);
+        return GREETING;
+    }
+
+    /**
+     * 会话结束（包括连接中断）时由会话调用，释放占用的准入名额
+     */
+    public void sessionClosed(SMTPContext context) {
+        if (context.isAdmitted()) {
+            admissionControl.closeSession(context.getClientAddress());
+        }
+        sessionMonitor.sessionClosed(context);
+    }
+
+    /**
+     * 从连接建立到第一个HELO/EHLO的耗时，STARTTLS之后的再次问候不计入
+     */
+    private void recordGreeting(SMTPContext context) {
+        if (!context.isGreetingRecorded()) {
+            context.setGreetingRecorded(true);
+            sessionMonitor.record(SMTPSessionMonitor.Phase.GREETING, context.getConnectedNanos());
+        }
+    }
+
+    /**
+     * @param declaredSize SIZE参数值，不是数字时为-1（忽略），超出long范围时为Long.MAX_VALUE
+     */
+    private boolean exceedsMaxSize(long declaredSize) {
+        return declaredSize > maxMessageSize;
     }
 }
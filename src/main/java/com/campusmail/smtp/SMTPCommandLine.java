@@ -0,0 +1,340 @@
+package com.campusmail.smtp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 解码后的SMTP命令行 - 直接在会话的行缓冲区上识别动词，记录参数、尖括号地址和ESMTP参数的偏移，不复制数据
+ * 每个会话复用一个实例，内容只在下一行到来之前有效；需要保存的部分（地址、域名）由调用方按需转为字符串
+ */
+public final class SMTPCommandLine {
+
+    public enum Verb {
+        HELO, EHLO, MAIL, RCPT, DATA, BDAT, STARTTLS, AUTH, RSET, NOOP, QUIT, UNKNOWN;
+
+        private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // values()每次调用都会复制数组
+    private static final Verb[] VERBS = Verb.values();
+    private static final int MAX_PARAMS = 16;
+
+    private byte[] line;
+    private int end;
+
+    private Verb verb;
+    // 动词之后的参数（已去掉首尾空白）
+    private int argumentStart;
+    private int argumentEnd;
+
+    // MAIL FROM:/RCPT TO: 的地址，不含尖括号；没有地址时pathStart为-1
+    private int pathStart;
+    private int pathEnd;
+
+    // 地址之后的ESMTP参数 KEY[=VALUE]，没有值时valueStart为-1
+    private int paramCount;
+    private final int[] keyStarts = new int[MAX_PARAMS];
+    private final int[] keyEnds = new int[MAX_PARAMS];
+    private final int[] valueStarts = new int[MAX_PARAMS];
+    private final int[] valueEnds = new int[MAX_PARAMS];
+    // 参数部分语法错误（如多余的地址或参数过多）
+    private boolean malformedParams;
+
+    /**
+     * 解码一行命令（不含行尾CRLF），识别动词并定位参数
+     */
+    public SMTPCommandLine decode(byte[] line, int offset, int length) {
+        this.line = line;
+        this.end = offset + length;
+        this.pathStart = -1;
+        this.pathEnd = -1;
+        this.paramCount = 0;
+        this.malformedParams = false;
+
+        int verbEnd = offset;
+        while (verbEnd < end && !isSpace(line[verbEnd])) {
+            verbEnd++;
+        }
+        verb = Verb.UNKNOWN;
+        for (Verb candidate : VERBS) {
+            if (candidate != Verb.UNKNOWN && candidate.name.length == verbEnd - offset
+                && regionMatchesIgnoreCase(offset, candidate.name)) {
+                verb = candidate;
+                break;
+            }
+        }
+
+        argumentStart = skipSpaces(verbEnd);
+        argumentEnd = end;
+        while (argumentEnd > argumentStart && isSpace(line[argumentEnd - 1])) {
+            argumentEnd--;
+        }
+        return this;
+    }
+
+    /**
+     * 解析MAIL FROM:/RCPT TO:之后的地址和ESMTP参数
+     * @param prefix 大写的前缀，"FROM:"或"TO:"
+     * @return 前缀匹配且找到地址时返回true
+     */
+    public boolean parsePath(String prefix) {
+        if (argumentEnd - argumentStart < prefix.length() || !regionMatchesIgnoreCase(argumentStart, prefix)) {
+            return false;
+        }
+        int pos = skipSpaces(argumentStart + prefix.length());
+        if (pos < argumentEnd && line[pos] == '<') {
+            int close = indexOf((byte) '>', pos + 1, argumentEnd);
+            if (close < 0 || close == pos + 1) {
+                return false;
+            }
+            pathStart = pos + 1;
+            pathEnd = close;
+            pos = close + 1;
+        } else {
+            // 兼容不带尖括号的地址，此时必须包含@
+            int start = pos;
+            while (pos < argumentEnd && !isSpace(line[pos])) {
+                pos++;
+            }
+            if (start == pos || indexOf((byte) '@', start, pos) < 0) {
+                return false;
+            }
+            pathStart = start;
+            pathEnd = pos;
+        }
+        parseParams(pos);
+        return true;
+    }
+
+    private void parseParams(int pos) {
+        pos = skipSpaces(pos);
+        while (pos < argumentEnd) {
+            if (paramCount == MAX_PARAMS) {
+                malformedParams = true;
+                return;
+            }
+            int start = pos;
+            int equals = -1;
+            while (pos < argumentEnd && !isSpace(line[pos])) {
+                if (line[pos] == '=' && equals < 0) {
+                    equals = pos;
+                }
+                pos++;
+            }
+            keyStarts[paramCount] = start;
+            keyEnds[paramCount] = equals >= 0 ? equals : pos;
+            valueStarts[paramCount] = equals >= 0 ? equals + 1 : -1;
+            valueEnds[paramCount] = pos;
+            paramCount++;
+            pos = skipSpaces(pos);
+        }
+    }
+
+    public Verb verb() {
+        return verb;
+    }
+
+    public boolean hasArgument() {
+        return argumentEnd > argumentStart;
+    }
+
+    /**
+     * 参数原文，按UTF-8解码（会分配字符串，只在需要保存时调用）
+     */
+    public String argument() {
+        return new String(line, argumentStart, argumentEnd - argumentStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 参数按空白分隔后的单词数
+     */
+    public int argumentWordCount() {
+        int count = 0;
+        int pos = argumentStart;
+        while (pos < argumentEnd) {
+            count++;
+            while (pos < argumentEnd && !isSpace(line[pos])) {
+                pos++;
+            }
+            pos = skipSpaces(pos);
+        }
+        return count;
+    }
+
+    /**
+     * 第index个单词原文（按ASCII解码），不存在时返回null
+     */
+    public String argumentWord(int index) {
+        int start = wordStart(index);
+        if (start < 0) {
+            return null;
+        }
+        int stop = start;
+        while (stop < argumentEnd && !isSpace(line[stop])) {
+            stop++;
+        }
+        return new String(line, start, stop - start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 第index个单词按十进制解析，不是合法的非负数时返回-1，超出long范围时返回Long.MAX_VALUE
+     */
+    public long argumentWordAsLong(int index) {
+        int start = wordStart(index);
+        if (start < 0) {
+            return -1;
+        }
+        int stop = start;
+        while (stop < argumentEnd && !isSpace(line[stop])) {
+            stop++;
+        }
+        return parseLong(start, stop);
+    }
+
+    /**
+     * 第index个单词是否等于给定的大写ASCII单词（不区分大小写）
+     */
+    public boolean argumentWordEquals(int index, String upper) {
+        int start = wordStart(index);
+        if (start < 0) {
+            return false;
+        }
+        int stop = start;
+        while (stop < argumentEnd && !isSpace(line[stop])) {
+            stop++;
+        }
+        return stop - start == upper.length() && regionMatchesIgnoreCase(start, upper);
+    }
+
+    public boolean isMalformedParams() {
+        return malformedParams;
+    }
+
+    /**
+     * 地址（不含尖括号），按UTF-8解码为字符串
+     */
+    public String path() {
+        return new String(line, pathStart, pathEnd - pathStart, StandardCharsets.UTF_8);
+    }
+
+    public boolean isPathAscii() {
+        for (int i = pathStart; i < pathEnd; i++) {
+            if (line[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按名称查找ESMTP参数（不区分大小写）
+     * @return 参数序号，不存在时返回-1
+     */
+    public int findParam(String upperKey) {
+        for (int i = 0; i < paramCount; i++) {
+            if (keyEnds[i] - keyStarts[i] == upperKey.length() && regionMatchesIgnoreCase(keyStarts[i], upperKey)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean hasParamValue(int index) {
+        return valueStarts[index] >= 0 && valueEnds[index] > valueStarts[index];
+    }
+
+    /**
+     * 参数值是否等于给定的大写ASCII值（不区分大小写）
+     */
+    public boolean paramValueEquals(int index, String upper) {
+        return valueStarts[index] >= 0 && valueEnds[index] - valueStarts[index] == upper.length()
+            && regionMatchesIgnoreCase(valueStarts[index], upper);
+    }
+
+    /**
+     * 参数值按十进制解析，规则同 {@link #argumentWordAsLong}
+     */
+    public long paramValueAsLong(int index) {
+        return valueStarts[index] < 0 ? -1 : parseLong(valueStarts[index], valueEnds[index]);
+    }
+
+    public String paramValue(int index) {
+        return valueStarts[index] < 0 ? "" : new String(line, valueStarts[index], valueEnds[index] - valueStarts[index],
+            StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return line == null ? "" : new String(line, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private int wordStart(int index) {
+        int pos = argumentStart;
+        for (int i = 0; i < index && pos < argumentEnd; i++) {
+            while (pos < argumentEnd && !isSpace(line[pos])) {
+                pos++;
+            }
+            pos = skipSpaces(pos);
+        }
+        return pos < argumentEnd ? pos : -1;
+    }
+
+    private long parseLong(int start, int stop) {
+        if (start == stop) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < stop; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                return Long.MAX_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private int skipSpaces(int pos) {
+        while (pos < end && isSpace(line[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionMatchesIgnoreCase(int offset, byte[] upper) {
+        for (int i = 0; i < upper.length; i++) {
+            if (toUpper(line[offset + i]) != upper[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionMatchesIgnoreCase(int offset, String upper) {
+        for (int i = 0; i < upper.length(); i++) {
+            if (toUpper(line[offset + i]) != upper.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toUpper(byte b) {
+        return b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
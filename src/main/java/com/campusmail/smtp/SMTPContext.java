@@ -1,7 +1,9 @@
 package com.campusmail.smtp;
 
 import lombok.Data;
+import lombok.ToString;
 
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,33 +18,178 @@ public class SMTPContext {
         GREETED,        // 已收到HELO/EHLO
         MAIL_FROM,      // 已收到MAIL FROM
         RCPT_TO,        // 已收到RCPT TO
-        DATA            // 正在接收数据
+        DATA,           // 正在接收数据
+        BDAT            // 正在接收BDAT块数据
     }
 
-    private State state = State.INIT;
+    /**
+     * SMTP AUTH的多轮交互进度，不为NONE时下一行是客户端对334的应答而不是命令
+     */
+    public enum AuthStep {
+        NONE,
+        PLAIN,              // 等待PLAIN凭据
+        LOGIN_USERNAME,     // 等待LOGIN用户名
+        LOGIN_PASSWORD      // 等待LOGIN密码
+    }
+
+    // 管理接口从其他线程读取
+    private volatile State state = State.INIT;
+    // 客户端IP，用于准入控制和日志；经PROXY协议接入时为头部中的真实地址，读取头部后不再变化
+    private volatile InetAddress clientAddress;
+    // 经PROXY协议接入时为负载均衡器的地址，直连为null
+    private InetAddress proxyAddress;
+    // 已占用准入控制的会话名额，会话结束时释放；直连在接收时占用，PROXY协议连接在读取头部后占用
+    private boolean admitted;
+    // 已通过STARTTLS建立TLS
+    private boolean tls;
+    // 来自邮件提交端口（587），发信前必须通过AUTH认证
+    private boolean submission;
+    // 认证通过的用户，未认证时为null；管理接口从其他线程读取
+    private volatile SMTPSubmission.Submitter submitter;
+    private AuthStep authStep = AuthStep.NONE;
+    // 等待校验的凭据，校验后立即清除
+    private String authUsername;
+    @ToString.Exclude
+    private String authPassword;
+    private int authFailures;
     private String clientDomain;
     private String mailFrom;
+    // 提交端口：MAIL FROM对应的发件账户
+    private Long senderAccountId;
     private List<String> rcptTo = new ArrayList<>();
-    private StringBuilder dataBuffer = new StringBuilder();
+    // MAIL FROM带有SMTPUTF8参数，允许非ASCII地址
+    private boolean smtpUtf8;
+    // DATA内容暂存，进入DATA状态时创建
+    private MessageSpool dataSpool;
+    // 超过SIZE上限后丢弃剩余数据，结束时回复552
+    private boolean messageTooLarge;
+    // 暂存写入失败，结束时回复451
+    private boolean dataFailed;
+    // 内容中有超长行，丢弃剩余数据，结束时回复500
+    private boolean lineTooLong;
+
+    // 当前事务使用BDAT传输（RFC 3030 CHUNKING）
+    private boolean chunking;
+    private long chunkSize;
+    private long chunkRemaining;
+    private boolean lastChunk;
+    // 不在事务中收到的BDAT：数据仍需读完丢弃，之后回复503并回到该状态
+    private State rejectedChunkState;
+
+    // 命令解码器，每行命令复用
+    private final SMTPCommandLine commandLine = new SMTPCommandLine();
+
+    // 监控信息，由 SMTPSessionMonitor 在会话建立时设置
+    private long sessionId;
+    private long connectedAt;
+    private long connectedNanos;
+    private boolean greetingRecorded;
+    // DATA/BDAT开始接收的时间（System.nanoTime）
+    private long dataStartNanos;
+    // 会话线程更新，管理接口读取
+    private volatile long bytesReceived;
+    private volatile long lastActivityAt;
+
+    // 超时检查（SMTPSessionTimeouts定时线程读取），时间为System.currentTimeMillis，0表示不在该阶段
+    // 事务从MAIL FROM开始；内容接收从354或第一个BDAT开始，记录开始时已收到的字节数用于计算速率
+    private volatile long transactionStartedAt;
+    private volatile long dataStartedAt;
+    private volatile long dataStartBytes;
+    // 已因超时回复421的时间，超过期限仍未断开时强制关闭
+    private volatile long timedOutAt;
+    // 由会话设置，超时时回调
+    private volatile SMTPSessionTimeouts.Connection connection;
 
     public void reset() {
         mailFrom = null;
+        senderAccountId = null;
         rcptTo.clear();
-        dataBuffer = new StringBuilder();
+        smtpUtf8 = false;
+        discardData();
+        chunking = false;
+        chunkSize = 0;
+        chunkRemaining = 0;
+        lastChunk = false;
+        rejectedChunkState = null;
+        transactionStartedAt = 0;
+        dataStartedAt = 0;
         if (state != State.INIT) {
             state = State.GREETED;
         }
     }
 
-    public void addRecipient(String recipient) {
-        rcptTo.add(recipient);
+    /**
+     * TLS握手完成：丢弃握手前从客户端得到的全部信息（包括认证），客户端需重新EHLO（RFC 3207）
+     */
+    public void startTls() {
+        reset();
+        state = State.INIT;
+        clientDomain = null;
+        submitter = null;
+        clearCredentials();
+        tls = true;
+    }
+
+    /**
+     * 结束AUTH交互并丢弃尚未校验的凭据
+     */
+    public void clearCredentials() {
+        authStep = AuthStep.NONE;
+        authUsername = null;
+        authPassword = null;
+    }
+
+    /**
+     * 记录从客户端收到的字节数（TLS连接为解密后的字节数），只由会话线程调用
+     */
+    public void addBytesReceived(long bytes) {
+        bytesReceived += bytes;
+        lastActivityAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 读取PROXY头后改用客户端的真实地址，连接的对端地址保留为代理地址
+     * @param client 头部中的源地址，为null（负载均衡器的健康检查）时沿用连接地址
+     */
+    public void proxiedFrom(InetAddress client) {
+        proxyAddress = clientAddress;
+        if (client != null) {
+            clientAddress = client;
+        }
+    }
+
+    /**
+     * 开始接收邮件内容（DATA或第一个BDAT块）
+     */
+    public void startDataTransfer() {
+        dataStartNanos = System.nanoTime();
+        dataStartBytes = bytesReceived;
+        dataStartedAt = System.currentTimeMillis();
     }
 
-    public void appendData(String line) {
-        dataBuffer.append(line).append("\r\n");
+    /**
+     * 邮件内容接收完毕：之后是服务端写队列的时间，不再计入客户端的传输速率和事务时长
+     */
+    public void finishDataTransfer() {
+        dataStartedAt = 0;
+        transactionStartedAt = 0;
+        lastActivityAt = System.currentTimeMillis();
     }
 
-    public String getData() {
-        return dataBuffer.toString();
+    public void addRecipient(String recipient) {
+        rcptTo.add(recipient);
+    }
+
+    /**
+     * 释放暂存的DATA内容（包括临时文件）
+     */
+    public void discardData() {
+        if (dataSpool != null) {
+            dataSpool.close();
+            dataSpool = null;
+        }
+        messageTooLarge = false;
+        dataFailed = false;
+        lineTooLong = false;
     }
 }
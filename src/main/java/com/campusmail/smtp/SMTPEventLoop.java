@@ -0,0 +1,174 @@
+package com.campusmail.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * SMTP事件循环 - 单线程Selector，复用处理大量非阻塞连接
+ * 会话的所有读写和状态变更都在本线程执行，其他线程通过 {@link #execute} 投递任务
+ */
+public class SMTPEventLoop implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(SMTPEventLoop.class);
+
+    private final String name;
+    private final Selector selector;
+    private final SMTPCommandHandler commandHandler;
+    private final ExecutorService workerPool;
+    private final SMTPTlsContext tlsContext;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public SMTPEventLoop(String name, SMTPCommandHandler commandHandler, SMTPTlsContext tlsContext,
+                         ExecutorService workerPool) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.commandHandler = commandHandler;
+        this.workerPool = workerPool;
+        this.tlsContext = tlsContext;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * 将新接入的连接注册到本事件循环
+     */
+    public void register(SocketChannel channel, boolean proxyProtocol, boolean submission) {
+        execute(() -> {
+            NioSMTPSession session = null;
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                session = new NioSMTPSession(this, key, channel, commandHandler, workerPool, tlsContext, proxyProtocol,
+                    submission);
+                key.attach(session);
+                session.start();
+            } catch (IOException e) {
+                log.error("Error registering SMTP connection", e);
+                if (session != null) {
+                    session.close();
+                } else {
+                    // 会话未建立，仍需释放接收连接时占用的准入名额（PROXY协议连接尚未占用）
+                    SMTPContext context = new SMTPContext();
+                    context.setClientAddress(channel.socket().getInetAddress());
+                    context.setAdmitted(!proxyProtocol);
+                    closeQuietly(channel);
+                    commandHandler.sessionClosed(context);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在事件循环线程中执行任务
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+                processSelectedKeys();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                log.error("SMTP event loop {} select error", name, e);
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("SMTP event loop task failed", e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            NioSMTPSession session = (NioSMTPSession) key.attachment();
+            if (session == null || !key.isValid()) {
+                continue;
+            }
+            try {
+                if (key.isReadable()) {
+                    session.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    session.onWritable();
+                }
+            } catch (IOException e) {
+                log.debug("SMTP connection error: {}", e.getMessage());
+                session.close();
+            } catch (Exception e) {
+                log.error("SMTP session error", e);
+                session.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioSMTPSession session) {
+                session.close();
+            } else {
+                closeQuietly(key.channel());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Error closing selector", e);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // 关闭失败无需处理
+        }
+    }
+}
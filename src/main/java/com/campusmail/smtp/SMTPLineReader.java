@@ -0,0 +1,187 @@
+package com.campusmail.smtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 阻塞会话使用的字节输入 - 按CRLF切分行，也可按长度读取BDAT块数据
+ * 行内容保留为原始字节并复用同一缓冲区，DATA行不经过字符集解码直接写入暂存区，命令行由会话按UTF-8解码
+ * MailParser也用它按行扫描暂存区中的邮件
+ */
+public class SMTPLineReader {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final InputStream in;
+    private final int maxLineLength;
+    // 不为null时，读取的字节数计入该会话的统计
+    private final SMTPContext context;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    private byte[] lineBuffer = new byte[256];
+    // 最近一次 readLinePart 是否读到了行尾
+    private boolean lineComplete = true;
+
+    public SMTPLineReader(InputStream in) {
+        this(in, MAX_LINE_LENGTH, null);
+    }
+
+    public SMTPLineReader(InputStream in, SMTPContext context) {
+        this(in, MAX_LINE_LENGTH, context);
+    }
+
+    public SMTPLineReader(InputStream in, int maxLineLength) {
+        this(in, maxLineLength, null);
+    }
+
+    private SMTPLineReader(InputStream in, int maxLineLength, SMTPContext context) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+        this.context = context;
+    }
+
+    /**
+     * 读取一行到 {@link #line()}，去掉行尾的CRLF（或单独的LF）
+     * @return 行的字节长度，连接关闭时返回-1
+     * @throws SMTPLineTooLongException 行超过长度上限，该行已读完丢弃，可以继续读取下一行
+     */
+    public int readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                return length > 0 ? length : -1;
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                return length;
+            }
+            if (length == maxLineLength) {
+                skipLine();
+                throw new SMTPLineTooLongException(maxLineLength);
+            }
+            if (length == lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, (int) Math.min(lineBuffer.length * 2L, maxLineLength));
+            }
+            lineBuffer[length++] = b;
+        }
+    }
+
+    /**
+     * 读取一行到 {@link #line()}，超过长度上限的行分段返回，每段最多maxLineLength字节，缓冲区不再随行长增长
+     * 行尾的CRLF（或单独的LF）同样去掉，{@link #isLineComplete()} 表示本段是否已到行尾
+     * @return 本段的字节长度，连接关闭时返回-1
+     */
+    public int readLinePart() throws IOException {
+        int length = 0;
+        lineComplete = true;
+        while (true) {
+            if (position == limit && !fill()) {
+                return length > 0 ? length : -1;
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                return length;
+            }
+            if (length == lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, (int) Math.min(lineBuffer.length * 2L, maxLineLength));
+            }
+            lineBuffer[length++] = b;
+            if (length == maxLineLength) {
+                // 下一个字节是LF时本段就是整行，避免CR和LF被分到两段
+                if (position == limit && !fill()) {
+                    return length;
+                }
+                if (buffer[position] == '\n') {
+                    position++;
+                    return lineBuffer[length - 1] == '\r' ? length - 1 : length;
+                }
+                lineComplete = false;
+                return length;
+            }
+        }
+    }
+
+    /**
+     * 最近一次 {@link #readLinePart} 是否读到了行尾（或连接关闭）
+     */
+    public boolean isLineComplete() {
+        return lineComplete;
+    }
+
+    /**
+     * 丢弃到行尾（含LF）为止的数据，连接关闭时停止
+     */
+    private void skipLine() throws IOException {
+        while (position < limit || fill()) {
+            if (buffer[position++] == '\n') {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 最近一次 {@link #readLine} 读到的内容，下次读取时会被覆盖
+     */
+    public byte[] line() {
+        return lineBuffer;
+    }
+
+    /**
+     * 读取最多length个字节，先取缓冲区中的剩余数据，缓冲区为空时直接从socket读取
+     * @return 实际读取的字节数
+     */
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (position == limit) {
+            if (length >= BUFFER_SIZE) {
+                int n = in.read(data, offset, length);
+                if (n < 0) {
+                    throw new EOFException("Connection closed during chunk");
+                }
+                countReceived(n);
+                return n;
+            }
+            if (!fill()) {
+                throw new EOFException("Connection closed during chunk");
+            }
+        }
+        int n = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, data, offset, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * 客户端是否还有已发送未处理的数据，用于决定PIPELINING下何时flush响应
+     */
+    public boolean hasBufferedInput() throws IOException {
+        return position < limit || in.available() > 0;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, BUFFER_SIZE);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        countReceived(n);
+        return true;
+    }
+
+    private void countReceived(int n) {
+        if (context != null) {
+            context.addBytesReceived(n);
+        }
+    }
+}
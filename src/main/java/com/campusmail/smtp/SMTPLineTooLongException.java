@@ -0,0 +1,15 @@
+package com.campusmail.smtp;
+
+import java.io.IOException;
+
+/**
+ * 读到的行超过长度上限 - 抛出前 {@link SMTPLineReader} 已丢弃该行剩余的内容，连接仍可继续使用
+ */
+public class SMTPLineTooLongException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SMTPLineTooLongException(int maxLineLength) {
+        super("Line too long (max " + maxLineLength + " bytes)");
+    }
+}
@@ -1,27 +1,48 @@
 package com.campusmail.smtp;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
+import lombok.Value;
 
 /**
- * SMTP响应对象
+ * SMTP响应对象 - 不可变，固定响应作为常量在所有会话间共享
  */
-@Data
-@AllArgsConstructor
+@Value
 public class SMTPResponse {
 
     private String message;
     private boolean closeConnection;
+    // 响应写出后在该连接上开始TLS握手（STARTTLS）
+    private boolean startTls;
+    // 暂不回复，先校验AUTH凭据（查询数据库和BCrypt比较），由会话调用 SMTPCommandHandler.completeAuth 得到响应
+    private boolean verifyCredentials;
 
     public static SMTPResponse ok(String message) {
-        return new SMTPResponse(message, false);
+        return new SMTPResponse(message, false, false, false);
     }
 
     public static SMTPResponse error(String message) {
-        return new SMTPResponse(message, false);
+        return new SMTPResponse(message, false, false, false);
     }
 
     public static SMTPResponse bye(String message) {
-        return new SMTPResponse(message, true);
+        return new SMTPResponse(message, true, false, false);
+    }
+
+    public static SMTPResponse startTls(String message) {
+        return new SMTPResponse(message, false, true, false);
+    }
+
+    /**
+     * 暂不回复（BDAT需先读完块数据再给出响应）
+     */
+    public static SMTPResponse deferred() {
+        return new SMTPResponse(null, false, false, false);
+    }
+
+    public static SMTPResponse verifyCredentials() {
+        return new SMTPResponse(null, false, false, true);
+    }
+
+    public boolean isDeferred() {
+        return message == null && !verifyCredentials;
     }
 }
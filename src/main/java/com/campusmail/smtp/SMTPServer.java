@@ -8,14 +8,42 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
- * SMTP服务器 - 监听TCP端口25，使用多线程处理客户端连接
+ * SMTP服务器 - 监听TCP端口25
+ * blocking引擎：每个连接占用线程池中的一个线程
+ * virtual引擎：每个连接一个JDK虚拟线程（需JDK 21+，否则回退到blocking）
+ * nio引擎：少量事件循环线程复用所有连接，线程池只负责邮件解析和入库
+ *
+ * 虚拟线程模式下的pinning说明：会话代码本身不使用synchronized，JDK 21的BufferedWriter
+ * 和NIO socket流内部已改用ReentrantLock；会话只把邮件写入 {@link InboundMailQueue}，
+ * 使用synchronized的mysql-connector-j只在队列的投递线程（smtp.max-concurrent-deliveries个平台线程）中调用
+ *
+ * 接收连接时先经过 {@link SMTPAdmissionControl} 检查该IP的并发会话数，超限直接回复421并断开，不占用会话线程
+ *
+ * smtp.acceptor-threads大于1时绑定多个设置了SO_REUSEPORT的监听socket，每个由独立的接收线程accept，
+ * 由内核把新连接分散到各个监听队列；平台不支持SO_REUSEPORT时（如Windows）回退为单个监听socket和单个接收线程
+ *
+ * smtp.proxy-protocol.port不为0时另外监听一个端口供负载均衡器转发，该端口的连接必须以PROXY协议头开始，
+ * 会话读取头部后按客户端真实地址做准入控制，接收时不按负载均衡器的地址检查
+ *
+ * smtp.submission.port不为0时另外监听邮件提交端口（默认587），供用户从桌面客户端经AUTH认证后发信；
+ * 要求TLS（默认）而未配置STARTTLS证书时不启用该端口
  */
 @Component
 public class SMTPServer {
@@ -28,55 +56,277 @@ public class SMTPServer {
     @Value("${smtp.thread-pool-size:10}")
     private int threadPoolSize;
 
+    // 连接突发时的accept队列长度，过小会导致内核丢弃握手，服务端先发言的SMTP客户端会一直等待欢迎消息
+    @Value("${smtp.backlog:1024}")
+    private int backlog;
+
+    @Value("${smtp.engine:blocking}")
+    private String engine;
+
+    @Value("${smtp.nio.event-loop-threads:2}")
+    private int eventLoopThreads;
+
+    // 接收线程数，每个线程一个SO_REUSEPORT监听socket
+    @Value("${smtp.acceptor-threads:1}")
+    private int acceptorThreads;
+
+    // 负载均衡器转发的端口，0为不启用
+    @Value("${smtp.proxy-protocol.port:0}")
+    private int proxyProtocolPort;
+
+    // 允许连接转发端口的负载均衡器地址（逗号分隔的IP），为空时不限制
+    @Value("${smtp.proxy-protocol.trusted-proxies:}")
+    private String trustedProxies;
+
+    // 邮件提交端口（需AUTH认证），0为不启用
+    @Value("${smtp.submission.port:587}")
+    private int submissionPort;
+
+    @Value("${smtp.submission.require-tls:true}")
+    private boolean submissionRequiresTls;
+
+    private static final byte[] TOO_MANY_SESSIONS =
+        "421 Too many connections from your host, try again later\r\n".getBytes(StandardCharsets.US_ASCII);
+
     private final SMTPCommandHandler commandHandler;
+    private final SMTPAdmissionControl admissionControl;
+    private final SMTPTlsContext tlsContext;
+    private final SMTPSessionMonitor sessionMonitor;
 
-    private ServerSocket serverSocket;
+    private final List<Listener> listeners = new ArrayList<>();
+    private Set<InetAddress> trustedProxyAddresses = Set.of();
+    private final List<Thread> acceptThreads = new ArrayList<>();
     private ExecutorService executorService;
+    private SMTPEventLoop[] eventLoops;
     private volatile boolean running = false;
-    private Thread acceptThread;
 
-    public SMTPServer(SMTPCommandHandler commandHandler) {
+    public SMTPServer(SMTPCommandHandler commandHandler, SMTPAdmissionControl admissionControl,
+                      SMTPTlsContext tlsContext, SMTPSessionMonitor sessionMonitor) {
         this.commandHandler = commandHandler;
+        this.admissionControl = admissionControl;
+        this.tlsContext = tlsContext;
+        this.sessionMonitor = sessionMonitor;
     }
 
     @PostConstruct
     public void start() {
-        executorService = Executors.newFixedThreadPool(threadPoolSize);
+        executorService = "virtual".equalsIgnoreCase(engine)
+            ? newVirtualThreadExecutor()
+            : Executors.newFixedThreadPool(threadPoolSize);
+        // blocking引擎中排队的是等待会话线程的连接，nio引擎中是等待解析入库的邮件
+        sessionMonitor.monitorExecutor(isNioEngine() ? "workers" : "sessions", executorService);
+        if (isNioEngine()) {
+            startEventLoops();
+        }
         running = true;
 
-        acceptThread = new Thread(this::acceptConnections, "SMTP-Accept-Thread");
-        acceptThread.start();
-        log.info("SMTP Server started on port {}", port);
+        int acceptors;
+        boolean submission = isSubmissionEnabled();
+        try {
+            acceptors = openServerChannels(port, false, false);
+            if (proxyProtocolPort > 0) {
+                trustedProxyAddresses = resolveTrustedProxies();
+                openServerChannels(proxyProtocolPort, true, false);
+            }
+            if (submission) {
+                openServerChannels(submissionPort, false, true);
+            }
+        } catch (IOException e) {
+            log.error("Failed to start SMTP server on port {}", port, e);
+            closeServerChannels();
+            return;
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            Listener listener = listeners.get(i);
+            int firstEventLoop = i;
+            String name = listener.proxyProtocol() ? "SMTP-Proxy-Accept-Thread"
+                : listener.submission() ? "SMTP-Submission-Accept-Thread" : "SMTP-Accept-Thread";
+            Thread acceptThread = new Thread(() -> acceptConnections(listener, firstEventLoop),
+                acceptors == 1 ? name : name + "-" + (i % acceptors));
+            acceptThread.start();
+            acceptThreads.add(acceptThread);
+        }
+        log.info("SMTP Server started on port {} ({} engine, {} acceptor(s))", port, engine, acceptors);
+        if (proxyProtocolPort > 0) {
+            log.info("SMTP PROXY protocol listener started on port {} (trusted proxies: {})", proxyProtocolPort,
+                trustedProxyAddresses.isEmpty() ? "any" : trustedProxyAddresses);
+        }
+        if (submission) {
+            log.info("SMTP submission listener started on port {} (AUTH {})", submissionPort,
+                submissionRequiresTls ? "after STARTTLS" : "allowed without TLS");
+        }
+    }
+
+    private boolean isSubmissionEnabled() {
+        if (submissionPort <= 0) {
+            return false;
+        }
+        if (submissionRequiresTls && !tlsContext.isEnabled()) {
+            log.warn("SMTP submission port {} requires TLS but smtp.tls.key-store is not configured, not listening",
+                submissionPort);
+            return false;
+        }
+        return true;
     }
 
-    private void acceptConnections() {
+    /**
+     * 解析负载均衡器地址，只接受IP字面量；配置错误时启动失败，而不是静默放开转发端口
+     */
+    private Set<InetAddress> resolveTrustedProxies() throws UnknownHostException {
+        Set<InetAddress> addresses = new HashSet<>();
+        if (trustedProxies == null) {
+            return addresses;
+        }
+        for (String value : trustedProxies.split(",")) {
+            String address = value.trim();
+            if (address.isEmpty()) {
+                continue;
+            }
+            if (!Character.isDigit(address.charAt(0)) && address.indexOf(':') < 0) {
+                throw new UnknownHostException("smtp.proxy-protocol.trusted-proxies只接受IP地址: " + address);
+            }
+            addresses.add(InetAddress.getByName(address));
+        }
+        if (addresses.isEmpty()) {
+            log.warn("smtp.proxy-protocol.trusted-proxies is empty, any host can connect to port {} and claim a client address",
+                proxyProtocolPort);
+        }
+        return addresses;
+    }
+
+    /**
+     * 绑定监听socket：需要多个接收线程且支持SO_REUSEPORT时绑定多个，否则一个
+     * 多个线程在同一个ServerSocketChannel上accept会被通道内部的锁串行化，所以不支持时不再启动多个线程
+     * @return 该端口绑定的监听socket数
+     */
+    private int openServerChannels(int port, boolean proxyProtocol, boolean submission) throws IOException {
+        int count = Math.max(1, acceptorThreads);
+        if (count > 1 && !supportsReusePort()) {
+            log.warn("SO_REUSEPORT is not supported on this platform, using a single SMTP acceptor instead of {}", count);
+            count = 1;
+        }
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            listeners.add(new Listener(serverChannel, proxyProtocol, submission));
+            if (count > 1) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+        }
+        return count;
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean isNioEngine() {
+        return "nio".equalsIgnoreCase(engine);
+    }
+
+    /**
+     * 项目以JDK 17为编译目标，通过反射创建虚拟线程执行器，运行在JDK 21+时生效
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads require JDK 21+, falling back to fixed thread pool of {}", threadPoolSize);
+            return Executors.newFixedThreadPool(threadPoolSize);
+        }
+    }
+
+    private void startEventLoops() {
+        int count = Math.max(1, eventLoopThreads);
+        eventLoops = new SMTPEventLoop[count];
         try {
-            serverSocket = new ServerSocket(port);
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    log.info("New SMTP connection from {}", clientSocket.getRemoteSocketAddress());
-                    executorService.submit(new SMTPSession(clientSocket, commandHandler));
-                } catch (IOException e) {
-                    if (running) {
-                        log.error("Error accepting connection", e);
+            for (int i = 0; i < count; i++) {
+                eventLoops[i] = new SMTPEventLoop("SMTP-EventLoop-" + i, commandHandler, tlsContext, executorService);
+                eventLoops[i].start();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("无法启动SMTP事件循环", e);
+        }
+    }
+
+    /**
+     * 接收线程：各自从不同的事件循环开始轮询分配，计数器为线程内的局部变量
+     * 转发端口的连接此时的对端是负载均衡器，准入控制推迟到会话读取PROXY头之后
+     */
+    private void acceptConnections(Listener listener, int firstEventLoop) {
+        ServerSocketChannel serverChannel = listener.channel();
+        int nextEventLoop = firstEventLoop;
+        while (running) {
+            try {
+                SocketChannel clientChannel = serverChannel.accept();
+                log.info("New SMTP connection from {}", clientChannel.getRemoteAddress());
+                InetAddress remoteAddress = clientChannel.socket().getInetAddress();
+                if (listener.proxyProtocol()) {
+                    if (trustedProxyAddresses.isEmpty() || trustedProxyAddresses.contains(remoteAddress)) {
+                        dispatch(clientChannel, nextEventLoop++, true, false);
+                    } else {
+                        log.warn("Rejecting PROXY protocol connection from untrusted host {}", remoteAddress.getHostAddress());
+                        closeQuietly(clientChannel);
                     }
+                } else if (admissionControl.tryOpenSession(remoteAddress)) {
+                    dispatch(clientChannel, nextEventLoop++, false, listener.submission());
+                } else {
+                    reject(clientChannel);
+                }
+            } catch (IOException e) {
+                if (running && serverChannel.isOpen()) {
+                    log.error("Error accepting connection", e);
+                } else {
+                    return;
                 }
             }
+        }
+    }
+
+    private void dispatch(SocketChannel clientChannel, int eventLoopIndex, boolean proxyProtocol, boolean submission) {
+        if (eventLoops != null) {
+            eventLoops[Math.floorMod(eventLoopIndex, eventLoops.length)].register(clientChannel, proxyProtocol, submission);
+        } else {
+            executorService.submit(new SMTPSession(clientChannel.socket(), commandHandler, tlsContext, proxyProtocol,
+                submission));
+        }
+    }
+
+    /**
+     * 回复421后关闭连接；接收到的通道仍是阻塞模式，一行响应可以直接写入发送缓冲区
+     */
+    private void reject(SocketChannel clientChannel) {
+        try (clientChannel) {
+            clientChannel.write(ByteBuffer.wrap(TOO_MANY_SESSIONS));
         } catch (IOException e) {
-            log.error("Failed to start SMTP server on port {}", port, e);
+            log.debug("Error rejecting SMTP connection: {}", e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(SocketChannel clientChannel) {
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            log.debug("Error closing SMTP connection: {}", e.getMessage());
         }
     }
 
     @PreDestroy
     public void stop() {
         running = false;
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+        closeServerChannels();
+        acceptThreads.clear();
+
+        if (eventLoops != null) {
+            for (SMTPEventLoop eventLoop : eventLoops) {
+                if (eventLoop != null) {
+                    eventLoop.shutdown();
+                }
             }
-        } catch (IOException e) {
-            log.error("Error closing server socket", e);
         }
 
         if (executorService != null) {
@@ -92,4 +342,21 @@ public class SMTPServer {
         }
         log.info("SMTP Server stopped");
     }
+
+    private void closeServerChannels() {
+        for (Listener listener : listeners) {
+            try {
+                listener.channel().close();
+            } catch (IOException e) {
+                log.error("Error closing server socket", e);
+            }
+        }
+        listeners.clear();
+    }
+
+    /**
+     * 监听socket，proxyProtocol表示连接以PROXY协议头开始，submission表示邮件提交端口
+     */
+    private record Listener(ServerSocketChannel channel, boolean proxyProtocol, boolean submission) {
+    }
 }
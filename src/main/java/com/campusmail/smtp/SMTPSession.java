@@ -3,53 +3,233 @@ package com.campusmail.smtp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * SMTP会话处理 - 处理单个客户端连接的完整SMTP交互
+ * 支持PIPELINING：响应先写入缓冲区，客户端这一批命令全部处理完（输入缓冲为空）时才统一flush
+ * 支持CHUNKING：BDAT命令后按声明的长度直接读取原始字节
+ * 支持STARTTLS：回复220后在同一连接上完成握手，之后经SSLSocket读写
+ * 超时由 {@link SMTPSessionTimeouts} 通知：关闭socket输入端唤醒阻塞的读，会话线程写出421后断开
+ * 经负载均衡器转发的连接先读取PROXY协议头，之后按客户端真实地址做准入控制再发送欢迎消息
+ * 提交端口的AUTH凭据直接在会话线程中校验
  */
-public class SMTPSession implements Runnable {
+public class SMTPSession implements Runnable, SMTPSessionTimeouts.Connection {
 
     private static final Logger log = LoggerFactory.getLogger(SMTPSession.class);
 
     private final Socket socket;
     private final SMTPCommandHandler commandHandler;
+    private final SMTPTlsContext tlsContext;
+    private final boolean proxyProtocol;
+    private final boolean submission;
+    private final byte[] chunkBuffer = new byte[8192];
 
-    public SMTPSession(Socket socket, SMTPCommandHandler commandHandler) {
+    // STARTTLS之后替换为SSLSocket上的读写
+    private Socket activeSocket;
+    private SMTPLineReader reader;
+    private Writer writer;
+    // 超时后要回复的421，由定时线程设置
+    private volatile String timeoutReply;
+
+    public SMTPSession(Socket socket, SMTPCommandHandler commandHandler, SMTPTlsContext tlsContext,
+                       boolean proxyProtocol, boolean submission) {
         this.socket = socket;
         this.commandHandler = commandHandler;
+        this.tlsContext = tlsContext;
+        this.proxyProtocol = proxyProtocol;
+        this.submission = submission;
     }
 
     @Override
     public void run() {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true)) {
+        SMTPContext context = new SMTPContext();
+        context.setClientAddress(socket.getInetAddress());
+        // 直连的会话已在接收连接时占用准入名额
+        context.setAdmitted(!proxyProtocol);
+        context.setSubmission(submission);
+        context.setConnection(this);
+        commandHandler.sessionOpened(context);
+        activeSocket = socket;
+        try {
+            SMTPResponse rejected = null;
+            if (proxyProtocol) {
+                // 逐字节读取，不会多读头部之后的数据
+                ProxyProtocolHeader header = ProxyProtocolHeader.read(socket.getInputStream());
+                context.addBytesReceived(header.length());
+                SMTPResponse greeting = commandHandler.openProxiedSession(context, header);
+                rejected = greeting.isCloseConnection() ? greeting : null;
+            }
+            reader = new SMTPLineReader(socket.getInputStream(), context);
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            if (rejected != null) {
+                reply(writer, rejected.getMessage());
+                writer.flush();
+                return;
+            }
 
             // 发送欢迎消息
-            writer.println("220 CampusMail SMTP Server Ready");
+            reply(writer, commandHandler.greeting().getMessage());
+            writer.flush();
 
-            SMTPContext context = new SMTPContext();
-            String line;
+            int length;
 
-            while ((line = reader.readLine()) != null) {
-                log.debug("SMTP received: {}", line);
+            while ((length = readLine(context)) >= 0) {
+                if (timeoutReply != null) {
+                    // 输入端关闭前已到达的半行不再处理
+                    break;
+                }
+                if (context.getState() == SMTPContext.State.DATA) {
+                    if (commandHandler.handleDataLine(reader.line(), 0, length, context)) {
+                        reply(writer, commandHandler.completeData(context).getMessage());
+                        flushIfIdle(reader, writer);
+                    }
+                    continue;
+                }
 
-                SMTPResponse response = commandHandler.handleCommand(line, context, reader);
-                writer.println(response.getMessage());
+                if (log.isDebugEnabled()) {
+                    log.debug("SMTP received: {}", commandHandler.loggableCommand(reader.line(), 0, length, context));
+                }
+
+                SMTPResponse response = commandHandler.handleCommand(reader.line(), 0, length, context);
+                if (response.isDeferred()) {
+                    response = receiveChunk(reader, context);
+                } else if (response.isVerifyCredentials()) {
+                    response = commandHandler.completeAuth(context);
+                }
+                reply(writer, response.getMessage());
 
                 if (response.isCloseConnection()) {
+                    writer.flush();
                     break;
                 }
+                if (response.isStartTls()) {
+                    startTls(context);
+                    continue;
+                }
+                flushIfIdle(reader, writer);
             }
+        } catch (SSLException e) {
+            log.debug("SMTP TLS error: {}", e.getMessage());
+        } catch (ProtocolException e) {
+            log.warn("Invalid PROXY protocol header from {}: {}", socket.getInetAddress().getHostAddress(), e.getMessage());
         } catch (IOException e) {
-            log.error("SMTP session error", e);
+            if (timeoutReply == null) {
+                log.error("SMTP session error", e);
+            }
         } finally {
+            if (timeoutReply != null && writer != null) {
+                sendTimeoutReply();
+            }
+            // 连接中断时清理未完成的DATA暂存
+            context.discardData();
             try {
-                socket.close();
+                activeSocket.close();
             } catch (IOException e) {
                 log.error("Error closing socket", e);
             }
+            commandHandler.sessionClosed(context);
+        }
+    }
+
+    /**
+     * 定时线程调用：输入端关闭后阻塞中的读返回EOF，由会话线程回复421
+     * TLS连接关闭的是底层socket的输入端，SSLSocket读到EOF后同样结束
+     */
+    @Override
+    public void timeout(String reply) {
+        timeoutReply = reply;
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    /**
+     * 定时线程调用：会话线程阻塞在写上（客户端不读取）时关闭socket使写失败
+     */
+    @Override
+    public void abort() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Error aborting SMTP session: {}", e.getMessage());
+        }
+    }
+
+    private void sendTimeoutReply() {
+        try {
+            reply(writer, timeoutReply);
+            writer.flush();
+        } catch (IOException e) {
+            log.debug("Error sending SMTP timeout reply: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 在当前连接上完成TLS握手，之后的读写都经过SSLSocket
+     * 客户端在STARTTLS之后、握手之前发送的明文必须丢弃，避免被当作加密后的命令执行
+     */
+    private void startTls(SMTPContext context) throws IOException {
+        // 220写出之前客户端不可能开始握手，此时已到达的数据都是流水线发送的明文
+        if (reader.hasBufferedInput()) {
+            log.warn("Discarding plaintext pipelined after STARTTLS from {}", socket.getInetAddress().getHostAddress());
+        }
+        writer.flush();
+        SSLSocket sslSocket = tlsContext.startTls(socket);
+        activeSocket = sslSocket;
+        reader = new SMTPLineReader(sslSocket.getInputStream(), context);
+        writer = new BufferedWriter(new OutputStreamWriter(sslSocket.getOutputStream(), StandardCharsets.UTF_8));
+        context.startTls();
+    }
+
+    /**
+     * 读取下一行；超长的行已被读取器丢弃，按处理器的决定回复500后继续读取，不断开连接
+     */
+    private int readLine(SMTPContext context) throws IOException {
+        while (true) {
+            try {
+                return reader.readLine();
+            } catch (SMTPLineTooLongException e) {
+                SMTPResponse response = commandHandler.handleLineTooLong(context);
+                if (response != null) {
+                    reply(writer, response.getMessage());
+                    flushIfIdle(reader, writer);
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取BDAT声明长度的块数据（可以为0），读完后给出该块的响应
+     */
+    private SMTPResponse receiveChunk(SMTPLineReader reader, SMTPContext context) throws IOException {
+        while (context.getChunkRemaining() > 0) {
+            int want = (int) Math.min(chunkBuffer.length, context.getChunkRemaining());
+            int n = reader.read(chunkBuffer, 0, want);
+            commandHandler.handleChunkData(chunkBuffer, 0, n, context);
+        }
+        return commandHandler.completeChunk(context);
+    }
+
+    private void reply(Writer writer, String message) throws IOException {
+        writer.write(message);
+        writer.write("\r\n");
+    }
+
+    /**
+     * 客户端还有已发送未处理的命令时继续缓冲响应，否则一次性写出
+     */
+    private void flushIfIdle(SMTPLineReader reader, Writer writer) throws IOException {
+        if (!reader.hasBufferedInput()) {
+            writer.flush();
         }
     }
 }
@@ -0,0 +1,139 @@
+package com.campusmail.smtp;
+
+import com.campusmail.dto.SMTPSessionDTO;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SMTP会话监控 - 记录各阶段耗时（直方图），统计在线会话数和线程池排队数，并提供在线会话列表
+ * 指标通过Micrometer导出：
+ * smtp.session.phase{phase=greeting|auth|mail|rcpt|data|queue|submit|parse|persist} 各阶段耗时
+ * smtp.sessions.active 在线会话数
+ * smtp.executor.queue{executor=...} 线程池中等待执行的任务数
+ */
+@Component
+public class SMTPSessionMonitor {
+
+    public enum Phase {
+        GREETING,   // 连接建立到收到第一个HELO/EHLO
+        AUTH,       // 校验SMTP AUTH凭据（BCrypt比较或命中校验缓存）
+        MAIL,       // 处理MAIL FROM命令
+        RCPT,       // 处理RCPT TO命令（含收件人目录查找）
+        DATA,       // 354（或第一个BDAT）到邮件内容接收完毕
+        QUEUE,      // 写入持久化队列并fsync，完成后才回复250
+        SUBMIT,     // 提交端口的邮件解析并发送，完成后才回复250
+        PARSE,      // 投递线程解析邮件
+        PERSIST     // 入库，批量入库时从交给入库线程算起，包括等待同批邮件的时间
+    }
+
+    private final MeterRegistry registry;
+    private final Map<Phase, Timer> timers = new EnumMap<>(Phase.class);
+    private final Map<Long, SMTPContext> sessions = new ConcurrentHashMap<>();
+    // 服务器重启后会换成新的线程池，指标只注册一次，读取时取当前的线程池
+    private final Map<String, ThreadPoolExecutor> executors = new ConcurrentHashMap<>();
+    private final AtomicLong nextSessionId = new AtomicLong();
+
+    public SMTPSessionMonitor(MeterRegistry registry) {
+        this.registry = registry;
+        for (Phase phase : Phase.values()) {
+            timers.put(phase, Timer.builder("smtp.session.phase")
+                .description("SMTP会话各阶段耗时")
+                .tag("phase", phase.name().toLowerCase(Locale.ROOT))
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .publishPercentileHistogram()
+                .register(registry));
+        }
+        Gauge.builder("smtp.sessions.active", sessions, Map::size)
+            .description("当前在线的SMTP会话数")
+            .register(registry);
+    }
+
+    /**
+     * 会话建立：分配会话ID并加入在线列表
+     */
+    public void sessionOpened(SMTPContext context) {
+        context.setSessionId(nextSessionId.incrementAndGet());
+        context.setConnectedAt(System.currentTimeMillis());
+        context.setConnectedNanos(System.nanoTime());
+        context.setLastActivityAt(context.getConnectedAt());
+        sessions.put(context.getSessionId(), context);
+    }
+
+    public void sessionClosed(SMTPContext context) {
+        sessions.remove(context.getSessionId());
+    }
+
+    /**
+     * 在线会话的上下文，供超时检查遍历
+     */
+    Collection<SMTPContext> contexts() {
+        return sessions.values();
+    }
+
+    /**
+     * 记录从startNanos（System.nanoTime）到现在的耗时
+     */
+    public void record(Phase phase, long startNanos) {
+        timers.get(phase).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 导出线程池的排队任务数；虚拟线程执行器没有队列，不导出
+     */
+    public void monitorExecutor(String name, ExecutorService executor) {
+        if (!(executor instanceof ThreadPoolExecutor threadPool)) {
+            return;
+        }
+        if (executors.put(name, threadPool) == null) {
+            Gauge.builder("smtp.executor.queue", executors, map -> {
+                    ThreadPoolExecutor current = map.get(name);
+                    return current == null ? 0 : current.getQueue().size();
+                })
+                .description("SMTP线程池中等待执行的任务数")
+                .tag("executor", name)
+                .register(registry);
+        }
+    }
+
+    /**
+     * 在线会话快照，按连接时间排序；字段由会话线程更新，读到的是近似值
+     */
+    public List<SMTPSessionDTO> liveSessions() {
+        long now = System.currentTimeMillis();
+        return sessions.values().stream()
+            .map(context -> toDTO(context, now))
+            .sorted(Comparator.comparingLong(SMTPSessionDTO::getSessionId))
+            .toList();
+    }
+
+    private static SMTPSessionDTO toDTO(SMTPContext context, long now) {
+        SMTPSessionDTO dto = new SMTPSessionDTO();
+        dto.setSessionId(context.getSessionId());
+        dto.setClientAddress(context.getClientAddress() == null ? null : context.getClientAddress().getHostAddress());
+        dto.setProxyAddress(context.getProxyAddress() == null ? null : context.getProxyAddress().getHostAddress());
+        dto.setClientDomain(context.getClientDomain());
+        dto.setState(context.getState().name());
+        dto.setTls(context.isTls());
+        dto.setAuthenticatedUser(context.getSubmitter() == null ? null : context.getSubmitter().username());
+        dto.setMailFrom(context.getMailFrom());
+        dto.setRecipientCount(context.getRcptTo().size());
+        dto.setBytesReceived(context.getBytesReceived());
+        dto.setConnectedMillis(now - context.getConnectedAt());
+        dto.setIdleMillis(now - context.getLastActivityAt());
+        return dto;
+    }
+}
@@ -0,0 +1,140 @@
+package com.campusmail.smtp;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SMTP会话超时 - 一个定时线程每秒遍历 {@link SMTPSessionMonitor} 中的在线会话，不为每个会话单独设置定时器
+ * 命令超时：等待下一条命令（包括连接后的第一条）的时间
+ * DATA空闲超时：接收邮件内容期间两次收到数据的间隔
+ * 事务超时：从MAIL FROM到邮件内容接收完毕的总时长
+ * 最低速率：接收邮件内容超过宽限期后，平均速率低于下限视为慢速攻击（slowloris）
+ * 超时的会话回复421后断开；客户端不读取导致421写不出时，期限过后强制关闭连接
+ * 各项配置为0时不检查
+ */
+@Component
+public class SMTPSessionTimeouts {
+
+    private static final Logger log = LoggerFactory.getLogger(SMTPSessionTimeouts.class);
+
+    // 回复421后仍未断开的会话，超过该时间强制关闭
+    private static final long ABORT_AFTER_MS = 10_000;
+
+    private static final String COMMAND_TIMEOUT = "421 Timeout waiting for command, closing connection";
+    private static final String DATA_TIMEOUT = "421 Timeout waiting for data, closing connection";
+    private static final String TRANSACTION_TIMEOUT = "421 Transaction time limit exceeded, closing connection";
+    private static final String TOO_SLOW = "421 Data transfer rate too low, closing connection";
+
+    /**
+     * 会话的超时回调，在定时线程中调用，实现需要切换到会话自己的线程处理读写
+     */
+    public interface Connection {
+        // 回复421并断开
+        void timeout(String reply);
+
+        // 421无法写出时强制关闭
+        void abort();
+    }
+
+    private final SMTPSessionMonitor sessionMonitor;
+    private final long commandTimeoutMillis;
+    private final long dataIdleTimeoutMillis;
+    private final long transactionTimeoutMillis;
+    private final long minDataRate;
+    private final long minDataRateGraceMillis;
+
+    private ScheduledExecutorService timer;
+
+    public SMTPSessionTimeouts(SMTPSessionMonitor sessionMonitor,
+                               @Value("${smtp.timeouts.command-seconds:300}") long commandSeconds,
+                               @Value("${smtp.timeouts.data-idle-seconds:180}") long dataIdleSeconds,
+                               @Value("${smtp.timeouts.transaction-seconds:900}") long transactionSeconds,
+                               @Value("${smtp.timeouts.min-data-rate:1024}") long minDataRate,
+                               @Value("${smtp.timeouts.min-data-rate-grace-seconds:30}") long minDataRateGraceSeconds) {
+        this.sessionMonitor = sessionMonitor;
+        this.commandTimeoutMillis = commandSeconds * 1000;
+        this.dataIdleTimeoutMillis = dataIdleSeconds * 1000;
+        this.transactionTimeoutMillis = transactionSeconds * 1000;
+        this.minDataRate = minDataRate;
+        this.minDataRateGraceMillis = minDataRateGraceSeconds * 1000;
+    }
+
+    @PostConstruct
+    public void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SMTP-Session-Timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (SMTPContext context : sessionMonitor.contexts()) {
+            Connection connection = context.getConnection();
+            if (connection == null) {
+                continue;
+            }
+            try {
+                if (context.getTimedOutAt() > 0) {
+                    if (now - context.getTimedOutAt() > ABORT_AFTER_MS) {
+                        log.info("SMTP session {} did not close after timeout, aborting", context.getSessionId());
+                        connection.abort();
+                    }
+                    continue;
+                }
+                String reply = check(context, now);
+                if (reply != null) {
+                    log.info("SMTP session {} from {} timed out in state {}: {}", context.getSessionId(),
+                        context.getClientAddress() == null ? null : context.getClientAddress().getHostAddress(),
+                        context.getState(), reply);
+                    context.setTimedOutAt(now);
+                    connection.timeout(reply);
+                }
+            } catch (Exception e) {
+                log.error("Error checking SMTP session {} timeout", context.getSessionId(), e);
+            }
+        }
+    }
+
+    /**
+     * @return 超时时的421响应，未超时返回null
+     */
+    private String check(SMTPContext context, long now) {
+        long idle = now - context.getLastActivityAt();
+        long dataStartedAt = context.getDataStartedAt();
+        if (dataStartedAt > 0) {
+            if (dataIdleTimeoutMillis > 0 && idle > dataIdleTimeoutMillis) {
+                return DATA_TIMEOUT;
+            }
+            long elapsed = now - dataStartedAt;
+            if (minDataRate > 0 && elapsed > minDataRateGraceMillis
+                && (context.getBytesReceived() - context.getDataStartBytes()) * 1000 / elapsed < minDataRate) {
+                return TOO_SLOW;
+            }
+        } else if (commandTimeoutMillis > 0 && idle > commandTimeoutMillis) {
+            return COMMAND_TIMEOUT;
+        }
+        long transactionStartedAt = context.getTransactionStartedAt();
+        if (transactionTimeoutMillis > 0 && transactionStartedAt > 0 && now - transactionStartedAt > transactionTimeoutMillis) {
+            return TRANSACTION_TIMEOUT;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,113 @@
+package com.campusmail.smtp;
+
+import com.campusmail.entity.Mail;
+import com.campusmail.entity.MailAccount;
+import com.campusmail.entity.User;
+import com.campusmail.mapper.MailAccountMapper;
+import com.campusmail.service.MailService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 邮件提交（RFC 6409，端口587）- 已通过SMTP AUTH认证的用户从桌面客户端发信
+ * 认证时一次查出该用户的全部邮件账户，MAIL FROM只能使用其中的地址，会话内检查不再访问数据库
+ * 邮件内容接收完毕后同步解析并交给 {@link MailService#submitMail}，与网页发信走同一流程，成功后才回复250；
+ * 提交的邮件不经过入站持久化队列
+ */
+@Component
+public class SMTPSubmission {
+
+    private static final Logger log = LoggerFactory.getLogger(SMTPSubmission.class);
+
+    private final SMTPAuthenticator authenticator;
+    private final MailAccountMapper mailAccountMapper;
+    private final MailParser mailParser;
+    private final MailService mailService;
+    private final boolean tlsRequired;
+    private final int maxAuthFailures;
+
+    /**
+     * 已认证的用户
+     * @param accounts 该用户的邮件地址（小写）到账户ID
+     */
+    public record Submitter(Long userId, String username, Map<String, Long> accounts) {
+
+        /**
+         * @return 地址属于该用户时返回账户ID，否则返回null
+         */
+        public Long accountId(String address) {
+            return address == null ? null : accounts.get(address.toLowerCase());
+        }
+    }
+
+    public SMTPSubmission(SMTPAuthenticator authenticator,
+                          MailAccountMapper mailAccountMapper,
+                          MailParser mailParser,
+                          MailService mailService,
+                          @Value("${smtp.submission.require-tls:true}") boolean tlsRequired,
+                          @Value("${smtp.submission.max-auth-failures:3}") int maxAuthFailures) {
+        this.authenticator = authenticator;
+        this.mailAccountMapper = mailAccountMapper;
+        this.mailParser = mailParser;
+        this.mailService = mailService;
+        this.tlsRequired = tlsRequired;
+        this.maxAuthFailures = maxAuthFailures;
+    }
+
+    /**
+     * 只允许在TLS连接上认证，避免密码以明文传输
+     */
+    public boolean isTlsRequired() {
+        return tlsRequired;
+    }
+
+    /**
+     * 单个会话允许的认证失败次数，达到后断开连接；0表示不限制
+     */
+    public int getMaxAuthFailures() {
+        return maxAuthFailures;
+    }
+
+    /**
+     * 校验凭据并加载用户的邮件账户，会查询数据库，NIO引擎下应在工作线程中调用
+     * @return 认证失败时返回null
+     */
+    public Submitter authenticate(String username, String password) {
+        User user = authenticator.authenticate(username, password);
+        if (user == null) {
+            return null;
+        }
+        Map<String, Long> accounts = new HashMap<>();
+        for (MailAccount account : mailAccountMapper.findByUserId(user.getId())) {
+            accounts.put(account.getEmailAddress().toLowerCase(), account.getId());
+        }
+        return new Submitter(user.getId(), user.getUsername(), accounts);
+    }
+
+    /**
+     * 解析邮件并按网页发信的流程发送；失败时删除解析时写出的附件文件
+     */
+    public Mail submit(Submitter submitter, Long accountId, String mailFrom, List<String> rcptTo,
+                       MessageSpool data) throws IOException {
+        ParsedMail parsedMail;
+        try (InputStream in = data.openInputStream()) {
+            parsedMail = mailParser.parse(in, mailFrom, rcptTo);
+        }
+        try {
+            Mail mail = mailService.submitMail(submitter.userId(), accountId, parsedMail);
+            log.info("SMTP submission from {} accepted as mail {}", submitter.username(), mail.getId());
+            return mail;
+        } catch (RuntimeException e) {
+            mailParser.discardAttachments(parsedMail);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.campusmail.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * STARTTLS（RFC 3207）使用的TLS上下文
+ * 整个SMTP服务器共用一个SSLContext，两种会话模型共享同一个服务端会话缓存：
+ * TLS 1.2客户端按会话ID恢复，TLS 1.3客户端使用会话票据，再次连接的中继只需简短握手
+ * 未配置smtp.tls.key-store时不启用，EHLO不公布STARTTLS
+ */
+@Component
+public class SMTPTlsContext {
+
+    private static final Logger log = LoggerFactory.getLogger(SMTPTlsContext.class);
+
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    private final SSLContext sslContext;
+
+    public SMTPTlsContext(@Value("${smtp.tls.key-store:}") String keyStorePath,
+                          @Value("${smtp.tls.key-store-password:}") String keyStorePassword,
+                          @Value("${smtp.tls.key-store-type:PKCS12}") String keyStoreType,
+                          @Value("${smtp.tls.session-cache-size:20000}") int sessionCacheSize,
+                          @Value("${smtp.tls.session-timeout:3600}") int sessionTimeoutSeconds) {
+        if (!StringUtils.hasText(keyStorePath)) {
+            this.sslContext = null;
+            return;
+        }
+        try (InputStream in = Files.newInputStream(Paths.get(keyStorePath))) {
+            char[] password = keyStorePassword.toCharArray();
+            KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password);
+
+            this.sslContext = SSLContext.getInstance("TLS");
+            this.sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException("无法加载SMTP TLS证书", e);
+        }
+        log.info("SMTP STARTTLS enabled with key store {}", keyStorePath);
+    }
+
+    public boolean isEnabled() {
+        return sslContext != null;
+    }
+
+    /**
+     * 阻塞会话：在已建立的连接上完成服务端握手，返回之后用于读写的SSLSocket
+     * 关闭返回的SSLSocket时一并关闭原连接
+     */
+    public SSLSocket startTls(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(
+            socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.setEnabledProtocols(PROTOCOLS);
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    /**
+     * 非阻塞会话：创建服务端SSLEngine，握手由 {@link NioTlsChannel} 在读写时推进
+     */
+    public SSLEngine createEngine(String peerHost, int peerPort) {
+        SSLEngine engine = sslContext.createSSLEngine(peerHost, peerPort);
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(PROTOCOLS);
+        return engine;
+    }
+}
@@ -0,0 +1,154 @@
+package com.campusmail.loadtest;
+
+import com.campusmail.mapper.AttachmentMapper;
+import com.campusmail.mapper.MailAccountMapper;
+import com.campusmail.mapper.MailMapper;
+import com.campusmail.service.MailService;
+import com.campusmail.service.impl.MailServiceImpl;
+import com.campusmail.smtp.InboundDedupIndex;
+import org.apache.ibatis.builder.xml.XMLMapperBuilder;
+import org.apache.ibatis.datasource.pooled.PooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.session.SqlSessionManager;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * 压测用的嵌入式数据库 - H2内存库代替MySQL
+ * 表结构取自 sql/schema.sql，在MySQL兼容模式下建表（去掉H2不支持的普通索引、全文索引和表选项），SQL使用项目自己的MyBatis映射文件
+ * 建表后切回H2的普通模式：MySQL模式下并发的多行INSERT会分配到重复的自增ID（H2 2.2），投递线程会因此反复重试
+ * 每次mapper调用自动提交，与生产环境的事务边界不同，只用于对比引擎和发现回归，不代表MySQL上的绝对吞吐
+ */
+public class EmbeddedMailDatabase {
+
+    private final String url;
+    private final SqlSessionManager sessionManager;
+
+    public EmbeddedMailDatabase(String name, Path schemaFile, int poolSize) {
+        this.url = "jdbc:h2:mem:" + name + ";DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+        try {
+            createSchema(Files.readString(schemaFile, StandardCharsets.UTF_8));
+            this.sessionManager = SqlSessionManager.newInstance(buildSessionFactory(poolSize));
+        } catch (IOException | SQLException e) {
+            throw new RuntimeException("无法初始化压测数据库", e);
+        }
+    }
+
+    /**
+     * 与生产环境相同的MailServiceImpl；SMTP入站投递用不到附件服务和外发组件
+     */
+    public MailService mailService() {
+        return new MailServiceImpl(mapper(MailMapper.class), mapper(AttachmentMapper.class), null,
+            mapper(MailAccountMapper.class), null, new InboundDedupIndex(86400, 200000));
+    }
+
+    public <T> T mapper(Class<T> type) {
+        return sessionManager.getMapper(type);
+    }
+
+    /**
+     * 注册MyBatis插件（如统计语句数），只对之后执行的语句生效
+     */
+    public void addInterceptor(Interceptor interceptor) {
+        sessionManager.getConfiguration().addInterceptor(interceptor);
+    }
+
+    /**
+     * 为每个地址创建用户和默认邮件账户
+     */
+    public void createMailboxes(List<String> addresses) {
+        try (Connection connection = connect();
+             PreparedStatement user = connection.prepareStatement(
+                 "INSERT INTO `user` (username, password, email, status) VALUES (?, 'x', ?, 1)",
+                 Statement.RETURN_GENERATED_KEYS);
+             PreparedStatement account = connection.prepareStatement(
+                 "INSERT INTO mail_account (user_id, email_address, is_default) VALUES (?, ?, 1)")) {
+            for (String address : addresses) {
+                user.setString(1, "load-" + address);
+                user.setString(2, address);
+                user.executeUpdate();
+                try (ResultSet keys = user.getGeneratedKeys()) {
+                    keys.next();
+                    account.setLong(1, keys.getLong(1));
+                }
+                account.setString(2, address);
+                account.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("创建压测邮箱失败", e);
+        }
+    }
+
+    /**
+     * 已入库的邮件行数（每个收件人一行）
+     */
+    public long countMails() {
+        try (Connection connection = connect();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM mail")) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            throw new RuntimeException("查询邮件数量失败", e);
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    private void createSchema(String schema) throws SQLException {
+        String ddl = schema
+            .replaceAll("(?m)^\\s*--.*\\R", "")
+            .replaceAll("(?m)^\\s*(CREATE DATABASE|USE)\\s.*\\R", "")
+            // 普通索引和全文索引：H2的索引名全库唯一，且不支持FULLTEXT
+            .replaceAll("(?m)^\\s*(FULLTEXT\\s+)?KEY\\s.*\\R", "")
+            .replaceAll(",(\\s*\\))", "$1")
+            .replaceAll("\\)\\s*ENGINE=[^;]*;", ");");
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            statement.execute("SET MODE MySQL");
+            for (String sql : ddl.split(";\\s*\\R")) {
+                String trimmed = sql.strip();
+                // 只建表，不导入测试数据
+                if (trimmed.regionMatches(true, 0, "CREATE TABLE", 0, 12)) {
+                    statement.execute(trimmed);
+                }
+            }
+            statement.execute("SET MODE REGULAR");
+        }
+    }
+
+    private SqlSessionFactory buildSessionFactory(int poolSize) throws IOException {
+        PooledDataSource dataSource = new PooledDataSource("org.h2.Driver", url, "sa", "");
+        dataSource.setPoolMaximumActiveConnections(poolSize);
+        dataSource.setPoolMaximumIdleConnections(poolSize);
+        Configuration configuration = new Configuration(new Environment("loadtest", new JdbcTransactionFactory(), dataSource));
+        configuration.setMapUnderscoreToCamelCase(true);
+        configuration.getTypeAliasRegistry().registerAliases("com.campusmail.entity");
+        Resource[] mappers = new PathMatchingResourcePatternResolver().getResources("classpath:/mapper/*.xml");
+        for (Resource resource : mappers) {
+            try (InputStream in = resource.getInputStream()) {
+                new XMLMapperBuilder(in, configuration, resource.toString(), configuration.getSqlFragments()).parse();
+            }
+        }
+        return new SqlSessionFactoryBuilder().build(configuration);
+    }
+}
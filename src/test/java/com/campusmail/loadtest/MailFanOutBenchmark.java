@@ -0,0 +1,170 @@
+package com.campusmail.loadtest;
+
+import ch.qos.logback.classic.Level;
+import com.campusmail.dto.MailDTO;
+import com.campusmail.entity.Attachment;
+import com.campusmail.entity.MailAccount;
+import com.campusmail.mapper.AttachmentMapper;
+import com.campusmail.mapper.MailAccountMapper;
+import com.campusmail.service.MailService;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 本地群发基准：一封邮件发给大量本域收件人，测量 MailServiceImpl.sendMail 的耗时和执行的SQL语句数
+ * 收件人全部在 @campus.mail 域内，不经过外发；每次发送都带附件，收件箱副本需要复制附件记录
+ *
+ * H2内存库没有网络往返，rtt参数给每条语句加上模拟的往返延迟（微秒），更接近MySQL上语句数对耗时的影响
+ *
+ * 用法（参数均为key=value，可省略）：
+ *   MailFanOutBenchmark recipients=1000 bcc=200 attachments=2 size=8192 sends=20 warmup=5 rtt=200 schema=sql/schema.sql
+ * bcc为其中放在密送中的收件人数，size为正文字符数
+ * 需要在项目根目录下运行（读取sql/schema.sql），classpath包含src/main/resources中的mapper
+ */
+public class MailFanOutBenchmark {
+
+    private static final String SENDER = "sender@campus.mail";
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("参数格式应为key=value: " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        int recipientCount = intOption(options, "recipients", 1000);
+        int bccCount = Math.min(recipientCount, intOption(options, "bcc", 200));
+        int attachmentCount = intOption(options, "attachments", 2);
+        int size = intOption(options, "size", 8192);
+        int sends = intOption(options, "sends", 20);
+        int warmup = intOption(options, "warmup", 5);
+        long rttNanos = TimeUnit.MICROSECONDS.toNanos(intOption(options, "rtt", 0));
+
+        EmbeddedMailDatabase database = new EmbeddedMailDatabase("mail_fanout_" + System.nanoTime(),
+            Paths.get(options.getOrDefault("schema", "sql/schema.sql")), 4);
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < recipientCount; i++) {
+            recipients.add("fanout" + i + "@campus.mail");
+        }
+        List<String> mailboxes = new ArrayList<>(recipients);
+        mailboxes.add(SENDER);
+        database.createMailboxes(mailboxes);
+        // user是H2的保留字，UserMapper的查询在H2上无法执行，通过账户取用户ID
+        Long senderId = database.mapper(MailAccountMapper.class).findByEmailAddress(SENDER)
+            .map(MailAccount::getUserId)
+            .orElseThrow(() -> new IllegalStateException("发件人不存在"));
+
+        StatementCounter counter = new StatementCounter(rttNanos);
+        database.addInterceptor(counter);
+        MailService mailService = database.mailService();
+        AttachmentMapper attachmentMapper = database.mapper(AttachmentMapper.class);
+        String to = String.join(",", recipients.subList(0, recipientCount - bccCount));
+        String bcc = String.join(",", recipients.subList(recipientCount - bccCount, recipientCount));
+        String content = "群发基准正文 ".repeat(size / 7 + 1).substring(0, size);
+
+        long[] micros = new long[sends];
+        long statements = 0;
+        // 显式指定的附件ID避开自增区间，收件箱副本的附件行使用自增ID
+        long nextAttachmentId = 1_000_000_000L;
+        for (int i = -warmup; i < sends; i++) {
+            List<Long> attachmentIds = new ArrayList<>();
+            for (int a = 0; a < attachmentCount; a++) {
+                Attachment attachment = new Attachment();
+                attachment.setId(nextAttachmentId++);
+                attachment.setFileName("课件" + a + ".pdf");
+                attachment.setFileType("application/pdf");
+                attachment.setFileSize(1024L * 1024);
+                attachment.setStoragePath("/uploads/fanout/" + attachment.getId());
+                attachmentMapper.insert(attachment);
+                attachmentIds.add(attachment.getId());
+            }
+            MailDTO request = new MailDTO();
+            request.setToAddress(to);
+            request.setBccAddress(bcc.isEmpty() ? null : bcc);
+            request.setSubject("课程通知 #" + i);
+            request.setContent(content);
+            request.setPlainContent(content);
+            request.setAttachmentIds(attachmentIds);
+
+            long before = counter.count();
+            long start = System.nanoTime();
+            mailService.sendMail(senderId, request);
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                micros[i] = TimeUnit.NANOSECONDS.toMicros(elapsed);
+                statements += counter.count() - before;
+            }
+        }
+
+        long expectedMails = (long) (warmup + sends) * (recipientCount + 1);
+        long storedMails = database.countMails();
+        if (storedMails != expectedMails) {
+            throw new IllegalStateException("邮件行数不符: expected=" + expectedMails + " actual=" + storedMails);
+        }
+        Arrays.sort(micros);
+        System.out.printf(Locale.ROOT, "recipients=%d bcc=%d attachments=%d size=%d rtt=%dus sends=%d%n",
+            recipientCount, bccCount, attachmentCount, size, TimeUnit.NANOSECONDS.toMicros(rttNanos), sends);
+        System.out.printf(Locale.ROOT, "sendMail      mean=%.1fms p50=%.1fms max=%.1fms%n",
+            Arrays.stream(micros).average().orElse(0) / 1000.0,
+            micros[micros.length / 2] / 1000.0, micros[micros.length - 1] / 1000.0);
+        System.out.printf(Locale.ROOT, "statements    %.1f per send%n", (double) statements / sends);
+        System.out.printf(Locale.ROOT, "mail rows     %d (verified)%n", storedMails);
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return Integer.parseInt(options.getOrDefault(key, Integer.toString(defaultValue)));
+    }
+
+    /**
+     * 统计经过Executor的语句数，并按需为每条语句加上模拟的网络往返
+     */
+    @Intercepts({
+        @Signature(type = Executor.class, method = "update", args = {MappedStatement.class, Object.class}),
+        @Signature(type = Executor.class, method = "query",
+            args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class})
+    })
+    private static class StatementCounter implements Interceptor {
+
+        private final AtomicLong statements = new AtomicLong();
+        private final long rttNanos;
+
+        StatementCounter(long rttNanos) {
+            this.rttNanos = rttNanos;
+        }
+
+        long count() {
+            return statements.get();
+        }
+
+        @Override
+        public Object intercept(Invocation invocation) throws Throwable {
+            statements.incrementAndGet();
+            if (rttNanos > 0) {
+                LockSupport.parkNanos(rttNanos);
+            }
+            return invocation.proceed();
+        }
+    }
+}
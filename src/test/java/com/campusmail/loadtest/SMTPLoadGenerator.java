@@ -0,0 +1,373 @@
+package com.campusmail.loadtest;
+
+import ch.qos.logback.classic.Level;
+import com.campusmail.mapper.MailAccountMapper;
+import com.campusmail.service.MailService;
+import com.campusmail.smtp.InboundMailQueue;
+import com.campusmail.smtp.LocalRecipientDirectory;
+import com.campusmail.smtp.MailParser;
+import com.campusmail.smtp.SMTPAdmissionControl;
+import com.campusmail.smtp.SMTPCommandHandler;
+import com.campusmail.smtp.SMTPServer;
+import com.campusmail.smtp.SMTPSessionMonitor;
+import com.campusmail.smtp.SMTPTlsContext;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SMTP压测：在本机启动真实的SMTPServer → 持久化队列 → MailParser → MailServiceImpl.createMail 链路，
+ * 数据库由 {@link EmbeddedMailDatabase} 代替，多个客户端连接持续发送邮件
+ *
+ * 输出两组数字：
+ * accepted  —— 客户端收到"250 OK: Message queued"的速率，以及从MAIL FROM到该响应的事务延迟 p50/p99/p999
+ * delivered —— 投递线程把邮件写入数据库的速率（等待全部收件人的邮件行入库）
+ *
+ * 用法（参数均为key=value，可省略）：
+ *   SMTPLoadGenerator engine=blocking|nio concurrency=16 messages=5000 size=4096 recipients=5 pipelining=true
+ *                     warmup=500 deliveries=10 batch=32 batch-delay=5 port=2590 schema=sql/schema.sql
+ * batch为入库批次大小（1为逐封入库），batch-delay为攒批等待的毫秒数
+ * 需要在项目根目录下运行（读取sql/schema.sql），classpath包含src/main/resources中的mapper
+ */
+public class SMTPLoadGenerator {
+
+    private static final String SUBJECT = "=?UTF-8?B?" + Base64.getEncoder().encodeToString(
+        "压测邮件：课程通知".getBytes(StandardCharsets.UTF_8)) + "?=";
+
+    private final Map<String, String> options;
+    private final int concurrency;
+    private final int messageSize;
+    private final int recipientCount;
+    private final boolean pipelining;
+    private final int port;
+    // 每封邮件带不同的Message-ID，否则内容相同的邮件会被入站去重跳过
+    private final AtomicLong messageSequence = new AtomicLong();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private SMTPLoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.concurrency = intOption("concurrency", 16);
+        this.messageSize = intOption("size", 4096);
+        this.recipientCount = intOption("recipients", 5);
+        this.pipelining = Boolean.parseBoolean(options.getOrDefault("pipelining", "true"));
+        this.port = intOption("port", 2590);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("参数格式应为key=value: " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        // 默认的DEBUG日志会逐条打印SMTP命令，压测时只保留INFO以上
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        new SMTPLoadGenerator(options).run();
+    }
+
+    private void run() throws Exception {
+        String engine = options.getOrDefault("engine", "blocking");
+        int messages = intOption("messages", 5000);
+        int warmup = intOption("warmup", 500);
+        int deliveries = intOption("deliveries", 10);
+        int batch = intOption("batch", 32);
+        int batchDelay = intOption("batch-delay", 5);
+
+        Path workDir = Files.createTempDirectory("smtp-load");
+        EmbeddedMailDatabase database = new EmbeddedMailDatabase("smtp_load_" + System.nanoTime(),
+            Paths.get(options.getOrDefault("schema", "sql/schema.sql")), deliveries + 2);
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < recipientCount; i++) {
+            recipients.add("load" + i + "@campus.mail");
+        }
+        database.createMailboxes(recipients);
+
+        MailService mailService = database.mailService();
+        LocalRecipientDirectory directory = new LocalRecipientDirectory(database.mapper(MailAccountMapper.class));
+        directory.load();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SMTPSessionMonitor monitor = new SMTPSessionMonitor(registry);
+        InboundMailQueue queue = new InboundMailQueue(mailService, new MailParser(workDir.resolve("uploads").toString()),
+            monitor, workDir.resolve("queue").toString(), 64L << 20, 20, deliveries, batch, batchDelay);
+        queue.start();
+        SMTPAdmissionControl admissionControl = new SMTPAdmissionControl(0, 0, 0);
+        SMTPTlsContext tlsContext = new SMTPTlsContext("", "", "PKCS12", 1, 1);
+        SMTPCommandHandler handler = new SMTPCommandHandler(queue, directory, null, admissionControl, tlsContext, monitor,
+            Math.max(10L << 20, messageSize * 2L), workDir.resolve("spool").toString(), 262144);
+        SMTPServer server = new SMTPServer(handler, admissionControl, tlsContext, monitor);
+        ReflectionTestUtils.setField(server, "port", port);
+        ReflectionTestUtils.setField(server, "threadPoolSize", Math.max(concurrency, 10));
+        ReflectionTestUtils.setField(server, "backlog", 1024);
+        ReflectionTestUtils.setField(server, "engine", engine);
+        ReflectionTestUtils.setField(server, "eventLoopThreads", intOption("event-loop-threads", 2));
+        server.start();
+        Thread.sleep(300);
+
+        try {
+            System.out.printf("engine=%s concurrency=%d messages=%d size=%d recipients=%d pipelining=%s deliveries=%d batch=%d/%dms%n",
+                engine, concurrency, messages, messageSize, recipientCount, pipelining, deliveries, batch, batchDelay);
+            if (warmup > 0) {
+                runPhase(database, warmup, recipients);
+            }
+            Result result = runPhase(database, messages, recipients);
+            report(result);
+            reportPhases(registry);
+        } finally {
+            server.stop();
+            queue.stop();
+        }
+    }
+
+    /**
+     * 发送指定数量的邮件并等待全部入库
+     */
+    private Result runPhase(EmbeddedMailDatabase database, int messages, List<String> recipients) throws Exception {
+        byte[] body = buildMessage(recipients);
+        long rowsBefore = database.countMails();
+        long[] latencies = new long[messages];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < concurrency; t++) {
+            futures.add(clients.submit(() -> {
+                new Client(recipients, body).send(next, messages, latencies, failed);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long acceptedNanos = System.nanoTime() - start;
+        clients.shutdown();
+
+        // 投递是异步的，等待所有成功接收的邮件为每个收件人写入一行
+        long expectedRows = rowsBefore + (long) (messages - failed.get()) * recipients.size();
+        long deadline = System.nanoTime() + 300_000_000_000L;
+        long rows;
+        while ((rows = database.countMails()) < expectedRows && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        long deliveredNanos = System.nanoTime() - start;
+        return new Result(messages, failed.get(), acceptedNanos, deliveredNanos, rows - rowsBefore,
+            expectedRows - rowsBefore, latencies);
+    }
+
+    private void report(Result result) {
+        int accepted = result.messages - result.failed;
+        long[] sorted = Arrays.copyOf(result.latencies, result.latencies.length);
+        Arrays.sort(sorted);
+        System.out.printf("accepted   %d msgs in %.2fs  %.1f msgs/s  (failed %d)%n", accepted,
+            result.acceptedNanos / 1e9, accepted / (result.acceptedNanos / 1e9), result.failed);
+        System.out.printf("latency    p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+            percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6,
+            sorted[sorted.length - 1] / 1e6);
+        System.out.printf("delivered  %d/%d rows in %.2fs  %.1f msgs/s%n", result.deliveredRows, result.expectedRows,
+            result.deliveredNanos / 1e9, accepted / (result.deliveredNanos / 1e9));
+    }
+
+    /**
+     * 服务端各阶段耗时（SMTPSessionMonitor），包含预热阶段的样本
+     */
+    private static void reportPhases(SimpleMeterRegistry registry) {
+        for (SMTPSessionMonitor.Phase phase : SMTPSessionMonitor.Phase.values()) {
+            Timer timer = registry.find("smtp.session.phase").tag("phase", phase.name().toLowerCase(Locale.ROOT)).timer();
+            if (timer == null || timer.count() == 0) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder(String.format("phase %-8s n=%-7d mean=%.3fms",
+                phase.name().toLowerCase(Locale.ROOT), timer.count(), timer.mean(TimeUnit.MILLISECONDS)));
+            for (ValueAtPercentile value : timer.takeSnapshot().percentileValues()) {
+                line.append(String.format(" p%s=%.3fms", trimPercentile(value.percentile()),
+                    value.value(TimeUnit.MILLISECONDS)));
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static String trimPercentile(double percentile) {
+        return Double.toString(percentile * 100).replaceAll("\\.?0+$", "").replace(".", "");
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(p * sorted.length) - 1))];
+    }
+
+    /**
+     * 邮件正文：中文主题（RFC 2047编码），纯文本内容填充到指定大小，行首不会出现"."
+     */
+    private byte[] buildMessage(List<String> recipients) {
+        StringBuilder message = new StringBuilder(messageSize + 512);
+        message.append("From: load@example.org\r\n")
+            .append("To: ").append(String.join(", ", recipients)).append("\r\n")
+            .append("Subject: ").append(SUBJECT).append("\r\n")
+            .append("MIME-Version: 1.0\r\n")
+            .append("Content-Type: text/plain; charset=UTF-8\r\n")
+            .append("Content-Transfer-Encoding: 8bit\r\n\r\n");
+        String line = "campus mail load test line 0123456789 abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMN\r\n";
+        while (message.length() < messageSize) {
+            message.append(line);
+        }
+        message.append(".\r\n");
+        return message.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * 单个客户端连接：EHLO一次，之后在同一连接上连续发送邮件
+     */
+    private class Client {
+
+        private final byte[] envelope;
+        private final byte[][] envelopeLines;
+        private final byte[] body;
+        private final byte[] line = new byte[1024];
+        private InputStream in;
+        private OutputStream out;
+
+        Client(List<String> recipients, byte[] body) {
+            this.body = body;
+            List<String> commands = new ArrayList<>();
+            commands.add("MAIL FROM:<load@example.org> SIZE=" + body.length);
+            for (String recipient : recipients) {
+                commands.add("RCPT TO:<" + recipient + ">");
+            }
+            commands.add("DATA");
+            this.envelopeLines = new byte[commands.size()][];
+            for (int i = 0; i < commands.size(); i++) {
+                envelopeLines[i] = (commands.get(i) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            }
+            this.envelope = String.join("\r\n", commands).concat("\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        void send(AtomicInteger next, int messages, long[] latencies, AtomicInteger failed) throws IOException {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port));
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(60000);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+                expect("220");
+                command("EHLO loadtest.example.org\r\n".getBytes(StandardCharsets.US_ASCII));
+                expect("250");
+
+                int i;
+                while ((i = next.getAndIncrement()) < messages) {
+                    long start = System.nanoTime();
+                    if (!transaction()) {
+                        failed.incrementAndGet();
+                    }
+                    latencies[i] = System.nanoTime() - start;
+                }
+                command("QUIT\r\n".getBytes(StandardCharsets.US_ASCII));
+                expect("221");
+            }
+        }
+
+        /**
+         * 一封邮件的完整事务，返回是否收到250
+         * pipelining时MAIL/RCPT/DATA一次写出（RFC 2920），否则逐条等待响应
+         */
+        private boolean transaction() throws IOException {
+            boolean ok = true;
+            if (pipelining) {
+                command(envelope);
+                for (int i = 0; i < envelopeLines.length - 1; i++) {
+                    ok &= readReply().startsWith("250");
+                }
+            } else {
+                for (int i = 0; i < envelopeLines.length - 1; i++) {
+                    command(envelopeLines[i]);
+                    ok &= readReply().startsWith("250");
+                }
+                command(envelopeLines[envelopeLines.length - 1]);
+            }
+            if (!readReply().startsWith("354")) {
+                // 没有进入DATA状态，清理事务后继续下一封
+                command("RSET\r\n".getBytes(StandardCharsets.US_ASCII));
+                readReply();
+                return false;
+            }
+            out.write(("Message-ID: <" + runId + "." + messageSequence.incrementAndGet() + "@loadtest.example.org>\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            command(body);
+            return readReply().startsWith("250") && ok;
+        }
+
+        private void command(byte[] data) throws IOException {
+            out.write(data);
+            out.flush();
+        }
+
+        private void expect(String code) throws IOException {
+            String reply = readReply();
+            if (!reply.startsWith(code)) {
+                throw new IOException("Expected " + code + " but got " + reply);
+            }
+        }
+
+        /**
+         * 读取一条（可能多行的）响应，返回最后一行
+         */
+        private String readReply() throws IOException {
+            while (true) {
+                int length = 0;
+                int b;
+                while ((b = in.read()) != '\n') {
+                    if (b < 0) {
+                        throw new IOException("Connection closed by server");
+                    }
+                    if (length < line.length) {
+                        line[length++] = (byte) b;
+                    }
+                }
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                if (length < 4 || line[3] != '-') {
+                    return new String(line, 0, length, StandardCharsets.US_ASCII);
+                }
+            }
+        }
+    }
+
+    private record Result(int messages, int failed, long acceptedNanos, long deliveredNanos, long deliveredRows,
+                          long expectedRows, long[] latencies) {
+    }
+}
@@ -0,0 +1,114 @@
+package com.campusmail.service.impl;
+
+import com.campusmail.entity.Mail;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * MailServiceImpl 中收件人和搜索高亮辅助方法的基准，不访问数据库
+ * 收件人为50个带中文显示名的地址（收件人/抄送/密送混合，含重复和外部地址）
+ * 高亮为一页20封中文邮件；buildSnippet 在1MB正文中查找位于末尾附近的关键词
+ *
+ * 运行：mvn -Pjmh test-compile exec:exec -Djmh.args="MailServiceImplBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MailServiceImplBenchmark {
+
+    private static final String KEYWORD = "期末考试";
+
+    private MailServiceImpl mailService;
+    private Mail mail;
+    private String recipients;
+    private List<Mail> page;
+    private String largeBody;
+    private Pattern keywordPattern;
+
+    @Setup
+    public void setup() {
+        mailService = new MailServiceImpl(null, null, null, null, null, null);
+
+        mail = new Mail();
+        mail.setToAddress(addressList(0, 30));
+        mail.setCcAddress(addressList(25, 15));
+        mail.setBccAddress(addressList(40, 10));
+        recipients = addressList(0, 50);
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            body.append("各位同学：本学期课程安排有所调整，请关注教务通知。第").append(i).append("段内容。\r\n");
+        }
+        body.append("本学期").append(KEYWORD).append("将于第十八周进行，请按时参加。\r\n");
+        String pageBody = body.toString();
+
+        page = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Mail item = new Mail();
+            item.setSubject("关于" + KEYWORD + "安排的通知（第" + i + "版）");
+            item.setPlainContent(pageBody);
+            page.add(item);
+        }
+
+        StringBuilder large = new StringBuilder(1 << 20);
+        String line = "各位同学：本学期课程安排有所调整，请关注教务系统的最新通知并按要求完成选课。\r\n";
+        while (large.length() * 3 < (1 << 20)) {
+            large.append(line);
+        }
+        large.append("本学期").append(KEYWORD).append("将于第十八周进行。\r\n").append(line);
+        largeBody = large.toString();
+        keywordPattern = Pattern.compile(Pattern.quote(KEYWORD), Pattern.CASE_INSENSITIVE);
+    }
+
+    @Benchmark
+    public List<MailServiceImpl.RecipientInfo> collectRecipientInfos() {
+        return mailService.collectRecipientInfos(mail);
+    }
+
+    @Benchmark
+    public String filterExternalRecipients() {
+        return mailService.filterExternalRecipients(recipients);
+    }
+
+    @Benchmark
+    public List<Mail> applyHighlight() {
+        mailService.applyHighlight(page, KEYWORD);
+        return page;
+    }
+
+    @Benchmark
+    public String buildSnippet() {
+        return mailService.buildSnippet(largeBody, keywordPattern, 200);
+    }
+
+    /**
+     * 从第start个开始的count个地址，每三个中有一个外部地址，分隔符混用逗号和分号
+     */
+    private static String addressList(int start, int count) {
+        StringBuilder list = new StringBuilder();
+        for (int i = start; i < start + count; i++) {
+            if (list.length() > 0) {
+                list.append(i % 2 == 0 ? ", " : "; ");
+            }
+            String domain = i % 3 == 0 ? "example.edu" : "campus.mail";
+            list.append("学生").append(i).append(" <Student").append(i).append('@').append(domain).append('>');
+        }
+        return list.toString();
+    }
+}
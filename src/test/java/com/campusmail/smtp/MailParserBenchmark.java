@@ -0,0 +1,115 @@
+package com.campusmail.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MailParser.parse 基准：中文主题和发件人（RFC 2047），50个收件人，正文为中文
+ * encoding=8bit 为单个text/plain部分；base64 为multipart/alternative，纯文本和HTML两部分均为base64编码
+ *
+ * 运行：mvn -Pjmh test-compile exec:exec -Djmh.args="MailParserBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MailParserBenchmark {
+
+    @Param({"4096", "1048576"})
+    public int bodySize;
+
+    @Param({"8bit", "base64"})
+    public String encoding;
+
+    private MailParser parser;
+    private byte[] message;
+    private List<String> envelopeTo;
+
+    @Setup
+    public void setup() throws IOException {
+        parser = new MailParser(Files.createTempDirectory("mail-parser-bench").toString());
+        envelopeTo = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            envelopeTo.add("student" + i + "@campus.mail");
+        }
+        message = buildMessage().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ParsedMail parse() throws IOException {
+        return parser.parse(new ByteArrayInputStream(message), "teacher@example.edu", envelopeTo);
+    }
+
+    private String buildMessage() {
+        StringBuilder headers = new StringBuilder()
+            .append("From: ").append(encodedWord("王老师")).append(" <teacher@example.edu>\r\n")
+            .append("To: ");
+        for (int i = 0; i < envelopeTo.size(); i++) {
+            headers.append(i > 0 ? ",\r\n " : "").append(encodedWord("学生" + i)).append(" <").append(envelopeTo.get(i)).append('>');
+        }
+        headers.append("\r\n")
+            .append("Subject: ").append(encodedWord("关于期末考试安排的通知（请务必阅读）")).append("\r\n")
+            .append("Message-ID: <bench-0001@example.edu>\r\n")
+            .append("Date: Mon, 12 Jan 2026 09:30:00 +0800\r\n")
+            .append("MIME-Version: 1.0\r\n");
+
+        String text = chineseText(bodySize);
+        if ("8bit".equals(encoding)) {
+            return headers.append("Content-Type: text/plain; charset=UTF-8\r\n")
+                .append("Content-Transfer-Encoding: 8bit\r\n\r\n")
+                .append(text).toString();
+        }
+        String html = "<html><body><p>" + text.replace("\r\n", "</p>\r\n<p>") + "</p></body></html>";
+        return headers.append("Content-Type: multipart/alternative; boundary=\"=_bench_boundary\"\r\n\r\n")
+            .append("--=_bench_boundary\r\n")
+            .append("Content-Type: text/plain; charset=UTF-8\r\n")
+            .append("Content-Transfer-Encoding: base64\r\n\r\n")
+            .append(base64Lines(text))
+            .append("--=_bench_boundary\r\n")
+            .append("Content-Type: text/html; charset=UTF-8\r\n")
+            .append("Content-Transfer-Encoding: base64\r\n\r\n")
+            .append(base64Lines(html))
+            .append("--=_bench_boundary--\r\n").toString();
+    }
+
+    /**
+     * 约size字节（UTF-8）的中文正文，每行不超过SMTP行长限制
+     */
+    private static String chineseText(int size) {
+        String line = "各位同学：本学期期末考试将于第十八周进行，请按教务系统公布的时间和考场参加考试，携带学生证。\r\n";
+        int lineBytes = line.getBytes(StandardCharsets.UTF_8).length;
+        StringBuilder text = new StringBuilder(size);
+        for (int written = 0; written < size; written += lineBytes) {
+            text.append(line);
+        }
+        return text.toString();
+    }
+
+    private static String base64Lines(String content) {
+        return Base64.getMimeEncoder().encodeToString(content.getBytes(StandardCharsets.UTF_8)) + "\r\n";
+    }
+
+    private static String encodedWord(String value) {
+        return "=?UTF-8?B?" + Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)) + "?=";
+    }
+}
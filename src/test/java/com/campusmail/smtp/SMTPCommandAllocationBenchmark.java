@@ -0,0 +1,132 @@
+package com.campusmail.smtp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SMTP命令处理的分配量微基准：按命令统计每条命令在当前线程上分配的字节数
+ * 通过 com.sun.management.ThreadMXBean#getThreadAllocatedBytes 读取（HotSpot），预热后测量，排除JIT期间的分配
+ *
+ * decode：只做 SMTPCommandLine 解码（动词、地址、ESMTP参数定位），应为0
+ * bytes ：会话实际使用的 handleCommand(byte[], ...) 入口，剩余分配来自需要保存的地址/域名字符串和收件人目录查找
+ * string：handleCommand(String, ...) 兼容入口，额外包含会话原先的按行 new String 和这里的 getBytes
+ *
+ * 用法：SMTPCommandAllocationBenchmark [iterations=200000]
+ * 不依赖数据库和网络
+ */
+public class SMTPCommandAllocationBenchmark {
+
+    // 一次典型的流水线事务，RSET让上下文回到事务开始前的状态
+    private static final String[] TRANSACTION = {
+        "EHLO relay.example.org",
+        "MAIL FROM:<alice@example.org> SIZE=20480 BODY=8BITMIME",
+        "RCPT TO:<bob@campus.mail>",
+        "RCPT TO:<carol@campus.mail>",
+        "RCPT TO:<nobody@campus.mail>",
+        "NOOP",
+        "RSET",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("当前JVM不支持线程分配统计");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Path workDir = Files.createTempDirectory("smtp-alloc-bench");
+        LocalRecipientDirectory directory = new LocalRecipientDirectory(null);
+        directory.add("bob@campus.mail");
+        directory.add("carol@campus.mail");
+        SMTPCommandHandler handler = new SMTPCommandHandler(null, directory, null, new SMTPAdmissionControl(0, 0, 0),
+            new SMTPTlsContext("", "", "PKCS12", 1, 1), new SMTPSessionMonitor(new SimpleMeterRegistry()),
+            10L << 20, workDir.toString(), 262144);
+
+        byte[][] lines = new byte[TRANSACTION.length][];
+        for (int i = 0; i < TRANSACTION.length; i++) {
+            lines[i] = TRANSACTION[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        // 预热
+        run(threads, handler, lines, iterations, true);
+
+        System.out.printf("iterations=%d (bytes allocated per command)%n", iterations);
+        System.out.printf("%-60s %10s %10s %10s%n", "command", "decode", "bytes", "string");
+        long[] decode = measureDecode(threads, lines, iterations);
+        long[] bytes = run(threads, handler, lines, iterations, true);
+        long[] strings = run(threads, handler, lines, iterations, false);
+        Map<String, long[]> rows = new LinkedHashMap<>();
+        for (int i = 0; i < TRANSACTION.length; i++) {
+            rows.put(TRANSACTION[i], new long[]{decode[i], bytes[i], strings[i]});
+        }
+        long[] total = new long[3];
+        rows.forEach((command, row) -> {
+            System.out.printf("%-60s %10.1f %10.1f %10.1f%n", command,
+                row[0] / (double) iterations, row[1] / (double) iterations, row[2] / (double) iterations);
+            for (int i = 0; i < 3; i++) {
+                total[i] += row[i];
+            }
+        });
+        double commands = (double) iterations * TRANSACTION.length;
+        System.out.printf("%-60s %10.1f %10.1f %10.1f%n", "average", total[0] / commands, total[1] / commands,
+            total[2] / commands);
+    }
+
+    /**
+     * 逐条执行事务中的命令，分别累计每条命令的分配字节数
+     * @param byteEntry true时走会话使用的字节入口，false时模拟按行解码为字符串
+     */
+    private static long[] run(com.sun.management.ThreadMXBean threads, SMTPCommandHandler handler, byte[][] lines,
+                              int iterations, boolean byteEntry) {
+        long thread = Thread.currentThread().getId();
+        long[] allocated = new long[lines.length];
+        SMTPContext context = new SMTPContext();
+        int sink = 0;
+        for (int n = 0; n < iterations; n++) {
+            for (int i = 0; i < lines.length; i++) {
+                long before = threads.getThreadAllocatedBytes(thread);
+                SMTPResponse response = byteEntry
+                    ? handler.handleCommand(lines[i], 0, lines[i].length, context)
+                    : handler.handleCommand(new String(lines[i], StandardCharsets.UTF_8), context);
+                allocated[i] += threads.getThreadAllocatedBytes(thread) - before;
+                sink += response.getMessage().length();
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        return allocated;
+    }
+
+    private static long[] measureDecode(com.sun.management.ThreadMXBean threads, byte[][] lines, int iterations) {
+        long thread = Thread.currentThread().getId();
+        long[] allocated = new long[lines.length];
+        SMTPCommandLine command = new SMTPCommandLine();
+        int sink = 0;
+        for (int n = 0; n < iterations; n++) {
+            for (int i = 0; i < lines.length; i++) {
+                long before = threads.getThreadAllocatedBytes(thread);
+                command.decode(lines[i], 0, lines[i].length);
+                if (command.verb() == SMTPCommandLine.Verb.MAIL || command.verb() == SMTPCommandLine.Verb.RCPT) {
+                    command.parsePath(command.verb() == SMTPCommandLine.Verb.MAIL ? "FROM:" : "TO:");
+                    sink += command.findParam("SIZE") + command.findParam("BODY");
+                }
+                allocated[i] += threads.getThreadAllocatedBytes(thread) - before;
+                sink += command.verb().ordinal();
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        return allocated;
+    }
+}
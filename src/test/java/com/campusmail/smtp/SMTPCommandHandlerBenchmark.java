@@ -0,0 +1,93 @@
+package com.campusmail.smtp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SMTPCommandHandler.handleCommand 基准，使用会话实际调用的字节入口
+ * transaction 为一次完整的信封：MAIL FROM（带SIZE/BODY/SMTPUTF8参数）+ 50个RCPT TO（含中文地址）+ RSET
+ * 不含DATA：DATA之后的耗时在持久化队列，不属于命令解析
+ *
+ * 运行：mvn -Pjmh test-compile exec:exec -Djmh.args="SMTPCommandHandlerBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SMTPCommandHandlerBenchmark {
+
+    private static final int RECIPIENTS = 50;
+
+    private SMTPCommandHandler handler;
+    private SMTPContext context;
+    private byte[] ehlo;
+    private byte[] noop;
+    private byte[] mailFrom;
+    private byte[] rset;
+    private byte[][] rcptTo;
+
+    @Setup
+    public void setup() throws IOException {
+        LocalRecipientDirectory directory = new LocalRecipientDirectory(null);
+        rcptTo = new byte[RECIPIENTS][];
+        for (int i = 0; i < RECIPIENTS; i++) {
+            // 每十个收件人中有一个中文地址
+            String address = i % 10 == 0 ? "学生" + i + "@campus.mail" : "student" + i + "@campus.mail";
+            directory.add(address);
+            rcptTo[i] = bytes("RCPT TO:<" + address + ">");
+        }
+        handler = new SMTPCommandHandler(null, directory, null, new SMTPAdmissionControl(0, 0, 0),
+            new SMTPTlsContext("", "", "PKCS12", 1, 1), new SMTPSessionMonitor(new SimpleMeterRegistry()), 10L << 20,
+            Files.createTempDirectory("smtp-command-bench").toString(), 262144);
+        context = new SMTPContext();
+        ehlo = bytes("EHLO relay.example.edu");
+        noop = bytes("NOOP");
+        mailFrom = bytes("MAIL FROM:<teacher@example.edu> SIZE=1048576 BODY=8BITMIME SMTPUTF8");
+        rset = bytes("RSET");
+        handle(ehlo);
+    }
+
+    @Benchmark
+    public SMTPResponse ehlo() {
+        return handle(ehlo);
+    }
+
+    @Benchmark
+    public SMTPResponse noop() {
+        return handle(noop);
+    }
+
+    @Benchmark
+    public void transaction(Blackhole blackhole) {
+        blackhole.consume(handle(mailFrom));
+        for (byte[] rcpt : rcptTo) {
+            blackhole.consume(handle(rcpt));
+        }
+        blackhole.consume(handle(rset));
+    }
+
+    private SMTPResponse handle(byte[] line) {
+        return handler.handleCommand(line, 0, line.length, context);
+    }
+
+    private static byte[] bytes(String line) {
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+}
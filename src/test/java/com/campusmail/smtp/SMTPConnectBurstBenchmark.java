@@ -0,0 +1,163 @@
+package com.campusmail.smtp;
+
+import ch.qos.logback.classic.Level;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接突发基准：大量客户端同时建立短连接（连接 → 220 → QUIT），对比不同接收线程数下的建连速率
+ * 测量从发起连接到收到220欢迎消息的耗时，包含在accept队列中等待的时间
+ *
+ * 用法：SMTPConnectBurstBenchmark [engine=blocking|nio] [acceptors=1] [connections=20000] [concurrency=64]
+ * 不依赖数据库；日志级别调为WARN，避免每个连接一条INFO日志成为瓶颈
+ */
+public class SMTPConnectBurstBenchmark {
+
+    private static final int PORT = 2588;
+    private static final byte[] QUIT = "QUIT\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : "blocking";
+        int acceptors = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+        Path workDir = Files.createTempDirectory("smtp-connect-bench");
+        SMTPTlsContext tlsContext = new SMTPTlsContext("", "", "PKCS12", 1, 1);
+        SMTPAdmissionControl admissionControl = new SMTPAdmissionControl(0, 0, 0);
+        SMTPSessionMonitor monitor = new SMTPSessionMonitor(new SimpleMeterRegistry());
+        SMTPCommandHandler handler = new SMTPCommandHandler(null, new LocalRecipientDirectory(null), null,
+            admissionControl, tlsContext, monitor, 10L << 20, workDir.toString(), 262144);
+        SMTPServer server = new SMTPServer(handler, admissionControl, tlsContext, monitor);
+        ReflectionTestUtils.setField(server, "port", PORT);
+        ReflectionTestUtils.setField(server, "threadPoolSize", Math.max(concurrency, 4));
+        ReflectionTestUtils.setField(server, "backlog", 4096);
+        ReflectionTestUtils.setField(server, "engine", engine);
+        ReflectionTestUtils.setField(server, "eventLoopThreads", Math.max(2, acceptors));
+        ReflectionTestUtils.setField(server, "acceptorThreads", acceptors);
+        server.start();
+        Thread.sleep(500);
+
+        try {
+            System.out.printf("engine=%s acceptors=%d connections=%d concurrency=%d%n", engine, acceptors, connections, concurrency);
+            run(Math.min(5000, connections), concurrency);
+            report(run(connections, concurrency));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * 所有客户端线程就绪后同时开始，每个线程循环建立短连接直到总数用完
+     */
+    private static Result run(int connections, int concurrency) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long[] greetingNanos = new long[connections];
+        CountDownLatch ready = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < concurrency; t++) {
+            futures.add(pool.submit(() -> {
+                ready.await();
+                byte[] line = new byte[256];
+                int i;
+                while ((i = next.getAndIncrement()) < connections) {
+                    try {
+                        greetingNanos[i] = connect(line);
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        greetingNanos[i] = Long.MAX_VALUE;
+                    }
+                }
+                return null;
+            }));
+        }
+        long start = System.nanoTime();
+        ready.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return new Result(connections, failed.get(), elapsed, greetingNanos);
+    }
+
+    /**
+     * 一次短连接，返回从发起连接到读到220的耗时
+     */
+    private static long connect(byte[] line) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.setSoLinger(true, 0);
+            socket.connect(new InetSocketAddress("localhost", PORT), 10000);
+            socket.setSoTimeout(10000);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            expect(in, line, '2', '2', '0');
+            long elapsed = System.nanoTime() - start;
+            out.write(QUIT);
+            out.flush();
+            expect(in, line, '2', '2', '1');
+            return elapsed;
+        }
+    }
+
+    private static void expect(InputStream in, byte[] line, char c0, char c1, char c2) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            if (length < line.length) {
+                line[length++] = (byte) b;
+            }
+        }
+        if (length < 3 || line[0] != c0 || line[1] != c1 || line[2] != c2) {
+            throw new IOException("Unexpected reply: " + new String(line, 0, length, StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void report(Result result) {
+        long[] sorted = result.greetingNanos.clone();
+        Arrays.sort(sorted);
+        int succeeded = result.connections - result.failed;
+        System.out.printf("%8.0f connections/s (failed %d)   greeting p50=%.2fms p99=%.2fms p999=%.2fms%n",
+            succeeded / (result.elapsedNanos / 1e9), result.failed, percentile(sorted, succeeded, 0.50) / 1e6,
+            percentile(sorted, succeeded, 0.99) / 1e6, percentile(sorted, succeeded, 0.999) / 1e6);
+    }
+
+    /**
+     * 失败的连接排在末尾（Long.MAX_VALUE），只在成功的前count个中取分位数
+     */
+    private static long percentile(long[] sorted, int count, double p) {
+        if (count == 0) {
+            return 0;
+        }
+        return sorted[Math.min(count - 1, Math.max(0, (int) Math.ceil(p * count) - 1))];
+    }
+
+    private record Result(int connections, int failed, long elapsedNanos, long[] greetingNanos) {
+    }
+}
@@ -0,0 +1,194 @@
+package com.campusmail.smtp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * STARTTLS握手基准：本机启动SMTP监听，客户端反复执行 EHLO → STARTTLS → 握手 → QUIT
+ * full模式每个连接使用新的客户端SSLContext（完整握手），resume模式共用一个（服务端缓存命中时为简短握手）
+ *
+ * 用法：StartTlsHandshakeBenchmark [engine=blocking|nio] [connections=2000] [concurrency=8] [protocol=TLSv1.3]
+ * 不依赖数据库；证书由keytool临时生成
+ */
+public class StartTlsHandshakeBenchmark {
+
+    private static final String PASSWORD = "changeit";
+    private static final int PORT = 2587;
+
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : "blocking";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        String protocol = args.length > 3 ? args[3] : "TLSv1.3";
+
+        Path workDir = Files.createTempDirectory("smtp-tls-bench");
+        Path keyStore = generateKeyStore(workDir);
+        SMTPTlsContext tlsContext = new SMTPTlsContext(keyStore.toString(), PASSWORD, "PKCS12", 20000, 3600);
+        SMTPAdmissionControl admissionControl = new SMTPAdmissionControl(0, 0, 0);
+        SMTPSessionMonitor monitor = new SMTPSessionMonitor(new SimpleMeterRegistry());
+        InboundMailQueue queue = new InboundMailQueue(null, null, monitor, workDir.resolve("queue").toString(), 1L << 20, 20, 1, 1, 0);
+        SMTPCommandHandler handler = new SMTPCommandHandler(queue, new LocalRecipientDirectory(null), null,
+            admissionControl, tlsContext, monitor, 10L << 20, workDir.toString(), 262144);
+        SMTPServer server = new SMTPServer(handler, admissionControl, tlsContext, monitor);
+        ReflectionTestUtils.setField(server, "port", PORT);
+        ReflectionTestUtils.setField(server, "threadPoolSize", Math.max(concurrency, 4));
+        ReflectionTestUtils.setField(server, "backlog", 1024);
+        ReflectionTestUtils.setField(server, "engine", engine);
+        ReflectionTestUtils.setField(server, "eventLoopThreads", 2);
+        server.start();
+        Thread.sleep(500);
+
+        try {
+            System.out.printf("engine=%s protocol=%s connections=%d concurrency=%d%n", engine, protocol, connections, concurrency);
+            // 预热：JIT和密钥材料初始化
+            run(false, protocol, Math.min(500, connections), concurrency);
+            report("full", run(false, protocol, connections, concurrency));
+            report("resume", run(true, protocol, connections, concurrency));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static Result run(boolean resume, String protocol, int connections, int concurrency) throws Exception {
+        SSLContext shared = clientContext();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        AtomicInteger next = new AtomicInteger();
+        long[] handshakeNanos = new long[connections];
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < concurrency; t++) {
+            futures.add(pool.submit(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < connections) {
+                    handshakeNanos[i] = connect(resume ? shared : clientContext(), protocol);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return new Result(connections, elapsed, handshakeNanos);
+    }
+
+    /**
+     * 一次完整的STARTTLS会话，返回从发出STARTTLS到握手完成的耗时
+     */
+    private static long connect(SSLContext clientContext, String protocol) throws IOException {
+        try (Socket socket = new Socket("localhost", PORT)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            expect(in, "220");
+            command(out, "EHLO bench");
+            expect(in, "250");
+            long start = System.nanoTime();
+            command(out, "STARTTLS");
+            expect(in, "220");
+            SSLSocket ssl = (SSLSocket) clientContext.getSocketFactory().createSocket(socket, "localhost", PORT, true);
+            ssl.setEnabledProtocols(new String[]{protocol});
+            ssl.startHandshake();
+            long elapsed = System.nanoTime() - start;
+
+            BufferedReader tlsIn = new BufferedReader(new InputStreamReader(ssl.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream tlsOut = ssl.getOutputStream();
+            command(tlsOut, "EHLO bench");
+            expect(tlsIn, "250");
+            command(tlsOut, "QUIT");
+            expect(tlsIn, "221");
+            ssl.close();
+            return elapsed;
+        }
+    }
+
+    private static void command(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * 读取一条（可能多行的）响应并检查状态码
+     */
+    private static void expect(BufferedReader in, String code) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null || !line.startsWith(code)) {
+                throw new IOException("Expected " + code + " but got " + line);
+            }
+        } while (line.length() > 3 && line.charAt(3) == '-');
+    }
+
+    private static void report(String mode, Result result) {
+        long[] sorted = result.handshakeNanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-6s %8.0f handshakes/s   p50=%.2fms p99=%.2fms max=%.2fms%n", mode,
+            result.connections / (result.elapsedNanos / 1e9),
+            percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static SSLContext clientContext() throws Exception {
+        // 自签名测试证书，客户端不校验
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{trustAll}, new SecureRandom());
+        return context;
+    }
+
+    private static Path generateKeyStore(Path dir) throws Exception {
+        Path keyStore = dir.resolve("smtp.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "smtp", "-keyalg", "EC",
+            "-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+            "-keystore", keyStore.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+            .inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed");
+        }
+        return keyStore;
+    }
+
+    private record Result(int connections, long elapsedNanos, long[] handshakeNanos) {
+    }
+}